@@ -0,0 +1,89 @@
+package com.verifix.usersync.benchmark;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Synthetic Debezium envelopes shaped like the Oracle connector output the service consumes
+ */
+final class DebeziumEnvelopes {
+    private static final String[] LATIN_NAMES = {"John Smith", "Anna Maria Lopez", "Bekzod Karimov", "Dilnoza Rahimova"};
+    private static final String[] CYRILLIC_NAMES = {"Иван Петров", "Ўткир Ғуломов", "Шоҳрух Мирзаев", "Ольга Сергеевна Ким"};
+
+    private static final String SCHEMA = """
+            {"type":"struct","fields":[{"type":"struct","fields":[\
+            {"type":"int64","optional":false,"field":"COMPANY_ID"},\
+            {"type":"bytes","optional":false,"name":"org.apache.kafka.connect.data.Decimal","version":1,\
+            "parameters":{"scale":"0"},"field":"USER_ID"},\
+            {"type":"string","optional":true,"field":"NAME"},{"type":"string","optional":false,"field":"LOGIN"},\
+            {"type":"string","optional":true,"field":"PASSWORD"},{"type":"string","optional":true,"field":"EMAIL"},\
+            {"type":"string","optional":true,"field":"STATE"},{"type":"int64","optional":true,"field":"MODIFIED_ON"},\
+            {"type":"string","optional":true,"field":"PHOTO_SHA"}],"optional":true,"name":"before"},\
+            {"type":"struct","fields":[],"optional":true,"name":"after"},\
+            {"type":"struct","fields":[{"type":"string","optional":false,"field":"version"},\
+            {"type":"string","optional":false,"field":"connector"},{"type":"int64","optional":false,"field":"ts_ms"},\
+            {"type":"string","optional":true,"field":"scn"}],"optional":false,"name":"source"},\
+            {"type":"string","optional":false,"field":"op"},{"type":"int64","optional":true,"field":"ts_ms"}],\
+            "optional":false,"name":"server1.VERIFIX.MD_USERS.Envelope"}""";
+
+    private DebeziumEnvelopes() {
+    }
+
+    static ApplicationProperties properties() {
+        return new Binder(new MapConfigurationPropertySource(Map.of(
+                "app.kafka.topic", "user-changes",
+                "app.kafka.client-id", "benchmark",
+                "app.keycloak.base-url", "http://localhost:8080",
+                "app.keycloak.realm", "benchmark",
+                "app.keycloak.admin-client-id", "benchmark",
+                "app.keycloak.admin-client-secret", "secret",
+                "app.flow-control.enabled", "false",
+                // Every invocation replays the same records, which the position store would drop as duplicates
+                "app.positions.enabled", "false",
+                "app.tracked-columns", "COMPANY_ID,USER_ID,NAME,LOGIN,PASSWORD,EMAIL")))
+                .bindOrCreate("app", ApplicationProperties.class);
+    }
+
+    /**
+     * An update envelope; the name changes between before and after so the event is relevant
+     */
+    static byte[] update(long userId, boolean cyrillic, boolean withSchema) {
+        String before = row(userId, cyrillic, "old");
+        String after = row(userId, cyrillic, "new");
+        String payload = """
+                {"before":%s,"after":%s,"source":{"version":"2.7.0.Final","connector":"oracle","name":"server1",\
+                "ts_ms":1718000000000,"snapshot":"false","db":"VERIFIX","schema":"VERIFIX","table":"MD_USERS",\
+                "txId":"0a001b00c6170000","scn":"289357163","commit_scn":"289357170"},"op":"u","ts_ms":1718000000123}"""
+                .formatted(before, after);
+
+        String envelope = withSchema
+                ? "{\"schema\":" + SCHEMA + ",\"payload\":" + payload + "}"
+                : "{\"payload\":" + payload + "}";
+        return envelope.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String row(long userId, boolean cyrillic, String version) {
+        String[] names = cyrillic ? CYRILLIC_NAMES : LATIN_NAMES;
+        String name = names[(int) (userId % names.length)];
+        String login = cyrillic ? name.split(" ")[0] + userId : "user." + userId;
+
+        return """
+                {"COMPANY_ID":%d,"USER_ID":"%s","NAME":"%s %s","LOGIN":"%s",\
+                "PASSWORD":"5baa61e4c9b93f3f0682250b6cf8331b7ee68fd8","EMAIL":"user%d@example.com","STATE":"A",\
+                "MODIFIED_ON":1718000000000,"PHOTO_SHA":"da39a3ee5e6b4b0d3255bfef95601890afd80709"}"""
+                .formatted(100 + userId % 7, base64Number(userId), name, version, login, userId);
+    }
+
+    /**
+     * Oracle NUMBER columns arrive as base64 encoded unscaled big-endian bytes
+     */
+    private static String base64Number(long value) {
+        return Base64.getEncoder().encodeToString(BigInteger.valueOf(value).toByteArray());
+    }
+}
@@ -0,0 +1,97 @@
+package com.verifix.usersync.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.mapper.LoginNormalizer;
+import com.verifix.usersync.mapper.MessageMapper;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumPayload;
+import com.verifix.usersync.model.keycloak.KeycloakUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-message cost of each mapping step, from raw record bytes to the Keycloak representation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MappingBenchmark {
+    @Param({"true", "false"})
+    public boolean withSchema;
+
+    @Param({"false", "true"})
+    public boolean cyrillic;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private MessageMapper messageMapper;
+    private KeycloakMapper keycloakMapper;
+    private byte[] envelope;
+    private DebeziumPayload payload;
+    private UserData userData;
+
+    @Setup
+    public void setUp() throws IOException {
+        messageMapper = new MessageMapper(DebeziumEnvelopes.properties(), objectMapper);
+        keycloakMapper = new KeycloakMapper(objectMapper, new LoginNormalizer());
+        envelope = DebeziumEnvelopes.update(1_234_567L, cyrillic, withSchema);
+        payload = messageMapper.parse(envelope);
+        userData = messageMapper.mapToUserData(payload);
+    }
+
+    /**
+     * Baseline: a full Jackson tree of the envelope, the way messages were read before the streaming parser
+     */
+    @Benchmark
+    public JsonNode readTree() throws IOException {
+        return objectMapper.readTree(envelope);
+    }
+
+    @Benchmark
+    public DebeziumPayload parse() throws IOException {
+        return messageMapper.parse(envelope);
+    }
+
+    @Benchmark
+    public boolean hasRelevantChanges() {
+        return messageMapper.hasRelevantChanges(payload.before(), payload.after());
+    }
+
+    /**
+     * Includes the base64 decoding of USER_ID
+     */
+    @Benchmark
+    public UserData mapToUserData() {
+        return messageMapper.mapToUserData(payload);
+    }
+
+    @Benchmark
+    public KeycloakUser mapToKeycloakUser() {
+        return keycloakMapper.mapToKeycloakUser(userData);
+    }
+
+    @Benchmark
+    public KeycloakUser endToEnd() throws IOException {
+        DebeziumPayload parsed = messageMapper.parse(envelope);
+        if (!messageMapper.hasRelevantChanges(parsed.before(), parsed.after())) {
+            return null;
+        }
+        return keycloakMapper.mapToKeycloakUser(messageMapper.mapToUserData(parsed));
+    }
+}
@@ -0,0 +1,135 @@
+package com.verifix.usersync.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.mapper.LoginNormalizer;
+import com.verifix.usersync.mapper.MessageMapper;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.service.FlowController;
+import com.verifix.usersync.service.KafkaConsumerService;
+import com.verifix.usersync.service.KeycloakRouter;
+import com.verifix.usersync.service.SnapshotImportService;
+import com.verifix.usersync.service.SourcePositionStore;
+import com.verifix.usersync.service.SyncMetrics;
+import com.verifix.usersync.service.UserChangeApplier;
+import com.verifix.usersync.service.UserChangeCoalescer;
+import com.verifix.usersync.service.UserChangeDecoder;
+import com.verifix.usersync.service.UserChangeProcessor;
+import com.verifix.usersync.service.UserEventDispatcher;
+import com.verifix.usersync.service.UserSyncService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole poll through the listener, decoding, coalescing and dispatch, against a UserSyncService
+ * that completes immediately. Scores are per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class PipelineBenchmark {
+    private static final int BATCH_SIZE = 500;
+
+    @Param({"true", "false"})
+    public boolean withSchema;
+
+    @Param({"false", "true"})
+    public boolean cyrillic;
+
+    /**
+     * {@code noop} has no registry behind the meters; compare with {@code prometheus} to see the cost of the metrics
+     */
+    @Param({"noop", "prometheus"})
+    public String metrics;
+
+    private KafkaConsumerService consumer;
+    private final MockConsumer<String, byte[]> kafkaConsumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    private List<ConsumerRecord<String, byte[]>> records;
+
+    @Setup
+    public void setUp() {
+        ApplicationProperties properties = DebeziumEnvelopes.properties();
+        MeterRegistry meterRegistry = "prometheus".equals(metrics)
+                ? new PrometheusMeterRegistry(PrometheusConfig.DEFAULT)
+                : new CompositeMeterRegistry();
+        SyncMetrics syncMetrics = new SyncMetrics(meterRegistry);
+        UserSyncService userSyncService = new StubUserSyncService(syncMetrics);
+        UserEventDispatcher dispatcher = new UserEventDispatcher(properties, meterRegistry);
+        SnapshotImportService snapshotImportService = new SnapshotImportService(null, null, null, properties);
+        SourcePositionStore positionStore = new SourcePositionStore(properties, meterRegistry);
+        UserChangeProcessor processor = new UserChangeProcessor(
+                new UserChangeCoalescer(),
+                dispatcher,
+                new KeycloakRouter(properties),
+                snapshotImportService,
+                new UserChangeApplier(snapshotImportService, userSyncService, positionStore, syncMetrics, properties),
+                positionStore,
+                null,
+                syncMetrics);
+        UserChangeDecoder decoder = new UserChangeDecoder(new MessageMapper(properties, new ObjectMapper()), null, syncMetrics);
+        consumer = new KafkaConsumerService(decoder, processor, new FlowController(dispatcher, null, null, properties));
+
+        records = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            // Every fifth user changes twice in the same poll, so coalescing has work to do
+            long userId = 1_000_000L + (i % 5 == 0 ? i - 1 : i);
+            records.add(new ConsumerRecord<>("user-changes", 0, i, null, DebeziumEnvelopes.update(userId, cyrillic, withSchema)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void consumeBatch(Blackhole blackhole) {
+        consumer.consumeUserChanges(records, () -> blackhole.consume(records), kafkaConsumer);
+    }
+
+    /**
+     * Maps every user to its Keycloak representation, like the real service, but skips Keycloak
+     */
+    private static final class StubUserSyncService extends UserSyncService {
+        private final KeycloakMapper keycloakMapper =
+                new KeycloakMapper(new ObjectMapper(), new LoginNormalizer());
+
+        StubUserSyncService(SyncMetrics metrics) {
+            super(null, null, null, null, metrics);
+        }
+
+        @Override
+        public CompletableFuture<Void> handleUserSave(UserData userData) {
+            keycloakMapper.mapToKeycloakUser(userData);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> handleUserDelete(UserData userData) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
@@ -1,23 +1,50 @@
 package com.verifix.usersync.config;
 
+import com.verifix.usersync.model.keycloak.PartialImportPolicy;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
 import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
 
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
 
 @ConfigurationProperties(prefix = "app")
 @Validated
 public record ApplicationProperties(
         Kafka kafka,
         Keycloak keycloak,
-        @NotEmpty List<String> trackedColumns
+        @NotEmpty List<String> trackedColumns,
+        @DefaultValue Dispatcher dispatcher,
+        @DefaultValue Snapshot snapshot,
+        @DefaultValue Fingerprints fingerprints,
+        @DefaultValue Positions positions,
+        @DefaultValue Retry retry,
+        @DefaultValue FlowControl flowControl,
+        @DefaultValue Reconciliation reconciliation,
+        @DefaultValue Startup startup,
+        @DefaultValue Replay replay
 ) {
 
+    /**
+     * @param concurrency     consumer threads of the main listener, each with its own partitions; 0 starts one per
+     *                        partition of the topic
+     * @param groupInstanceId static group membership; a restart within the session timeout keeps the partitions
+     * @param drainTimeout    how long revoked partitions may take to finish their in-flight work before they move
+     */
     public record Kafka(
             @NotEmpty String topic,
-            @NotEmpty String clientId
+            @NotEmpty String clientId,
+            @DefaultValue("1") @PositiveOrZero int concurrency,
+            String groupInstanceId,
+            @DefaultValue("30s") Duration drainTimeout
     ) {
     }
 
@@ -25,7 +52,248 @@ public record ApplicationProperties(
             @NotEmpty String baseUrl,
             @NotEmpty String realm,
             @NotEmpty String adminClientId,
-            @NotEmpty String adminClientSecret
+            @NotEmpty String adminClientSecret,
+            @DefaultValue IdCache idCache,
+            @DefaultValue Lookup lookup,
+            @DefaultValue Http http,
+            @DefaultValue Limiter limiter,
+            @DefaultValue Map<String, Target> targets
     ) {
     }
-}
\ No newline at end of file
+
+    /**
+     * Further Keycloak cluster or realm, serving the listed companies; all other companies go to the top-level
+     * {@code base-url} and {@code realm}. Each target gets its own connection pool, access token, concurrency limit
+     * and circuit breaker, configured like the default one.
+     */
+    public record Target(
+            @NotEmpty String baseUrl,
+            @NotEmpty String realm,
+            @NotEmpty String adminClientId,
+            @NotEmpty String adminClientSecret,
+            @NotEmpty List<Long> companies
+    ) {
+    }
+
+    /**
+     * Adaptive (AIMD) limit on concurrent admin API requests
+     *
+     * @param latencyThreshold responses slower than this shrink the limit, as do 429 and 503 responses
+     * @param backoffRatio     factor the limit is multiplied by when it shrinks
+     */
+    public record Limiter(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("16") @Positive int initialLimit,
+            @DefaultValue("1") @Positive int minLimit,
+            @DefaultValue("64") @Positive int maxLimit,
+            @DefaultValue("1s") Duration latencyThreshold,
+            @DefaultValue("0.9") @DecimalMin("0.1") @DecimalMax("0.99") double backoffRatio
+    ) {
+    }
+
+    /**
+     * HTTP transport used for the Keycloak admin API
+     */
+    public record Http(
+            @DefaultValue("APACHE") Transport transport,
+            @DefaultValue("30s") Duration connectTimeout,
+            @DefaultValue("30s") Duration readTimeout,
+            @DefaultValue("64") @Positive int maxConnectionsPerRoute,
+            @DefaultValue("128") @Positive int maxConnectionsTotal,
+            @DefaultValue("30s") Duration idleEviction,
+            @DefaultValue("60s") Duration keepAlive,
+            @DefaultValue("16KB") DataSize bufferSize
+    ) {
+
+        public enum Transport {
+            /**
+             * Pooled Apache HttpClient 5
+             */
+            APACHE,
+            /**
+             * JDK HttpClient, negotiating HTTP/2 where the server supports it
+             */
+            JDK
+        }
+    }
+
+    /**
+     * Parallel dispatch of sync work; events of the same user keep their order
+     *
+     * @param maxInFlight  user changes running against each Keycloak target at once; more wait in the dispatcher queue
+     * @param maxAttempts  attempts per user change before its records move to the next retry tier
+     * @param retryBackoff delay between attempts; only the failing user waits
+     * @param liveShare    share of the freed slots that go to live changes while backfill is waiting too
+     */
+    public record Dispatcher(
+            @DefaultValue("32") @Positive int maxInFlight,
+            @DefaultValue("3") @Positive int maxAttempts,
+            @DefaultValue("1s") Duration retryBackoff,
+            @DefaultValue("0.8") @DecimalMin("0.0") @DecimalMax("1.0") double liveShare
+    ) {
+    }
+
+    /**
+     * Bulk loading of snapshot (op=r) events through Keycloak's partialImport
+     *
+     * @param ifUserExists what partialImport does with a user that already exists. {@code SKIP} leaves it to be
+     *                     updated one at a time; {@code OVERWRITE} deletes and recreates it, losing its roles, groups,
+     *                     federated identities and sessions, and gives it a new ID unless IDs are derived
+     */
+    public record Snapshot(
+            @DefaultValue("false") boolean enabled,
+            @DefaultValue("500") @Positive int chunkSize,
+            @DefaultValue("SKIP") PartialImportPolicy ifUserExists
+    ) {
+    }
+
+    /**
+     * How a user is found in Keycloak when its Keycloak ID is not cached
+     *
+     * @param fallback search the {@code userId} attribute when the strategy finds nothing, which also finds users
+     *                 whose login changed or that were created before the strategy was switched
+     */
+    public record Lookup(
+            @DefaultValue("USERNAME") Strategy strategy,
+            @DefaultValue("true") boolean fallback
+    ) {
+
+        public enum Strategy {
+            /**
+             * Exact match on the normalized login, served by the username index
+             */
+            USERNAME,
+            /**
+             * Fetch by a Keycloak ID derived from the userId; users are created with that ID
+             */
+            ID,
+            /**
+             * Search the {@code userId} attribute, which scans user attributes
+             */
+            ATTRIBUTE
+        }
+    }
+
+    /**
+     * Bounded cache of userId to Keycloak ID mappings
+     *
+     * @param changelogEnabled share mappings through a compacted topic and restore them before consuming
+     * @param changelogTopic   the compacted topic; {@code <topic>-id-mappings} when empty
+     */
+    public record IdCache(
+            @DefaultValue("100000") long maxSize,
+            @DefaultValue("1h") Duration ttl,
+            @DefaultValue("false") boolean changelogEnabled,
+            String changelogTopic
+    ) {
+    }
+
+    /**
+     * Hashes of the last user representation written to Keycloak, used to skip writes that would not change anything
+     *
+     * @param file          where fingerprints are kept across restarts; in memory only when empty
+     * @param flushInterval how often changed fingerprints are written to the file
+     */
+    public record Fingerprints(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("1000000") long maxSize,
+            String file,
+            @DefaultValue("1m") Duration flushInterval
+    ) {
+    }
+
+    /**
+     * Last applied database log position per user, used to drop replayed and out-of-order changes before any Keycloak call
+     *
+     * @param enabled whether changes are dropped by position. Marks only move forward and are kept in memory, so when
+     *                log positions start over (database restored, connector replaced) every change is dropped until
+     *                they are reset with {@code POST /admin/positions/reset} or the service restarts
+     * @param maxSize users remembered; when full, the user whose last change is oldest makes room
+     */
+    public record Positions(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("1000000") @Positive int maxSize
+    ) {
+    }
+
+    /**
+     * Retry tiers for records whose changes failed in the pipeline; each tier is a topic
+     * ({@code <topic>-retry-<n>}) with a fixed delay, followed by the dead-letter topic {@code <topic>-dlt}
+     *
+     * @param delays       delay of each tier, in order
+     * @param createTopics create the tier and dead-letter topics on startup
+     * @param partitions   partitions of created topics
+     */
+    public record Retry(
+            @DefaultValue({"10s", "1m", "10m"}) @NotEmpty List<Duration> delays,
+            @DefaultValue("false") boolean createTopics,
+            @DefaultValue("3") @Positive int partitions
+    ) {
+    }
+
+    /**
+     * Pausing consumption under downstream pressure; each signal pauses at its high-water mark and resumes at
+     * its low-water mark
+     *
+     * @param backlogHighWater  live user changes dispatched but not finished
+     * @param backfillHighWater backfill user changes dispatched but not finished
+     * @param latencyHighWater  moving average of Keycloak response latency
+     * @param checkInterval     how often the marks are checked besides after every batch
+     */
+    public record FlowControl(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("2000") @Positive int backlogHighWater,
+            @DefaultValue("500") int backlogLowWater,
+            @DefaultValue("20000") @Positive int backfillHighWater,
+            @DefaultValue("5000") int backfillLowWater,
+            @DefaultValue("2s") Duration latencyHighWater,
+            @DefaultValue("500ms") Duration latencyLowWater,
+            @DefaultValue("200ms") Duration checkInterval
+    ) {
+    }
+
+    /**
+     * Full comparison of Keycloak with the latest state in the source topic
+     *
+     * @param topic         compacted topic holding the latest record per user; the change topic when empty
+     * @param interval      time between scheduled runs; zero runs only on demand
+     * @param rate          Keycloak calls per second, pages and changes together
+     * @param pageSize      users per page when listing the realm
+     * @param deleteOrphans delete Keycloak users with a userId that the source does not know
+     */
+    public record Reconciliation(
+            String topic,
+            @DefaultValue("0s") Duration interval,
+            @DefaultValue("50") @Positive int rate,
+            @DefaultValue("500") @Positive int pageSize,
+            @DefaultValue("false") boolean deleteOrphans
+    ) {
+    }
+
+    /**
+     * Offline replay of a dump of Debezium envelopes, one per line, plain or gzip, instead of consuming; run with the
+     * {@code replay} profile
+     *
+     * @param file        the dump; nothing is replayed when empty
+     * @param checkpoint  progress of the run, {@code <file>.checkpoint} when empty; an existing one resumes the run
+     * @param failedFile  records that could not be decoded or synced, one per line, {@code <file>.failed} when empty
+     * @param batchSize   records read and collapsed per user before they are synced; the checkpoint follows each batch
+     * @param parallelism users synced concurrently
+     */
+    public record Replay(
+            String file,
+            String checkpoint,
+            String failedFile,
+            @DefaultValue("1000") @Positive int batchSize,
+            @DefaultValue("16") @Positive int parallelism
+    ) {
+    }
+
+    /**
+     * @param prewarm run a synthetic user through decoding and mapping before consuming, so the first event is not slow
+     */
+    public record Startup(
+            @DefaultValue("true") boolean prewarm
+    ) {
+    }
+}
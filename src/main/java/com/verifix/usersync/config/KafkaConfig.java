@@ -0,0 +1,106 @@
+package com.verifix.usersync.config;
+
+import com.verifix.usersync.service.FailedRecordPublisher;
+import com.verifix.usersync.service.IdMappingChangelog;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ContainerCustomizer;
+import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.listener.CommonErrorHandler;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.DefaultErrorHandler;
+import org.springframework.util.StringUtils;
+import org.springframework.util.backoff.FixedBackOff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@Configuration
+@Slf4j
+public class KafkaConfig {
+    private static final long RETRY_INTERVAL_MS = 1000L;
+    private static final long MAX_RETRIES = 9L;
+    private static final long IDLE_EVENT_INTERVAL_MS = 5000L;
+
+    /**
+     * Sync failures are retried by the processor; this only covers errors thrown by the listener itself.
+     * The batch is redelivered, and after the retries are exhausted it is logged and skipped.
+     */
+    @Bean
+    public CommonErrorHandler kafkaListenerErrorHandler() {
+        return new DefaultErrorHandler(new FixedBackOff(RETRY_INTERVAL_MS, MAX_RETRIES));
+    }
+
+    /**
+     * Retry tier and dead-letter topics, created by the KafkaAdmin on startup when enabled.
+     * Decided at runtime rather than by a condition, which an AOT build would fix at build time.
+     */
+    @Bean
+    public KafkaAdmin.NewTopics retryTopics(FailedRecordPublisher failedRecordPublisher, ApplicationProperties properties) {
+        if (!properties.retry().createTopics()) {
+            return new KafkaAdmin.NewTopics();
+        }
+        int partitions = properties.retry().partitions();
+        List<NewTopic> topics = new ArrayList<>();
+        for (String topic : failedRecordPublisher.retryTopics()) {
+            topics.add(TopicBuilder.name(topic).partitions(partitions).build());
+        }
+        topics.add(TopicBuilder.name(failedRecordPublisher.deadLetterTopic()).partitions(partitions).build());
+        return new KafkaAdmin.NewTopics(topics.toArray(NewTopic[]::new));
+    }
+
+    /**
+     * Compacted topic of Keycloak ID mappings, created by the KafkaAdmin on startup when the changelog is enabled
+     */
+    @Bean
+    public KafkaAdmin.NewTopics idMappingsTopic(IdMappingChangelog changelog, ApplicationProperties properties) {
+        if (!properties.keycloak().idCache().changelogEnabled()) {
+            return new KafkaAdmin.NewTopics();
+        }
+        return new KafkaAdmin.NewTopics(TopicBuilder.name(changelog.topic())
+                .partitions(properties.retry().partitions())
+                .compact()
+                .build());
+    }
+
+    /**
+     * Concurrency and static membership of the user change listener, applied by Spring Boot's container factory
+     * configurer. With concurrency 0 the container runs one consumer per partition of the topic. The container
+     * appends -0, -1, ... to the group instance id, so every consumer of the pod keeps its own identity.
+     * Idle events let a consumer with nothing new to read still move back after a failed batch.
+     */
+    @Bean
+    public ContainerCustomizer<Object, Object, ConcurrentMessageListenerContainer<Object, Object>> userChangeContainerCustomizer(
+            ApplicationProperties properties, KafkaAdmin kafkaAdmin) {
+        ApplicationProperties.Kafka kafka = properties.kafka();
+        return container -> {
+            String[] topics = container.getContainerProperties().getTopics();
+            if (topics == null || !Arrays.asList(topics).contains(kafka.topic())) {
+                return;
+            }
+            int concurrency = kafka.concurrency() > 0 ? kafka.concurrency() : partitionCount(kafkaAdmin, kafka.topic());
+            container.setConcurrency(concurrency);
+            container.getContainerProperties().setIdleEventInterval(IDLE_EVENT_INTERVAL_MS);
+            if (StringUtils.hasText(kafka.groupInstanceId())) {
+                container.getContainerProperties().getKafkaConsumerProperties()
+                        .setProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, kafka.groupInstanceId());
+            }
+            log.info("User change listener runs {} consumers{}", concurrency,
+                    StringUtils.hasText(kafka.groupInstanceId()) ? " as static member " + kafka.groupInstanceId() : "");
+        };
+    }
+
+    private static int partitionCount(KafkaAdmin kafkaAdmin, String topic) {
+        try {
+            return kafkaAdmin.describeTopics(topic).get(topic).partitions().size();
+        } catch (Exception e) {
+            log.warn("Failed to read the partition count of {}, starting a single consumer: {}", topic, e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.verifix.usersync.config;
+
+import com.verifix.usersync.service.OAuth2TokenService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+
+/**
+ * Adds the admin API bearer token to every request. A 401 forces a token refresh and the request is retried once.
+ * Must be the last interceptor: the retry goes straight to the request factory, within the interceptors around it.
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class KeycloakAuthInterceptor implements ClientHttpRequestInterceptor {
+    private final OAuth2TokenService tokenService;
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        String token = tokenService.getAccessToken();
+        request.getHeaders().setBearerAuth(token);
+
+        ClientHttpResponse response = execution.execute(request, body);
+        if (response.getStatusCode() != HttpStatus.UNAUTHORIZED) {
+            return response;
+        }
+
+        log.warn("Keycloak rejected the access token for {} {}, retrying with a new token", request.getMethod(), request.getURI().getPath());
+        response.close();
+
+        request.getHeaders().setBearerAuth(tokenService.refreshAccessToken(token));
+        return execution.execute(request, body);
+    }
+}
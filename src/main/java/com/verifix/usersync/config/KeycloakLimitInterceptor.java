@@ -0,0 +1,62 @@
+package com.verifix.usersync.config;
+
+import com.verifix.usersync.service.KeycloakConcurrencyLimiter;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.RestClientResponseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds every Keycloak admin API request to the adaptive concurrency limit and the circuit breaker.
+ * While the breaker is open, requests fail fast with
+ * {@link io.github.resilience4j.circuitbreaker.CallNotPermittedException}. I/O errors, 429 and 5xx responses
+ * count as failures; other 4xx responses are answers about the user and count as successes.
+ */
+@RequiredArgsConstructor
+public class KeycloakLimitInterceptor implements ClientHttpRequestInterceptor {
+    private final KeycloakConcurrencyLimiter limiter;
+    private final CircuitBreaker circuitBreaker;
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        circuitBreaker.acquirePermission();
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            circuitBreaker.releasePermission();
+            throw new InterruptedIOException("Interrupted while waiting for a Keycloak request slot");
+        }
+
+        long start = System.nanoTime();
+        boolean overloaded = true;
+        try {
+            ClientHttpResponse response = execution.execute(request, body);
+            long latency = System.nanoTime() - start;
+            HttpStatusCode status = response.getStatusCode();
+            overloaded = status.value() == HttpStatus.TOO_MANY_REQUESTS.value() || status.value() == HttpStatus.SERVICE_UNAVAILABLE.value();
+
+            if (overloaded || status.is5xxServerError()) {
+                circuitBreaker.onError(latency, TimeUnit.NANOSECONDS,
+                        new RestClientResponseException("Keycloak responded " + status.value(), status, "", null, null, null));
+            } else {
+                circuitBreaker.onSuccess(latency, TimeUnit.NANOSECONDS);
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            circuitBreaker.onError(System.nanoTime() - start, TimeUnit.NANOSECONDS, e);
+            throw e;
+        } finally {
+            limiter.release(System.nanoTime() - start, overloaded);
+        }
+    }
+}
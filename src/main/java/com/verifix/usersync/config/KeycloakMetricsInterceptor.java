@@ -0,0 +1,74 @@
+package com.verifix.usersync.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every Keycloak admin API call, tagged with the target, the sync operation it belongs to and the response status.
+ * Registered before {@link KeycloakAuthInterceptor}, so a request retried after a 401 is recorded once, with the
+ * status of the retry. Timers are registered on first use of an operation and status and reused after that.
+ */
+public class KeycloakMetricsInterceptor implements ClientHttpRequestInterceptor {
+    private final String target;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Map<String, Timer>> timers = new ConcurrentHashMap<>();
+
+    public KeycloakMetricsInterceptor(String target, MeterRegistry meterRegistry) {
+        this.target = target;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        long start = System.nanoTime();
+        String status = "IO_ERROR";
+        try {
+            ClientHttpResponse response = execution.execute(request, body);
+            status = String.valueOf(response.getStatusCode().value());
+            return response;
+        } finally {
+            timer(operation(request), status).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Timer timer(String operation, String status) {
+        return timers.computeIfAbsent(operation, ignored -> new ConcurrentHashMap<>())
+                .computeIfAbsent(status, ignored -> Timer.builder("keycloak.requests")
+                        .description("Keycloak admin API latency")
+                        .tag("target", target)
+                        .tag("operation", operation)
+                        .tag("status", status)
+                        .register(meterRegistry));
+    }
+
+    private static String operation(HttpRequest request) {
+        if (request.getURI().getPath().endsWith("/partialImport")) {
+            return "import";
+        }
+        HttpMethod method = request.getMethod();
+        if (HttpMethod.GET.equals(method)) {
+            String query = request.getURI().getRawQuery();
+            return query != null && query.startsWith("first=") ? "list" : "lookup";
+        }
+        if (HttpMethod.POST.equals(method)) {
+            return "create";
+        }
+        if (HttpMethod.PUT.equals(method)) {
+            return "update";
+        }
+        if (HttpMethod.DELETE.equals(method)) {
+            return "delete";
+        }
+        return method.name().toLowerCase();
+    }
+}
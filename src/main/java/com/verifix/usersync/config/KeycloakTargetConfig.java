@@ -0,0 +1,134 @@
+package com.verifix.usersync.config;
+
+import com.verifix.usersync.service.ConsumptionGate;
+import com.verifix.usersync.service.KeycloakConcurrencyLimiter;
+import com.verifix.usersync.service.KeycloakRouter;
+import com.verifix.usersync.service.KeycloakTarget;
+import com.verifix.usersync.service.KeycloakTargets;
+import com.verifix.usersync.service.OAuth2TokenService;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.client.AuthorizedClientServiceOAuth2AuthorizedClientManager;
+import org.springframework.security.oauth2.client.InMemoryOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientProvider;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Configuration
+@Slf4j
+public class KeycloakTargetConfig {
+    static final String KEYCLOAK = "keycloak";
+
+    /**
+     * The default target uses app.keycloak.base-url and the spring.security "keycloak" client registration,
+     * the targets under app.keycloak.targets get a registration of their own from their credentials.
+     * Circuit breakers are configured under resilience4j.circuitbreaker.instances.keycloak; the breaker of a further
+     * target is named {@code keycloak-<target>} and copies that configuration.
+     */
+    @Bean
+    public KeycloakTargets keycloakTargets(ApplicationProperties properties,
+                                           KeycloakRouter router,
+                                           RestTemplateConfig restTemplateConfig,
+                                           AuthorizedClientServiceOAuth2AuthorizedClientManager authorizedClientManager,
+                                           OAuth2AuthorizedClientService authorizedClientService,
+                                           OAuth2AuthorizedClientProvider authorizedClientProvider,
+                                           CircuitBreakerRegistry circuitBreakerRegistry,
+                                           ConsumptionGate consumptionGate,
+                                           MeterRegistry meterRegistry) {
+        ApplicationProperties.Keycloak keycloak = properties.keycloak();
+        CircuitBreaker defaultBreaker = circuitBreakerRegistry.circuitBreaker(KEYCLOAK);
+        List<CircuitBreaker> circuitBreakers = new ArrayList<>();
+        List<KeycloakTarget> targets = new ArrayList<>();
+
+        for (String name : router.targets()) {
+            OAuth2TokenService tokenService;
+            CircuitBreaker circuitBreaker;
+            String baseUrl;
+            String realm;
+            if (KeycloakRouter.DEFAULT_TARGET.equals(name)) {
+                tokenService = new OAuth2TokenService(name, KEYCLOAK, authorizedClientManager, authorizedClientService, meterRegistry);
+                circuitBreaker = defaultBreaker;
+                baseUrl = keycloak.baseUrl();
+                realm = keycloak.realm();
+            } else {
+                ApplicationProperties.Target target = keycloak.targets().get(name);
+                tokenService = tokenService(name, target, authorizedClientProvider, meterRegistry);
+                circuitBreaker = circuitBreakerRegistry.circuitBreaker(KEYCLOAK + "-" + name, defaultBreaker.getCircuitBreakerConfig());
+                baseUrl = target.baseUrl();
+                realm = target.realm();
+            }
+
+            KeycloakConcurrencyLimiter limiter = new KeycloakConcurrencyLimiter(name, keycloak.limiter(), meterRegistry);
+            circuitBreakers.add(circuitBreaker);
+            targets.add(new KeycloakTarget(name, normalizeUrl(baseUrl), realm,
+                    restTemplateConfig.restTemplate(name, keycloak.http(), tokenService, limiter, circuitBreaker),
+                    tokenService, limiter));
+            log.info("Keycloak target {}: realm {} at {}", name, realm, baseUrl);
+        }
+
+        pauseWhileAllOpen(circuitBreakers, consumptionGate);
+        return new KeycloakTargets(targets);
+    }
+
+    /**
+     * Token service on a client registration of the target's own, so its token is cached apart from the others
+     */
+    private OAuth2TokenService tokenService(String name,
+                                            ApplicationProperties.Target target,
+                                            OAuth2AuthorizedClientProvider authorizedClientProvider,
+                                            MeterRegistry meterRegistry) {
+        String registrationId = KEYCLOAK + "-" + name;
+        ClientRegistration registration = ClientRegistration.withRegistrationId(registrationId)
+                .clientId(target.adminClientId())
+                .clientSecret(target.adminClientSecret())
+                .authorizationGrantType(AuthorizationGrantType.CLIENT_CREDENTIALS)
+                .tokenUri(normalizeUrl(target.baseUrl()) + "/realms/" + target.realm() + "/protocol/openid-connect/token")
+                .build();
+
+        InMemoryClientRegistrationRepository registrations = new InMemoryClientRegistrationRepository(registration);
+        InMemoryOAuth2AuthorizedClientService authorizedClientService = new InMemoryOAuth2AuthorizedClientService(registrations);
+        AuthorizedClientServiceOAuth2AuthorizedClientManager authorizedClientManager =
+                new AuthorizedClientServiceOAuth2AuthorizedClientManager(registrations, authorizedClientService);
+        authorizedClientManager.setAuthorizedClientProvider(authorizedClientProvider);
+
+        return new OAuth2TokenService(name, registrationId, authorizedClientManager, authorizedClientService, meterRegistry);
+    }
+
+    /**
+     * Consumption is paused only while every target's breaker is open. With one target down, the others keep
+     * syncing; its changes wait in the dispatcher until the backlog watermark pauses consumption.
+     * Breaker states are published as resilience4j.circuitbreaker.state{name}.
+     */
+    private void pauseWhileAllOpen(List<CircuitBreaker> circuitBreakers, ConsumptionGate consumptionGate) {
+        for (CircuitBreaker circuitBreaker : circuitBreakers) {
+            circuitBreaker.getEventPublisher().onStateTransition(event -> {
+                log.warn("Keycloak circuit breaker {} {}", event.getCircuitBreakerName(), event.getStateTransition());
+                if (circuitBreakers.stream().allMatch(KeycloakTargetConfig::isOpen)) {
+                    consumptionGate.pause(ConsumptionGate.CIRCUIT_BREAKER);
+                } else {
+                    consumptionGate.resume(ConsumptionGate.CIRCUIT_BREAKER);
+                }
+            });
+        }
+    }
+
+    private static boolean isOpen(CircuitBreaker circuitBreaker) {
+        return switch (circuitBreaker.getState()) {
+            case OPEN, FORCED_OPEN -> true;
+            default -> false;
+        };
+    }
+
+    private static String normalizeUrl(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+}
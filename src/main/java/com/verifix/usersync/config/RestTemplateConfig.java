@@ -1,19 +1,130 @@
 package com.verifix.usersync.config;
 
+import com.verifix.usersync.service.KeycloakConcurrencyLimiter;
+import com.verifix.usersync.service.OAuth2TokenService;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.ManagedHttpClientConnectionFactory;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.config.Http1Config;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 import org.springframework.boot.web.client.RestTemplateBuilder;
-import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
-import java.time.Duration;
+import java.net.http.HttpClient;
 
+/**
+ * Builds the rest template of each {@link com.verifix.usersync.service.KeycloakTarget}. Every target gets a
+ * request factory, and with it a connection pool, of its own.
+ */
 @Configuration
+@Slf4j
 public class RestTemplateConfig {
-    @Bean
-    public RestTemplate restTemplate(RestTemplateBuilder builder) {
+    private final RestTemplateBuilder builder;
+    private final MeterRegistry meterRegistry;
+
+    public RestTemplateConfig(RestTemplateBuilder builder, MeterRegistry meterRegistry) {
+        this.builder = builder;
+        this.meterRegistry = meterRegistry;
+    }
+
+    public RestTemplate restTemplate(String target,
+                                     ApplicationProperties.Http http,
+                                     OAuth2TokenService tokenService,
+                                     KeycloakConcurrencyLimiter concurrencyLimiter,
+                                     CircuitBreaker circuitBreaker) {
+        ClientHttpRequestFactory requestFactory = requestFactory(target, http);
         return builder
-                .connectTimeout(Duration.ofSeconds(30))
-                .readTimeout(Duration.ofSeconds(30))
+                .requestFactory(() -> requestFactory)
+                // Interceptors share one iterator, so a second execute from the auth interceptor skips those before
+                // it. Being last, its retry after a 401 runs under the same permit and timer as the first attempt.
+                .additionalInterceptors(
+                        new KeycloakLimitInterceptor(concurrencyLimiter, circuitBreaker),
+                        new KeycloakMetricsInterceptor(target, meterRegistry),
+                        new KeycloakAuthInterceptor(tokenService))
+                .build();
+    }
+
+    private ClientHttpRequestFactory requestFactory(String target, ApplicationProperties.Http http) {
+        log.info("Using {} HTTP transport for Keycloak target {}", http.transport(), target);
+
+        return switch (http.transport()) {
+            case APACHE -> apacheRequestFactory(target, http);
+            case JDK -> jdkRequestFactory(http);
+        };
+    }
+
+    /**
+     * Pooled Apache HttpClient 5. Pool usage is published as httpcomponents.httpclient.pool.* metrics, tagged with the target.
+     */
+    private ClientHttpRequestFactory apacheRequestFactory(String target, ApplicationProperties.Http http) {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnPerRoute(http.maxConnectionsPerRoute())
+                .setMaxConnTotal(http.maxConnectionsTotal())
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.of(http.connectTimeout()))
+                        .setSocketTimeout(Timeout.of(http.readTimeout()))
+                        .build())
+                .setConnectionFactory(ManagedHttpClientConnectionFactory.builder()
+                        .http1Config(Http1Config.custom()
+                                .setBufferSize((int) http.bufferSize().toBytes())
+                                .build())
+                        .build())
+                .build();
+
+        TimeValue keepAlive = TimeValue.of(http.keepAlive());
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                // Honour a shorter Keep-Alive advertised by the server, otherwise keep connections for the configured time
+                .setKeepAliveStrategy((response, context) -> {
+                    TimeValue advertised = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return advertised.compareTo(keepAlive) < 0 ? advertised : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.of(http.idleEviction()))
+                .build();
+
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "keycloak", "target", target).bindTo(meterRegistry);
+
+        return new HttpComponentsClientHttpRequestFactory(httpClient);
+    }
+
+    /**
+     * JDK HttpClient with HTTP/2. Its pool is tuned through jdk.httpclient.* system properties,
+     * which only take effect if set before the first JDK HttpClient is created; explicit JVM flags win.
+     * The JDK client does not publish pool statistics.
+     */
+    private ClientHttpRequestFactory jdkRequestFactory(ApplicationProperties.Http http) {
+        setDefaultProperty("jdk.httpclient.connectionPoolSize", http.maxConnectionsTotal());
+        setDefaultProperty("jdk.httpclient.keepalive.timeout", http.idleEviction().toSeconds());
+        setDefaultProperty("jdk.httpclient.keepalive.timeout.h2", http.keepAlive().toSeconds());
+        setDefaultProperty("jdk.httpclient.bufsize", http.bufferSize().toBytes());
+
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(http.connectTimeout())
                 .build();
+
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(httpClient);
+        requestFactory.setReadTimeout(http.readTimeout());
+        return requestFactory;
+    }
+
+    private void setDefaultProperty(String name, long value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, Long.toString(value));
+        }
     }
 }
@@ -0,0 +1,25 @@
+package com.verifix.usersync.controller;
+
+import com.verifix.usersync.service.DeadLetterReplayService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/admin/dlt")
+@RequiredArgsConstructor
+public class DeadLetterController {
+    private final DeadLetterReplayService replayService;
+
+    /**
+     * Send up to {@code limit} dead-lettered records back to the first retry tier
+     */
+    @PostMapping("/replay")
+    public Map<String, Integer> replay(@RequestParam(defaultValue = "100") int limit) {
+        return Map.of("replayed", replayService.replay(limit));
+    }
+}
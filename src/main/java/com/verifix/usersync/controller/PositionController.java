@@ -0,0 +1,25 @@
+package com.verifix.usersync.controller;
+
+import com.verifix.usersync.service.SourcePositionStore;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/admin/positions")
+@RequiredArgsConstructor
+public class PositionController {
+    private final SourcePositionStore positionStore;
+
+    /**
+     * Forget the applied log position of {@code userId}, or of every user without it
+     */
+    @PostMapping("/reset")
+    public Map<String, Integer> reset(@RequestParam(required = false) Long userId) {
+        return Map.of("reset", positionStore.reset(userId));
+    }
+}
@@ -0,0 +1,38 @@
+package com.verifix.usersync.controller;
+
+import com.verifix.usersync.model.ReconciliationReport;
+import com.verifix.usersync.service.ReconciliationService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/admin/reconciliation")
+@RequiredArgsConstructor
+public class ReconciliationController {
+    private final ReconciliationService reconciliationService;
+
+    /**
+     * Start a reconciliation run in the background; 409 if one is already running
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Boolean>> start() {
+        boolean started = reconciliationService.start();
+        return ResponseEntity.status(started ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT).body(Map.of("started", started));
+    }
+
+    /**
+     * Progress of the current run or the report of the last one; 204 if there was none
+     */
+    @GetMapping
+    public ResponseEntity<ReconciliationReport> report() {
+        ReconciliationReport report = reconciliationService.lastReport();
+        return report != null ? ResponseEntity.ok(report) : ResponseEntity.noContent().build();
+    }
+}
@@ -0,0 +1,149 @@
+package com.verifix.usersync.mapper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.verifix.usersync.model.debezium.DebeziumColumns;
+import com.verifix.usersync.model.debezium.DebeziumPayload;
+import com.verifix.usersync.model.debezium.DebeziumRow;
+import com.verifix.usersync.model.debezium.DebeziumSource;
+
+import java.io.IOException;
+
+/**
+ * Single-pass token streaming decoder for Debezium envelopes.
+ * The schema block and every column that is not extracted are skipped without building any tree.
+ */
+final class DebeziumEnvelopeParser {
+    private final JsonFactory jsonFactory;
+    private final DebeziumColumns columns;
+
+    DebeziumEnvelopeParser(JsonFactory jsonFactory, DebeziumColumns columns) {
+        this.jsonFactory = jsonFactory;
+        this.columns = columns;
+    }
+
+    /**
+     * Parse the envelope, returning null when it is blank or has no payload
+     */
+    DebeziumPayload parse(byte[] value) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(value)) {
+            JsonToken first = parser.nextToken();
+            if (first == null) {
+                return null;
+            }
+            if (first != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected Debezium envelope to be a JSON object");
+            }
+
+            DebeziumPayload payload = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+
+                if ("payload".equals(field) && token == JsonToken.START_OBJECT) {
+                    payload = parsePayload(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return payload;
+        }
+    }
+
+    private DebeziumPayload parsePayload(JsonParser parser) throws IOException {
+        String operation = null;
+        DebeziumRow before = null;
+        DebeziumRow after = null;
+        DebeziumSource source = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            switch (field) {
+                case "op" -> operation = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                case "before" -> before = parseRow(parser, token);
+                case "after" -> after = parseRow(parser, token);
+                case "source" -> source = parseSource(parser, token);
+                default -> parser.skipChildren();
+            }
+        }
+        return new DebeziumPayload(operation, before, after, source);
+    }
+
+    /**
+     * Keep the log position and timestamp of the source block; connector name, database, table and the rest are skipped
+     */
+    private DebeziumSource parseSource(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+
+        long lsn = DebeziumSource.NONE;
+        long scn = DebeziumSource.NONE;
+        long tsMs = DebeziumSource.NONE;
+        boolean snapshot = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken valueToken = parser.nextToken();
+
+            switch (field) {
+                case "lsn" -> lsn = longValue(parser, valueToken);
+                // Oracle reports the SCN as a string
+                case "scn" -> scn = longValue(parser, valueToken);
+                case "ts_ms" -> tsMs = longValue(parser, valueToken);
+                // "true", "first", "last" and "incremental" all mark snapshot rows
+                case "snapshot" -> snapshot = valueToken == JsonToken.VALUE_TRUE
+                        || valueToken == JsonToken.VALUE_STRING && !"false".equals(parser.getText());
+                default -> parser.skipChildren();
+            }
+        }
+        return new DebeziumSource(lsn, scn, tsMs, snapshot);
+    }
+
+    private static long longValue(JsonParser parser, JsonToken token) throws IOException {
+        return switch (token) {
+            case VALUE_NUMBER_INT -> parser.getLongValue();
+            case VALUE_STRING -> {
+                try {
+                    yield Long.parseLong(parser.getText());
+                } catch (NumberFormatException e) {
+                    yield DebeziumSource.NONE;
+                }
+            }
+            default -> {
+                parser.skipChildren();
+                yield DebeziumSource.NONE;
+            }
+        };
+    }
+
+    private DebeziumRow parseRow(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+
+        String[] values = new String[columns.size()];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            int index = columns.indexOf(parser.currentName());
+            JsonToken valueToken = parser.nextToken();
+
+            if (index < 0) {
+                parser.skipChildren();
+                continue;
+            }
+
+            values[index] = switch (valueToken) {
+                case VALUE_NULL -> null;
+                // Structured column values are rare; keep their JSON text so they still compare correctly
+                case START_OBJECT, START_ARRAY -> parser.readValueAsTree().toString();
+                default -> parser.getText();
+            };
+        }
+        return new DebeziumRow(columns, values);
+    }
+}
@@ -2,7 +2,6 @@ package com.verifix.usersync.mapper;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.ibm.icu.text.Transliterator;
 import com.verifix.usersync.model.UserData;
 import com.verifix.usersync.model.keycloak.KeycloakCredential;
 import com.verifix.usersync.model.keycloak.KeycloakCredentialData;
@@ -19,13 +18,13 @@ import java.util.Map;
 @RequiredArgsConstructor
 @Slf4j
 public class KeycloakMapper {
-    private static final Transliterator transliterator = Transliterator.getInstance("Cyrillic-Latin");
     private final ObjectMapper objectMapper;
+    private final LoginNormalizer loginNormalizer;
 
     public KeycloakUser mapToKeycloakUser(UserData userData) {
         return new KeycloakUser(
                 null, // ID will be set by Keycloak
-                prepareLogin(userData),
+                loginNormalizer.normalize(userData.login()),
                 "A".equals(userData.state()),
                 userData.getFirstName(),
                 userData.getLastName(),
@@ -37,17 +36,6 @@ public class KeycloakMapper {
 
     }
 
-    private String prepareLogin(UserData userData) {
-        String transliterated = transliterator.transliterate(userData.login());
-
-        // Remove all characters except alphanumeric, @, dash, underscore, and dot
-        // Replace spaces with underscores
-        return transliterated
-                .toLowerCase()
-                .replace(" ", "_")  // or use .replace(" ", "") to remove spaces
-                .replaceAll("[^a-z0-9@._-]", "");
-    }
-
     private List<KeycloakCredential> prepareCredentials(UserData userData) {
         if (userData.password() == null || userData.password().isEmpty()) {
             return null;
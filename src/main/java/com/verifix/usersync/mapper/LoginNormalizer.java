@@ -0,0 +1,96 @@
+package com.verifix.usersync.mapper;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.ibm.icu.text.Transliterator;
+import org.springframework.stereotype.Component;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Turns a login into a Keycloak username: Cyrillic is transliterated to Latin, letters are lowercased,
+ * spaces become underscores and everything except {@code a-z 0-9 @ . _ -} is dropped.
+ * ASCII logins skip ICU entirely. Non-ASCII results are memoized, and transliterators are pooled
+ * because a single instance must not be shared between threads.
+ */
+@Component
+public class LoginNormalizer {
+    private static final String TRANSLITERATOR_ID = "Cyrillic-Latin";
+    private static final int MEMO_SIZE = 10_000;
+
+    private final Queue<Transliterator> transliterators = new ConcurrentLinkedQueue<>();
+    private final Cache<String, String> memo = Caffeine.newBuilder()
+            .maximumSize(MEMO_SIZE)
+            .build();
+
+    public String normalize(String login) {
+        if (login == null) {
+            return null;
+        }
+        if (isAscii(login)) {
+            return filter(login);
+        }
+        return memo.get(login, key -> filter(transliterate(key)));
+    }
+
+    private String transliterate(String login) {
+        Transliterator transliterator = transliterators.poll();
+        if (transliterator == null) {
+            transliterator = Transliterator.getInstance(TRANSLITERATOR_ID);
+        }
+        try {
+            return transliterator.transliterate(login);
+        } finally {
+            transliterators.offer(transliterator);
+        }
+    }
+
+    /**
+     * Lowercase, replace spaces and drop disallowed characters in one pass.
+     * Returns the input itself when nothing changes.
+     */
+    static String filter(String value) {
+        StringBuilder result = null;
+        int length = value.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            char mapped = map(c);
+            if (mapped == c && result == null) {
+                continue;
+            }
+            if (result == null) {
+                result = new StringBuilder(length);
+                result.append(value, 0, i);
+            }
+            if (mapped != 0) {
+                result.append(mapped);
+            }
+        }
+        return result == null ? value : result.toString();
+    }
+
+    /**
+     * The allowed character for {@code c}, or 0 if it is dropped
+     */
+    private static char map(char c) {
+        if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '@' || c == '.' || c == '_' || c == '-') {
+            return c;
+        }
+        if (c == ' ') {
+            return '_';
+        }
+        char lower = Character.toLowerCase(c);
+        return lower >= 'a' && lower <= 'z' ? lower : 0;
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,29 +1,51 @@
 package com.verifix.usersync.mapper;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.verifix.usersync.config.ApplicationProperties;
 import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumColumns;
 import com.verifix.usersync.model.debezium.DebeziumPayload;
+import com.verifix.usersync.model.debezium.DebeziumRow;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.Objects;
 
 @Component
 @Slf4j
 public class MessageMapper {
-    private final List<String> trackedColumns;
+    private static final List<String> MAPPED_COLUMNS = List.of(
+            "COMPANY_ID", "USER_ID", "NAME", "LOGIN", "PASSWORD", "EMAIL", "STATE");
 
-    public MessageMapper(ApplicationProperties properties) {
-        this.trackedColumns = properties.trackedColumns();
+    private final int[] trackedColumns;
+    private final DebeziumEnvelopeParser parser;
+
+    public MessageMapper(ApplicationProperties properties, ObjectMapper objectMapper) {
+        List<String> extracted = new ArrayList<>(properties.trackedColumns());
+        extracted.addAll(MAPPED_COLUMNS);
+        DebeziumColumns columns = DebeziumColumns.of(extracted);
+
+        this.trackedColumns = properties.trackedColumns().stream().mapToInt(columns::indexOf).distinct().toArray();
+        this.parser = new DebeziumEnvelopeParser(objectMapper.getFactory(), columns);
+    }
+
+    /**
+     * Decode the payload of a Debezium envelope, keeping only tracked and mapped columns.
+     * Returns null when the envelope has no payload.
+     */
+    public DebeziumPayload parse(byte[] value) throws IOException {
+        return parser.parse(value);
     }
 
     /**
      * Check if relevant fields have changed
      */
-    public boolean hasRelevantChanges(JsonNode before, JsonNode after) {
+    public boolean hasRelevantChanges(DebeziumRow before, DebeziumRow after) {
         // For new records, all tracked fields are considered changed
         if (before == null && after != null) {
             return true;
@@ -34,8 +56,11 @@ public class MessageMapper {
         }
         // For updates, check if any tracked field changed
         if (after != null) {
-            return trackedColumns.stream()
-                    .anyMatch(column -> !nodeEquals(before.get(column), after.get(column)));
+            for (int column : trackedColumns) {
+                if (!Objects.equals(before.get(column), after.get(column))) {
+                    return true;
+                }
+            }
         }
 
         return false;
@@ -45,28 +70,28 @@ public class MessageMapper {
      * Map Debezium message payload to user object
      */
     public UserData mapToUserData(DebeziumPayload payload) {
-        JsonNode data = payload.after() != null ? payload.after() : payload.before();
+        DebeziumRow data = payload.after() != null ? payload.after() : payload.before();
 
         return new UserData(
                 getLongValue(data.get("COMPANY_ID")),
                 getLongValue(data.get("USER_ID")),
-                getTextValue(data.get("NAME")),
-                getTextValue(data.get("LOGIN")),
-                getTextValue(data.get("PASSWORD")),
-                getTextValue(data.get("EMAIL")),
-                getTextValue(data.get("STATE"))
+                data.get("NAME"),
+                data.get("LOGIN"),
+                data.get("PASSWORD"),
+                data.get("EMAIL"),
+                data.get("STATE")
         );
     }
 
-    private Long getLongValue(JsonNode node) {
-        if (node == null || node.isNull()) {
+    private Long getLongValue(String value) {
+        if (value == null) {
             return null;
         }
 
         try {
-            return Long.parseLong(node.asText());
+            return Long.parseLong(value);
         } catch (NumberFormatException e) {
-            return decodeBase64Number(node.asText());
+            return decodeBase64Number(value);
         }
     }
 
@@ -83,14 +108,4 @@ public class MessageMapper {
         }
     }
 
-    private String getTextValue(JsonNode node) {
-        return node != null && !node.isNull() ? node.asText() : null;
-    }
-
-    private boolean nodeEquals(JsonNode a, JsonNode b) {
-        if (a == null && b == null) return true;
-        if (a == null || b == null) return false;
-        return a.equals(b);
-    }
-
-}
\ No newline at end of file
+}
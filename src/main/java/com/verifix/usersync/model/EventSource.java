@@ -0,0 +1,17 @@
+package com.verifix.usersync.model;
+
+/**
+ * The record a change event was decoded from. Topic, partition and offset always refer to the original
+ * record on the main topic, also when the event was read back from a retry topic.
+ *
+ * @param attempts failed delivery rounds so far; 0 for records from the main topic
+ */
+public record EventSource(
+        String key,
+        byte[] value,
+        String topic,
+        int partition,
+        long offset,
+        int attempts
+) {
+}
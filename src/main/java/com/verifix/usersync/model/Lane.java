@@ -0,0 +1,21 @@
+package com.verifix.usersync.model;
+
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+
+/**
+ * Scheduling lane of a user change. Live changes get most of the Keycloak concurrency while both lanes have work.
+ */
+public enum Lane {
+    /**
+     * Creates, updates and deletes happening in the source now
+     */
+    LIVE,
+    /**
+     * Snapshot reads and reconciliation, which can come by the million
+     */
+    BACKFILL;
+
+    public static Lane of(DebeziumOperation operation) {
+        return operation == DebeziumOperation.READ ? BACKFILL : LIVE;
+    }
+}
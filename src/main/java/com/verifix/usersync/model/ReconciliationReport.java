@@ -0,0 +1,29 @@
+package com.verifix.usersync.model;
+
+import java.time.Instant;
+
+/**
+ * Outcome of a reconciliation run. {@code finishedAt} is null while the run is in progress.
+ *
+ * @param keycloakUsers users in the Keycloak targets that carry a userId attribute
+ * @param sourceUsers   users whose latest source record is not a delete
+ * @param superseded    changes skipped because the live path applied a newer change of the user meanwhile
+ * @param orphans       users in Keycloak that the source does not know
+ * @param skipped       source records that could not be decoded
+ */
+public record ReconciliationReport(
+        Instant startedAt,
+        Instant finishedAt,
+        long keycloakUsers,
+        long sourceUsers,
+        long created,
+        long updated,
+        long deleted,
+        long unchanged,
+        long superseded,
+        long orphans,
+        long failed,
+        long skipped,
+        String error
+) {
+}
@@ -0,0 +1,30 @@
+package com.verifix.usersync.model;
+
+import java.time.Duration;
+
+/**
+ * Outcome of replaying a dump file
+ *
+ * @param resumedAt   lines an earlier run had finished, skipped by this one
+ * @param records     lines read by this run
+ * @param applied     collapsed changes applied one by one
+ * @param imported    snapshot reads bulk imported
+ * @param skipped     records without relevant changes and changes superseded by a later one of the same user
+ * @param undecodable records that could not be decoded
+ * @param failed      records of users whose changes failed after every attempt
+ */
+public record ReplayReport(
+        long resumedAt,
+        long records,
+        long applied,
+        long imported,
+        long skipped,
+        long undecodable,
+        long failed,
+        Duration elapsed
+) {
+
+    public double recordsPerSecond() {
+        return elapsed.isZero() ? 0 : records * 1e9 / elapsed.toNanos();
+    }
+}
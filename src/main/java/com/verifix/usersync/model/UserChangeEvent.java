@@ -0,0 +1,24 @@
+package com.verifix.usersync.model;
+
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import com.verifix.usersync.model.debezium.DebeziumSource;
+
+/**
+ * A decoded Debezium change for a single user together with the record it came from
+ *
+ * @param position position of the change in the database log, {@link DebeziumSource#NONE} when unknown
+ */
+public record UserChangeEvent(
+        DebeziumOperation operation,
+        UserData userData,
+        EventSource source,
+        long position
+) {
+    public UserChangeEvent(DebeziumOperation operation, UserData userData, EventSource source) {
+        this(operation, userData, source, DebeziumSource.NONE);
+    }
+
+    public boolean isDelete() {
+        return operation == DebeziumOperation.DELETE;
+    }
+}
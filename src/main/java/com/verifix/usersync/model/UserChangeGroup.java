@@ -0,0 +1,28 @@
+package com.verifix.usersync.model;
+
+import java.util.List;
+
+/**
+ * All events of one poll that belong to the same user, plus the operations they collapse to
+ *
+ * @param events    the original events in record order
+ * @param collapsed the operations that still have to be applied, in order
+ */
+public record UserChangeGroup(
+        Long userId,
+        List<UserChangeEvent> events,
+        List<UserChangeEvent> collapsed
+) {
+
+    /**
+     * Live if any operation still to be applied is live; a user's snapshot read must not hold up its password change
+     */
+    public Lane lane() {
+        for (UserChangeEvent event : collapsed) {
+            if (Lane.of(event.operation()) == Lane.LIVE) {
+                return Lane.LIVE;
+            }
+        }
+        return Lane.BACKFILL;
+    }
+}
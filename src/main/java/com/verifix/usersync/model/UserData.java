@@ -12,23 +12,53 @@ public record UserData(
         String state
 ) {
     public String getFirstName() {
-        if (name == null || name.trim().isEmpty()) {
+        if (name == null) {
             return "";
         }
 
-        String[] parts = name.trim().split("\\s+");
-        return parts[0];
+        String trimmed = name.trim();
+        int end = 0;
+        while (end < trimmed.length() && !isSeparator(trimmed.charAt(end))) {
+            end++;
+        }
+        return trimmed.substring(0, end);
     }
 
+    /**
+     * Everything after the first word, with runs of whitespace collapsed to a single space
+     */
     public String getLastName() {
-        if (name == null || name.trim().isEmpty()) {
+        if (name == null) {
             return "";
         }
 
-        String[] parts = name.trim().split("\\s+");
-        if (parts.length > 1) {
-            return String.join(" ", java.util.Arrays.copyOfRange(parts, 1, parts.length));
+        String trimmed = name.trim();
+        int start = 0;
+        while (start < trimmed.length() && !isSeparator(trimmed.charAt(start))) {
+            start++;
+        }
+
+        StringBuilder lastName = new StringBuilder(trimmed.length() - start);
+        boolean inSeparator = true;
+        for (int i = start; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (isSeparator(c)) {
+                inSeparator = true;
+                continue;
+            }
+            if (inSeparator && !lastName.isEmpty()) {
+                lastName.append(' ');
+            }
+            inSeparator = false;
+            lastName.append(c);
         }
-        return "";
+        return lastName.toString();
+    }
+
+    /**
+     * Same set as the regex class {@code \s}
+     */
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,43 @@
+package com.verifix.usersync.model.debezium;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fixed set of row columns extracted from Debezium envelopes, each with a stable index
+ */
+public final class DebeziumColumns {
+    private final List<String> names;
+    private final Map<String, Integer> indexes;
+
+    private DebeziumColumns(List<String> names) {
+        this.names = names;
+        this.indexes = new HashMap<>(names.size() * 2);
+        for (int i = 0; i < names.size(); i++) {
+            indexes.put(names.get(i), i);
+        }
+    }
+
+    public static DebeziumColumns of(Collection<String> names) {
+        return new DebeziumColumns(List.copyOf(new LinkedHashSet<>(names)));
+    }
+
+    /**
+     * Index of the column, or -1 if it is not extracted
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index != null ? index : -1;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public List<String> names() {
+        return names;
+    }
+}
@@ -1,11 +1,16 @@
 package com.verifix.usersync.model.debezium;
 
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.JsonNode;
-
 public record DebeziumPayload(
-        @JsonProperty("op") String operation,
-        @JsonProperty("before") JsonNode before,
-        @JsonProperty("after") JsonNode after
+        String operation,
+        DebeziumRow before,
+        DebeziumRow after,
+        DebeziumSource source
 ) {
-}
\ No newline at end of file
+
+    /**
+     * Position of the change in the database log, {@link DebeziumSource#NONE} without a source block
+     */
+    public long position() {
+        return source != null ? source.position() : DebeziumSource.NONE;
+    }
+}
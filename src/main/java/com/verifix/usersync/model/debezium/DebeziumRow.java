@@ -0,0 +1,24 @@
+package com.verifix.usersync.model.debezium;
+
+/**
+ * Flat before/after image of a row holding only the extracted columns.
+ * Values are kept as their JSON text; a missing column and an explicit null are both null.
+ */
+public final class DebeziumRow {
+    private final DebeziumColumns columns;
+    private final String[] values;
+
+    public DebeziumRow(DebeziumColumns columns, String[] values) {
+        this.columns = columns;
+        this.values = values;
+    }
+
+    public String get(String column) {
+        int index = columns.indexOf(column);
+        return index >= 0 ? values[index] : null;
+    }
+
+    public String get(int index) {
+        return values[index];
+    }
+}
@@ -0,0 +1,25 @@
+package com.verifix.usersync.model.debezium;
+
+/**
+ * Where in the database log a change was read. Only the fields that order changes are kept.
+ *
+ * @param lsn      PostgreSQL log sequence number, {@link #NONE} when absent
+ * @param scn      Oracle system change number, {@link #NONE} when absent
+ * @param tsMs     when the change was made in the database, or read by a snapshot
+ * @param snapshot whether the row was read by a snapshot rather than streamed from the log
+ */
+public record DebeziumSource(
+        long lsn,
+        long scn,
+        long tsMs,
+        boolean snapshot
+) {
+    public static final long NONE = -1;
+
+    /**
+     * Position of the change in the database log, {@link #NONE} when the connector reports neither an LSN nor an SCN
+     */
+    public long position() {
+        return lsn != NONE ? lsn : scn;
+    }
+}
@@ -16,4 +16,8 @@ public record KeycloakUser(
         List<KeycloakCredential> credentials,
         Map<String, List<String>> attributes
 ) {
+
+    public KeycloakUser withId(String id) {
+        return new KeycloakUser(id, username, enabled, firstName, lastName, email, credentials, attributes);
+    }
 }
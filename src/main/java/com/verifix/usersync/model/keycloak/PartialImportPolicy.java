@@ -0,0 +1,10 @@
+package com.verifix.usersync.model.keycloak;
+
+/**
+ * What Keycloak's partialImport does when a user already exists
+ */
+public enum PartialImportPolicy {
+    FAIL,
+    SKIP,
+    OVERWRITE
+}
@@ -0,0 +1,12 @@
+package com.verifix.usersync.model.keycloak;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record PartialImportRequest(
+        PartialImportPolicy ifResourceExists,
+        List<KeycloakUser> users
+) {
+}
@@ -0,0 +1,23 @@
+package com.verifix.usersync.model.keycloak;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.List;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record PartialImportResult(
+        int added,
+        int skipped,
+        int overwritten,
+        List<Entry> results
+) {
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record Entry(
+            String action,
+            String resourceType,
+            String resourceName,
+            String id
+    ) {
+    }
+}
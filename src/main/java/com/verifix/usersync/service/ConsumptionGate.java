@@ -0,0 +1,71 @@
+package com.verifix.usersync.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pauses all Kafka listener containers while at least one reason to hold back is active.
+ * Paused consumers keep their partitions and keep polling, so pausing never triggers a rebalance.
+ * How long each reason held consumption back is published as usersync.consumption.pause{reason}, so
+ * deliberate load shedding can be told apart from lag.
+ */
+@Component
+@Slf4j
+public class ConsumptionGate {
+    public static final String CIRCUIT_BREAKER = "circuit-breaker";
+    public static final String BACKLOG = "backlog";
+    public static final String LATENCY = "latency";
+
+    private final KafkaListenerEndpointRegistry registry;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Long> pausedSince = new HashMap<>();
+
+    public ConsumptionGate(KafkaListenerEndpointRegistry registry, MeterRegistry meterRegistry) {
+        this.registry = registry;
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("usersync.consumption.paused", this, gate -> gate.isPaused() ? 1 : 0)
+                .description("Whether consumption is paused")
+                .register(meterRegistry);
+    }
+
+    public synchronized void pause(String reason) {
+        if (pausedSince.putIfAbsent(reason, System.nanoTime()) == null && pausedSince.size() == 1) {
+            log.warn("Pausing consumption: {}", reason);
+            registry.getListenerContainers().forEach(MessageListenerContainer::pause);
+        }
+    }
+
+    public synchronized void resume(String reason) {
+        Long since = pausedSince.remove(reason);
+        if (since == null) {
+            return;
+        }
+        Timer.builder("usersync.consumption.pause")
+                .description("Time consumption was held back, by reason")
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .record(System.nanoTime() - since, TimeUnit.NANOSECONDS);
+
+        if (pausedSince.isEmpty()) {
+            log.info("Resuming consumption, {} cleared", reason);
+            registry.getListenerContainers().forEach(MessageListenerContainer::resume);
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return !pausedSince.isEmpty();
+    }
+
+    public synchronized boolean isPaused(String reason) {
+        return pausedSince.containsKey(reason);
+    }
+}
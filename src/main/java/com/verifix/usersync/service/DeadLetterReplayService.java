@@ -0,0 +1,87 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.model.EventSource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends dead-lettered records back through the retry tiers. Progress is kept in a consumer group of its own,
+ * so every dead-lettered record is replayed once.
+ */
+@Service
+@Slf4j
+public class DeadLetterReplayService {
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(5);
+
+    private final ConsumerFactory<String, byte[]> consumerFactory;
+    private final FailedRecordPublisher failedRecordPublisher;
+    private final String groupId;
+
+    public DeadLetterReplayService(ConsumerFactory<String, byte[]> consumerFactory,
+                                   FailedRecordPublisher failedRecordPublisher,
+                                   @Value("${spring.kafka.consumer.group-id}") String groupId) {
+        this.consumerFactory = consumerFactory;
+        this.failedRecordPublisher = failedRecordPublisher;
+        this.groupId = groupId + "-dlt-replay";
+    }
+
+    /**
+     * Replay up to {@code limit} records that have not been replayed yet. Returns the number replayed.
+     * The call is synchronous; only one replay runs at a time.
+     */
+    public synchronized int replay(int limit) {
+        String topic = failedRecordPublisher.deadLetterTopic();
+        log.info("Replaying up to {} records from {}", limit, topic);
+
+        int replayed = 0;
+        Properties overrides = new Properties();
+        overrides.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        overrides.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+
+        try (Consumer<String, byte[]> consumer = consumerFactory.createConsumer(groupId, null, "-replay", overrides)) {
+            consumer.subscribe(List.of(topic));
+
+            while (replayed < limit) {
+                ConsumerRecords<String, byte[]> records = consumer.poll(POLL_TIMEOUT);
+                if (records.isEmpty()) {
+                    break;
+                }
+
+                List<CompletableFuture<Void>> sends = new ArrayList<>(records.count());
+                Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+                for (ConsumerRecord<String, byte[]> record : records) {
+                    if (replayed == limit) {
+                        break;
+                    }
+                    EventSource source = FailedRecordPublisher.sourceOf(record.key(), record.value(), record.headers());
+                    sends.add(failedRecordPublisher.replay(source));
+                    offsets.put(new TopicPartition(record.topic(), record.partition()), new OffsetAndMetadata(record.offset() + 1));
+                    replayed++;
+                }
+
+                // Commit only what has been written to the retry tier
+                CompletableFuture.allOf(sends.toArray(CompletableFuture[]::new)).join();
+                consumer.commitSync(offsets);
+            }
+        }
+
+        log.info("Replayed {} records from {}", replayed, topic);
+        return replayed;
+    }
+}
@@ -0,0 +1,314 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.EventSource;
+import com.verifix.usersync.model.ReplayReport;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserChangeGroup;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays a dump of Debezium envelopes to Keycloak without Kafka, for migrations and disaster recovery. Runs on
+ * startup when {@code app.replay.file} is set, then exits with status 1 if any record failed.
+ * <p>
+ * The dump is read in batches. Each batch is decoded and collapsed per user like a poll; snapshot reads are bulk
+ * imported when snapshot import is enabled, everything else is applied with {@code app.replay.parallelism} users at a
+ * time. Both go through the {@link UserChangeApplier}, so they are retried, counted and move the users' marks as on
+ * the consumer. A batch finishes before the next one starts, which keeps the order
+ * of a user's changes across batches. After each batch the checkpoint records how far the run got, and an
+ * interrupted run resumes there. Records that cannot be decoded or synced are appended to the failed file, which can
+ * be replayed in turn.
+ */
+@Service
+@Slf4j
+public class DumpReplayService implements ApplicationRunner {
+    private final UserChangeDecoder decoder;
+    private final UserChangeCoalescer coalescer;
+    private final SnapshotImportService snapshotImportService;
+    private final UserChangeApplier applier;
+    private final ConfigurableApplicationContext context;
+    private final ApplicationProperties.Replay config;
+
+    public DumpReplayService(UserChangeDecoder decoder,
+                             UserChangeCoalescer coalescer,
+                             SnapshotImportService snapshotImportService,
+                             UserChangeApplier applier,
+                             ConfigurableApplicationContext context,
+                             ApplicationProperties properties) {
+        this.decoder = decoder;
+        this.coalescer = coalescer;
+        this.snapshotImportService = snapshotImportService;
+        this.applier = applier;
+        this.context = context;
+        this.config = properties.replay();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        if (!StringUtils.hasText(config.file())) {
+            return;
+        }
+
+        Path file = Path.of(config.file());
+        ReplayReport report = replay(file,
+                StringUtils.hasText(config.checkpoint()) ? Path.of(config.checkpoint()) : Path.of(config.file() + ".checkpoint"),
+                StringUtils.hasText(config.failedFile()) ? Path.of(config.failedFile()) : Path.of(config.file() + ".failed"));
+
+        log.info("Replayed {}: {} records from line {} in {} ms ({} records/s); applied: {}, imported: {}, skipped: {}, undecodable: {}, failed: {}",
+                file, report.records(), report.resumedAt(), report.elapsed().toMillis(), Math.round(report.recordsPerSecond()),
+                report.applied(), report.imported(), report.skipped(), report.undecodable(), report.failed());
+        int status = report.undecodable() + report.failed() > 0 ? 1 : 0;
+        System.exit(SpringApplication.exit(context, () -> status));
+    }
+
+    /**
+     * Replay the file from its checkpoint, if there is one, to the end
+     */
+    public ReplayReport replay(Path file, Path checkpointFile, Path failedFile) throws IOException {
+        Checkpoint checkpoint = Checkpoint.load(checkpointFile, file);
+        long resumedAt = checkpoint.line();
+        long start = System.nanoTime();
+        Counts counts = new Counts();
+        if (resumedAt > 0) {
+            log.info("Resuming replay of {} after line {}", file, resumedAt);
+        }
+
+        try (NdjsonReader reader = NdjsonReader.open(file, checkpoint.line(), checkpoint.offset());
+             FailedRecords failed = FailedRecords.open(failedFile, checkpoint.failedSize())) {
+            List<UserChangeEvent> batch = new ArrayList<>(config.batchSize());
+            boolean more = true;
+            while (more) {
+                batch.clear();
+                int read = 0;
+                byte[] line;
+                while (read < config.batchSize() && (line = reader.next()) != null) {
+                    read++;
+                    UserChangeEvent event = decode(file, reader.line() - 1, line, failed, counts);
+                    if (event != null) {
+                        batch.add(event);
+                    }
+                }
+                more = read == config.batchSize();
+                counts.records.add(read);
+
+                sync(batch, failed, counts);
+                failed.flush();
+                checkpoint = new Checkpoint(file.toAbsolutePath().toString(), reader.line(), reader.offset(), failed.size());
+                checkpoint.save(checkpointFile);
+                log.debug("Replayed {} up to line {}", file, reader.line());
+            }
+        }
+
+        return new ReplayReport(resumedAt, counts.records.sum(),
+                counts.applied.sum(), counts.imported.sum(), counts.skipped.sum(), counts.undecodable.sum(),
+                counts.failed.sum(), Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private UserChangeEvent decode(Path file, long line, byte[] value, FailedRecords failed, Counts counts) throws IOException {
+        if (value.length == 0) {
+            return null;
+        }
+        try {
+            UserChangeEvent event = decoder.decodeOrThrow(new EventSource(null, value, file.getFileName().toString(), 0, line, 0));
+            if (event == null) {
+                counts.skipped.increment();
+            }
+            return event;
+        } catch (Exception e) {
+            log.error("Failed to decode line {} of {}: {}", line + 1, file, e.getMessage());
+            counts.undecodable.increment();
+            failed.write(value);
+            return null;
+        }
+    }
+
+    /**
+     * Sync one batch and wait for it. Snapshot reads are imported first; users the import did not confirm join the
+     * others, which are synced one by one.
+     */
+    private void sync(List<UserChangeEvent> batch, FailedRecords failed, Counts counts) {
+        List<UserChangeGroup> groups = coalescer.coalesce(batch);
+        List<UserChangeGroup> single = new ArrayList<>(groups.size());
+        List<UserChangeGroup> importable = new ArrayList<>();
+        for (UserChangeGroup group : groups) {
+            counts.skipped.add(group.events().size() - group.collapsed().size());
+            (snapshotImportService.accepts(group) ? importable : single).add(group);
+        }
+
+        Semaphore permits = new Semaphore(config.parallelism());
+        List<CompletableFuture<Void>> imports = new ArrayList<>();
+        Set<Long> notImported = new HashSet<>();
+        int chunkSize = snapshotImportService.chunkSize();
+        for (int start = 0; start < importable.size(); start += chunkSize) {
+            List<UserChangeGroup> chunk = importable.subList(start, Math.min(start + chunkSize, importable.size()));
+            permits.acquireUninterruptibly();
+            imports.add(applier.importSnapshot(chunk)
+                    .thenAccept(rejected -> {
+                        synchronized (notImported) {
+                            notImported.addAll(rejected);
+                        }
+                        counts.imported.add(chunk.size() - rejected.size());
+                    })
+                    .whenComplete((result, error) -> permits.release()));
+        }
+        CompletableFuture.allOf(imports.toArray(CompletableFuture[]::new)).join();
+        for (UserChangeGroup group : importable) {
+            if (notImported.contains(group.userId())) {
+                single.add(group);
+            }
+        }
+
+        List<CompletableFuture<Void>> syncs = new ArrayList<>(single.size());
+        for (UserChangeGroup group : single) {
+            permits.acquireUninterruptibly();
+            syncs.add(applier.applyWithRetry(group)
+                    .handle((result, error) -> {
+                        if (error == null) {
+                            counts.applied.add(group.collapsed().size());
+                        } else {
+                            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                            log.error("Failed to replay userId {}: {}", group.userId(), cause.getMessage());
+                            counts.failed.add(group.collapsed().size());
+                            group.collapsed().forEach(event -> failed.writeQuietly(event.source().value()));
+                        }
+                        return (Void) null;
+                    })
+                    .whenComplete((result, error) -> permits.release()));
+        }
+        CompletableFuture.allOf(syncs.toArray(CompletableFuture[]::new)).join();
+    }
+
+    private static final class Counts {
+        private final LongAdder records = new LongAdder();
+        private final LongAdder applied = new LongAdder();
+        private final LongAdder imported = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder undecodable = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+    }
+
+    /**
+     * How far a run got: lines finished, the byte offset after them and the size of the failed file at that point
+     */
+    record Checkpoint(String file, long line, long offset, long failedSize) {
+
+        static Checkpoint load(Path checkpointFile, Path file) throws IOException {
+            String path = file.toAbsolutePath().toString();
+            if (!Files.exists(checkpointFile)) {
+                return new Checkpoint(path, 0, 0, 0);
+            }
+
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            if (!path.equals(properties.getProperty("file"))) {
+                throw new IllegalStateException("Checkpoint " + checkpointFile + " belongs to " + properties.getProperty("file"));
+            }
+            return new Checkpoint(path,
+                    Long.parseLong(properties.getProperty("line")),
+                    Long.parseLong(properties.getProperty("offset")),
+                    Long.parseLong(properties.getProperty("failed-size")));
+        }
+
+        /**
+         * Write to a temporary file and move it over the previous checkpoint
+         */
+        void save(Path checkpointFile) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("file", file);
+            properties.setProperty("line", Long.toString(line));
+            properties.setProperty("offset", Long.toString(offset));
+            properties.setProperty("failed-size", Long.toString(failedSize));
+
+            Path parent = checkpointFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, checkpointFile.getFileName().toString(), ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                properties.store(writer, "usersync replay");
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Failed records, one per line. Cut back to the size recorded in the checkpoint on resume, so records of the
+     * interrupted batch are not written twice.
+     */
+    private static final class FailedRecords implements AutoCloseable {
+        private final FileChannel channel;
+        private final OutputStream out;
+
+        private FailedRecords(FileChannel channel) {
+            this.channel = channel;
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel));
+        }
+
+        static FailedRecords open(Path file, long size) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.truncate(size);
+            channel.position(size);
+            return new FailedRecords(channel);
+        }
+
+        synchronized void write(byte[] record) throws IOException {
+            out.write(record);
+            out.write('\n');
+        }
+
+        void writeQuietly(byte[] record) {
+            try {
+                write(record);
+            } catch (IOException e) {
+                log.error("Failed to keep a failed record: {}", e.getMessage());
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        synchronized long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try (channel) {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.EventSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Moves records whose changes could not be synced to the next retry tier, and finally to the dead-letter topic.
+ * Each tier is a topic with a fixed delay, so records in a tier become due in the order they were written.
+ */
+@Component
+@Slf4j
+public class FailedRecordPublisher {
+    public static final String HEADER_ORIGINAL_TOPIC = "usersync-original-topic";
+    public static final String HEADER_ORIGINAL_PARTITION = "usersync-original-partition";
+    public static final String HEADER_ORIGINAL_OFFSET = "usersync-original-offset";
+    public static final String HEADER_ATTEMPTS = "usersync-attempts";
+    public static final String HEADER_DUE = "usersync-retry-due";
+    public static final String HEADER_EXCEPTION = "usersync-exception";
+    public static final String HEADER_EXCEPTION_MESSAGE = "usersync-exception-message";
+
+    private final KafkaTemplate<String, byte[]> kafkaTemplate;
+    private final Map<String, Counter> redirectedCounters = new HashMap<>();
+    private final List<Duration> delays;
+    private final List<String> retryTopics;
+    private final String deadLetterTopic;
+
+    public FailedRecordPublisher(KafkaTemplate<String, byte[]> kafkaTemplate,
+                                 ApplicationProperties properties,
+                                 MeterRegistry meterRegistry) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.delays = properties.retry().delays();
+
+        String topic = properties.kafka().topic();
+        this.retryTopics = new ArrayList<>(delays.size());
+        for (int tier = 1; tier <= delays.size(); tier++) {
+            retryTopics.add(topic + "-retry-" + tier);
+        }
+        this.deadLetterTopic = topic + "-dlt";
+
+        for (String destination : retryTopics) {
+            redirectedCounters.put(destination, meterRegistry.counter("usersync.records.redirected", "destination", destination));
+        }
+        redirectedCounters.put(deadLetterTopic, meterRegistry.counter("usersync.records.redirected", "destination", deadLetterTopic));
+    }
+
+    public List<String> retryTopics() {
+        return retryTopics;
+    }
+
+    public String deadLetterTopic() {
+        return deadLetterTopic;
+    }
+
+    /**
+     * Send the record to the tier after the one it failed in, or to the dead-letter topic once all tiers are used up
+     */
+    public CompletableFuture<Void> retry(EventSource source, Throwable cause) {
+        int attempts = source.attempts() + 1;
+        if (attempts > delays.size()) {
+            return deadLetter(source, cause);
+        }
+
+        long due = System.currentTimeMillis() + delays.get(attempts - 1).toMillis();
+        log.warn("Sending record {}-{}@{} to retry tier {}, due in {}",
+                source.topic(), source.partition(), source.offset(), attempts, delays.get(attempts - 1));
+        return send(retryTopics.get(attempts - 1), source, attempts, due, cause);
+    }
+
+    /**
+     * Send the record to the dead-letter topic right away
+     */
+    public CompletableFuture<Void> deadLetter(EventSource source, Throwable cause) {
+        int attempts = source.attempts() + 1;
+        log.error("Sending record {}-{}@{} to dead-letter topic after {} attempts: {}",
+                source.topic(), source.partition(), source.offset(), attempts, cause.getMessage());
+        return send(deadLetterTopic, source, attempts, null, cause);
+    }
+
+    /**
+     * Send a dead-lettered record back to the first retry tier, due immediately and with its attempts reset
+     */
+    public CompletableFuture<Void> replay(EventSource source) {
+        return send(retryTopics.getFirst(), source, 0, System.currentTimeMillis(), null);
+    }
+
+    private CompletableFuture<Void> send(String destination, EventSource source, int attempts, Long due, Throwable cause) {
+        Headers headers = new RecordHeaders();
+        header(headers, HEADER_ORIGINAL_TOPIC, source.topic());
+        header(headers, HEADER_ORIGINAL_PARTITION, String.valueOf(source.partition()));
+        header(headers, HEADER_ORIGINAL_OFFSET, String.valueOf(source.offset()));
+        header(headers, HEADER_ATTEMPTS, String.valueOf(attempts));
+        if (due != null) {
+            header(headers, HEADER_DUE, String.valueOf(due));
+        }
+        if (cause != null) {
+            header(headers, HEADER_EXCEPTION, cause.getClass().getName());
+            header(headers, HEADER_EXCEPTION_MESSAGE, String.valueOf(cause.getMessage()));
+        }
+
+        ProducerRecord<String, byte[]> record = new ProducerRecord<>(destination, null, source.key(), source.value(), headers);
+        return kafkaTemplate.send(record)
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        log.error("Failed to send record {}-{}@{} to {}: {}",
+                                source.topic(), source.partition(), source.offset(), destination, error.getMessage());
+                    } else {
+                        redirectedCounters.get(destination).increment();
+                    }
+                })
+                .thenApply(result -> null);
+    }
+
+    private static void header(Headers headers, String name, String value) {
+        headers.add(name, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Rebuild the source of a record read from a retry or dead-letter topic
+     */
+    public static EventSource sourceOf(String key, byte[] value, Headers headers) {
+        return new EventSource(
+                key,
+                value,
+                headerValue(headers, HEADER_ORIGINAL_TOPIC),
+                Integer.parseInt(headerValue(headers, HEADER_ORIGINAL_PARTITION)),
+                Long.parseLong(headerValue(headers, HEADER_ORIGINAL_OFFSET)),
+                Integer.parseInt(headerValue(headers, HEADER_ATTEMPTS)));
+    }
+
+    public static String headerValue(Headers headers, String name) {
+        Header header = headers.lastHeader(name);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,98 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.Lane;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pauses consumption when the dispatcher backlog or the average Keycloak latency reaches its high-water mark and
+ * resumes it once the value is back at the low-water mark. The listener never waits for Keycloak, so the poll loop
+ * (and with it the group membership) stays alive however far behind the sync is.
+ * With several Keycloak targets, the latency of the fastest one counts.
+ * The backfill lane has marks of its own, set deeper, so live changes behind a snapshot are read and can take their
+ * share of the slots. The latency mark only holds while work is in flight; without requests the average would never
+ * recover.
+ */
+@Component
+@Slf4j
+public class FlowController {
+    private final UserEventDispatcher dispatcher;
+    private final KeycloakTargets targets;
+    private final ConsumptionGate consumptionGate;
+    private final ApplicationProperties.FlowControl config;
+    private final ScheduledExecutorService scheduler;
+
+    public FlowController(UserEventDispatcher dispatcher,
+                          KeycloakTargets targets,
+                          ConsumptionGate consumptionGate,
+                          ApplicationProperties properties) {
+        this.dispatcher = dispatcher;
+        this.targets = targets;
+        this.consumptionGate = consumptionGate;
+        this.config = properties.flowControl();
+
+        if (config.enabled()) {
+            long interval = config.checkInterval().toMillis();
+            scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("flow-control").daemon().factory());
+            scheduler.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Compare backlog and latency with the water marks; also called right after a batch was handed off
+     */
+    public void check() {
+        if (!config.enabled()) {
+            return;
+        }
+        try {
+            int live = dispatcher.backlog(Lane.LIVE);
+            int backfill = dispatcher.backlog(Lane.BACKFILL);
+            if (live >= config.backlogHighWater() || backfill >= config.backfillHighWater()) {
+                consumptionGate.pause(ConsumptionGate.BACKLOG);
+            } else if (live <= config.backlogLowWater() && backfill <= config.backfillLowWater()) {
+                consumptionGate.resume(ConsumptionGate.BACKLOG);
+            }
+
+            int backlog = live + backfill;
+            Duration latency = latency();
+            if (backlog > 0 && latency.compareTo(config.latencyHighWater()) >= 0) {
+                consumptionGate.pause(ConsumptionGate.LATENCY);
+            } else if (backlog == 0 || latency.compareTo(config.latencyLowWater()) <= 0) {
+                consumptionGate.resume(ConsumptionGate.LATENCY);
+            }
+        } catch (Exception e) {
+            log.error("Flow control check failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Lowest average latency among the targets that answered at all; one slow target must not hold up the others
+     */
+    private Duration latency() {
+        Duration lowest = null;
+        for (KeycloakTarget target : targets.all()) {
+            Duration latency = target.limiter().averageLatency();
+            if (!latency.isZero() && (lowest == null || latency.compareTo(lowest) < 0)) {
+                lowest = latency;
+            }
+        }
+        return lowest != null ? lowest : Duration.ZERO;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Compacted topic of userId to Keycloak ID mappings, shared by all instances. Every mapping an instance learns is
+ * published, a tombstone when it goes stale; restoring the topic gives a new instance the ID cache of the others.
+ */
+@Component
+@Slf4j
+public class IdMappingChangelog {
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+
+    private final KafkaTemplate<String, byte[]> kafkaTemplate;
+    private final ConsumerFactory<String, byte[]> consumerFactory;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final String topic;
+    private final String groupId;
+    // Restored up to here; a catch-up only reads what was published since
+    private final Map<TopicPartition, Long> positions = new HashMap<>();
+    // Held while catching up, so one thread reads and positions stay consistent
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public IdMappingChangelog(KafkaTemplate<String, byte[]> kafkaTemplate,
+                              ConsumerFactory<String, byte[]> consumerFactory,
+                              MeterRegistry meterRegistry,
+                              ApplicationProperties properties,
+                              @Value("${spring.kafka.consumer.group-id}") String groupId) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.consumerFactory = consumerFactory;
+        this.meterRegistry = meterRegistry;
+        ApplicationProperties.IdCache config = properties.keycloak().idCache();
+        this.enabled = config.changelogEnabled();
+        this.topic = config.changelogTopic() == null || config.changelogTopic().isBlank()
+                ? properties.kafka().topic() + "-id-mappings"
+                : config.changelogTopic();
+        this.groupId = groupId + "-id-mappings";
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String topic() {
+        return topic;
+    }
+
+    /**
+     * Publish a mapping, or a tombstone if {@code keycloakId} is null. Fire and forget: a lost mapping only costs
+     * another instance a lookup.
+     */
+    public void publish(Long userId, String keycloakId) {
+        if (!enabled) {
+            return;
+        }
+        byte[] value = keycloakId != null ? keycloakId.getBytes(StandardCharsets.UTF_8) : null;
+        kafkaTemplate.send(topic, userId.toString(), value).whenComplete((result, error) -> {
+            if (error != null) {
+                log.warn("Failed to publish Keycloak ID mapping of userId {}: {}", userId, error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Read everything published since the last call, from the beginning on the first one, and hand each mapping
+     * to {@code restore}; a null Keycloak ID means the mapping was dropped. Returns the number of records read.
+     * Gives up after half of {@code max.poll.interval.ms}, so a long changelog cannot cost the group its member;
+     * the next call goes on from where this one stopped and users not restored yet are looked up.
+     * Waits while another thread is catching up.
+     */
+    public long catchUp(BiConsumer<Long, String> restore) {
+        lock.lock();
+        try {
+            return read(restore);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #catchUp}, but returns -1 right away if another thread is catching up already
+     */
+    public long tryCatchUp(BiConsumer<Long, String> restore) {
+        if (!lock.tryLock()) {
+            return -1;
+        }
+        try {
+            return read(restore);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long read(BiConsumer<Long, String> restore) {
+        if (!enabled) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        Object maxPollInterval = consumerFactory.getConfigurationProperties().get(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG);
+        long maxMillis = (maxPollInterval == null ? 300_000 : Long.parseLong(maxPollInterval.toString())) / 2;
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        long restored = 0;
+        boolean complete = true;
+
+        Properties overrides = new Properties();
+        overrides.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        try (Consumer<String, byte[]> consumer = consumerFactory.createConsumer(groupId, null, "-id-mappings", overrides)) {
+            List<TopicPartition> partitions = consumer.partitionsFor(topic).stream()
+                    .map(PartitionInfo::partition)
+                    .map(partition -> new TopicPartition(topic, partition))
+                    .toList();
+            consumer.assign(partitions);
+            for (TopicPartition partition : partitions) {
+                Long position = positions.get(partition);
+                if (position != null) {
+                    consumer.seek(partition, position);
+                } else {
+                    consumer.seekToBeginning(List.of(partition));
+                }
+            }
+            Map<TopicPartition, Long> end = consumer.endOffsets(partitions);
+
+            while (partitions.stream().anyMatch(partition -> consumer.position(partition) < end.get(partition))) {
+                if (System.nanoTime() - deadline > 0) {
+                    complete = false;
+                    break;
+                }
+                for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                    try {
+                        Long userId = Long.valueOf(record.key());
+                        restore.accept(userId, record.value() != null ? new String(record.value(), StandardCharsets.UTF_8) : null);
+                        restored++;
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring mapping with key {} at {}-{}@{}", record.key(), record.topic(), record.partition(), record.offset());
+                    }
+                }
+            }
+            for (TopicPartition partition : partitions) {
+                positions.put(partition, consumer.position(partition));
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        Timer.builder("keycloak.id.mappings.restore")
+                .description("Time to restore Keycloak ID mappings from the changelog")
+                .register(meterRegistry)
+                .record(Duration.ofNanos(elapsed));
+        if (complete) {
+            log.info("Restored {} Keycloak ID mappings from {} in {} ms", restored, topic, elapsed / 1_000_000);
+        } else {
+            log.warn("Restored only {} Keycloak ID mappings from {} within {} ms, going on with the rest of the cache cold",
+                    restored, topic, maxMillis);
+        }
+        return restored;
+    }
+}
@@ -1,141 +1,127 @@
 package com.verifix.usersync.service;
 
-import com.verifix.usersync.mapper.MessageMapper;
-import com.verifix.usersync.model.UserData;
-import com.verifix.usersync.model.debezium.DebeziumMessage;
-import com.verifix.usersync.model.debezium.DebeziumOperation;
-import com.verifix.usersync.model.debezium.DebeziumPayload;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.model.EventSource;
+import com.verifix.usersync.model.UserChangeEvent;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.context.event.EventListener;
 import org.springframework.kafka.annotation.KafkaListener;
-import org.springframework.kafka.support.KafkaHeaders;
-import org.springframework.messaging.handler.annotation.Header;
-import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 @Service
 @Slf4j
 @RequiredArgsConstructor
 public class KafkaConsumerService {
-    private final ObjectMapper objectMapper;
-    private final MessageMapper messageMapper;
-    private final UserSyncService userSyncService;
-
-    @KafkaListener(topics = "${app.kafka.topic}")
-    public void consumeUserChanges(@Payload String message,
-                                   @Header(KafkaHeaders.RECEIVED_TOPIC) String topic,
-                                   @Header(KafkaHeaders.RECEIVED_PARTITION) int partition) {
-        log.info("Received message from topic: {}, partition: {}", topic, partition);
-
-        try {
-            processMessage(message);
-        } catch (JsonProcessingException e) {
-            log.error("JSON processing error for message: {}", e.getMessage());
-            logProblematicMessage(message);
-        } catch (IllegalArgumentException e) {
-            log.error("Invalid message format: {}", e.getMessage());
-            logProblematicMessage(message);
-        } catch (Exception e) {
-            log.error("Unexpected error processing message: {}", e.getMessage(), e);
-            logProblematicMessage(message);
+    private final UserChangeDecoder decoder;
+    private final UserChangeProcessor processor;
+    private final FlowController flowController;
+    // One per consumer thread of the container
+    private final ConcurrentMap<Consumer<?, ?>, OrderedAcknowledger> acknowledgers = new ConcurrentHashMap<>();
+
+    /**
+     * Consume a whole poll at once. The batch is handed to the processor and the listener returns immediately;
+     * the batch is acknowledged once it and every earlier batch of the consumer have finished, so offsets are
+     * committed in order. Consumption is paused by the {@link FlowController} while the backlog is too deep. Failed
+     * changes continue on the retry topics. A batch whose failed records could not be sent there is read again
+     * together with every batch after it, starting with the next poll.
+     */
+    @KafkaListener(topics = "${app.kafka.topic}", batch = "true")
+    public void consumeUserChanges(List<ConsumerRecord<String, byte[]>> records, Acknowledgment acknowledgment, Consumer<?, ?> consumer) {
+        OrderedAcknowledger acknowledger = acknowledgers.computeIfAbsent(consumer, ignored -> new OrderedAcknowledger());
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        for (ConsumerRecord<String, byte[]> record : records) {
+            offsets.putIfAbsent(new TopicPartition(record.topic(), record.partition()), record.offset());
         }
-    }
-
-    private void logProblematicMessage(String message) {
-        log.error("Problematic message: {}", message);
-    }
-
-    private void processMessage(String messageValue) throws JsonProcessingException {
-        if (messageValue == null || messageValue.trim().isEmpty()) {
-            log.warn("Received message with empty value, skipping");
+        if (rewind(consumer, acknowledger, offsets)) {
             return;
         }
-
-        // Parse message value
-        DebeziumMessage debeziumMessage;
-        try {
-            debeziumMessage = objectMapper.readValue(messageValue, DebeziumMessage.class);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to parse Debezium message: {}", e.getMessage());
-            throw e;
-        }
-
-        if (debeziumMessage.payload() == null) {
-            log.warn("Received message with no payload, skipping");
-            return;
-        }
-
-        // Parse payload
-        DebeziumPayload payload;
-        try {
-            payload = objectMapper.treeToValue(debeziumMessage.payload(), DebeziumPayload.class);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to parse Debezium payload: {}", e.getMessage());
-            throw e;
-        }
-
-        // Skip messages with no relevant changes
-        if (!messageMapper.hasRelevantChanges(payload.before(), payload.after())) {
-            String userId = extractUserId(payload);
-            log.info("Skipping message: no changes in tracked columns for userId {}", userId);
-            return;
+        log.info("Received batch of {} messages", records.size());
+
+        List<UserChangeEvent> events = new ArrayList<>(records.size());
+        List<CompletableFuture<Void>> deadLetters = new ArrayList<>();
+        for (ConsumerRecord<String, byte[]> record : records) {
+            EventSource source = new EventSource(record.key(), record.value(), record.topic(), record.partition(), record.offset(), 0);
+            UserChangeEvent event = decoder.decode(source, deadLetters);
+            if (event != null) {
+                events.add(event);
+            }
         }
 
-        // Map to user data
-        UserData userData;
-        try {
-            userData = messageMapper.mapToUserData(payload);
-        } catch (Exception e) {
-            log.error("Failed to map message to user data: {}", e.getMessage());
-            throw e;
+        CompletableFuture<Void> completion = processor.process(events);
+        if (!deadLetters.isEmpty()) {
+            deadLetters.add(completion);
+            completion = CompletableFuture.allOf(deadLetters.toArray(CompletableFuture[]::new));
         }
+        acknowledger.add(completion, acknowledgment, offsets);
+        flowController.check();
+    }
 
-        // Validate user data
-        if (userData.userId() == null) {
-            log.error("Invalid user data: login: {}", userData.login());
-            throw new IllegalArgumentException("Invalid user data: missing userId");
+    /**
+     * A consumer with nothing new to read still moves back after a failed batch. Idle events are published on the
+     * consumer thread.
+     */
+    @EventListener
+    public void onIdle(ListenerContainerIdleEvent event) {
+        OrderedAcknowledger acknowledger = acknowledgers.get(event.getConsumer());
+        if (acknowledger != null) {
+            rewind(event.getConsumer(), acknowledger, Map.of());
         }
+    }
 
-        try {
-            DebeziumOperation operation = DebeziumOperation.fromCode(payload.operation());
-
-            log.info("Processing {} operation for userId: {}, login: {}", operation, userData.userId(), userData.login());
-
-            switch (operation) {
-                case READ -> {
-                    log.debug("Processing user.read event for userId: {}, login: {}", userData.userId(), userData.login());
-                    userSyncService.handleUserSave(userData);
-                }
-                case CREATE -> {
-                    log.debug("Processing user.add event for userId: {}, login: {}", userData.userId(), userData.login());
-                    userSyncService.handleUserSave(userData);
-                }
-                case UPDATE -> {
-                    log.debug("Processing user.edit event for userId: {}, login: {}", userData.userId(), userData.login());
-                    userSyncService.handleUserSave(userData);
-                }
-                case DELETE -> {
-                    log.debug("Processing user.delete event for userId: {}, login: {}", userData.userId(), userData.login());
-                    userSyncService.handleUserDelete(userData);
-                }
-            }
+    /**
+     * Finish the in-flight batches of partitions leaving the consumer and acknowledge them. Runs on the consumer
+     * thread before the container commits; batches of the partitions the consumer keeps carry on undisturbed.
+     *
+     * @return the number of batches that did not finish within the timeout and will be read again by the new owner
+     */
+    public int drain(Consumer<?, ?> consumer, Collection<TopicPartition> partitions, Duration timeout) {
+        OrderedAcknowledger acknowledger = acknowledgers.get(consumer);
+        return acknowledger != null ? acknowledger.drain(partitions, timeout) : 0;
+    }
 
-            log.info("Successfully processed {} operation for userId: {}, login: {}", operation, userData.userId(), userData.login());
-        } catch (IllegalArgumentException e) {
-            log.warn("Unknown operation type: {} for userId: {}, login: {}", payload.operation(), userData.userId(), userData.login());
-            throw e;
-        }
+    /**
+     * Forget a consumer that holds no partitions any more, because it is stopping or all of them moved. Its
+     * acknowledger is created anew should it get partitions again.
+     */
+    public void release(Consumer<?, ?> consumer) {
+        acknowledgers.remove(consumer);
     }
 
-    private String extractUserId(DebeziumPayload payload) {
-        if (payload.after() != null && payload.after().has("USER_ID")) {
-            return payload.after().get("USER_ID").asText();
-        }
-        if (payload.before() != null && payload.before().has("USER_ID")) {
-            return payload.before().get("USER_ID").asText();
+    /**
+     * Seek the consumer back to the first unacknowledged records after a batch failed. The records just received
+     * are dropped, as the seek covers them too.
+     *
+     * @return whether the consumer was moved back
+     */
+    private boolean rewind(Consumer<?, ?> consumer, OrderedAcknowledger acknowledger, Map<TopicPartition, Long> received) {
+        Map<TopicPartition, Long> offsets = new HashMap<>(acknowledger.takeRewind());
+        if (offsets.isEmpty()) {
+            return false;
         }
-        return "unknown";
+        received.forEach((partition, offset) -> offsets.merge(partition, offset, Math::min));
+        Set<TopicPartition> assigned = consumer.assignment();
+        offsets.forEach((partition, offset) -> {
+            if (assigned.contains(partition)) {
+                consumer.seek(partition, offset);
+            }
+        });
+        log.warn("Failed records could not be sent to the retry topics, reading again from {}", offsets);
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,129 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive cap on concurrent Keycloak admin API requests (AIMD). Every request that comes back slower than the
+ * latency threshold or is answered with an overload status cuts the limit by the backoff ratio; every fast answer
+ * while the limit is in use grows it by one per limit's worth of answers. The limit is published as
+ * keycloak.concurrency.limit, requests holding a slot as keycloak.concurrency.in.flight, both tagged with the target.
+ * A moving average of the response latency is kept for {@link FlowController}, also while the limit is disabled.
+ * Every {@link KeycloakTarget} has a limiter of its own.
+ */
+@Slf4j
+public class KeycloakConcurrencyLimiter {
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    private final String target;
+    private final ApplicationProperties.Limiter config;
+    private final long latencyThresholdNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private double averageLatencyNanos;
+
+    public KeycloakConcurrencyLimiter(String target, ApplicationProperties.Limiter config, MeterRegistry meterRegistry) {
+        this.target = target;
+        this.config = config;
+        this.latencyThresholdNanos = config.latencyThreshold().toNanos();
+        this.limit = Math.clamp(config.initialLimit(), config.minLimit(), config.maxLimit());
+
+        Gauge.builder("keycloak.concurrency.limit", this, KeycloakConcurrencyLimiter::limit)
+                .description("Keycloak admin API requests allowed in flight")
+                .tag("target", target)
+                .register(meterRegistry);
+        Gauge.builder("keycloak.concurrency.in.flight", this, KeycloakConcurrencyLimiter::inFlight)
+                .description("Keycloak admin API requests in flight")
+                .tag("target", target)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Block until a request slot is free; every successful call must be paired with {@link #release}
+     */
+    public void acquire() throws InterruptedException {
+        if (!config.enabled()) {
+            return;
+        }
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                slotFreed.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Free a slot and adjust the limit to how the request went
+     *
+     * @param latencyNanos time from sending the request to receiving the response
+     * @param overloaded   whether Keycloak signalled overload (429, 503) or the request failed on I/O
+     */
+    public void release(long latencyNanos, boolean overloaded) {
+        lock.lock();
+        try {
+            averageLatencyNanos = averageLatencyNanos == 0
+                    ? latencyNanos
+                    : averageLatencyNanos + LATENCY_WEIGHT * (latencyNanos - averageLatencyNanos);
+            if (!config.enabled()) {
+                return;
+            }
+
+            int previous = (int) limit;
+            if (overloaded || latencyNanos > latencyThresholdNanos) {
+                limit = Math.max(config.minLimit(), limit * config.backoffRatio());
+            } else if (inFlight * 2 >= limit) {
+                limit = Math.min(config.maxLimit(), limit + 1 / limit);
+            }
+            inFlight--;
+
+            if ((int) limit != previous) {
+                log.debug("Keycloak concurrency limit of {} changed from {} to {}", target, previous, (int) limit);
+            }
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Exponentially weighted moving average of recent response latencies; zero before the first response
+     */
+    public Duration averageLatency() {
+        lock.lock();
+        try {
+            return Duration.ofNanos((long) averageLatencyNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.verifix.usersync.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.verifix.usersync.config.ApplicationProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.listener.AbstractMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded LRU/TTL cache of external userId to Keycloak ID.
+ * Filled from lookups and created users, invalidated when Keycloak reports the mapping as stale.
+ * Changes are shared through the {@link IdMappingChangelog}. They are restored from it once on startup, before the
+ * listener containers start, and caught up again on each partition assignment.
+ */
+@Component
+@Slf4j
+public class KeycloakIdCache implements SmartLifecycle {
+    private static final String CACHE_NAME = "keycloakIdCache";
+
+    private final Cache<Long, String> cache;
+    private final IdMappingChangelog changelog;
+    private volatile boolean running;
+
+    public KeycloakIdCache(ApplicationProperties properties, IdMappingChangelog changelog, MeterRegistry meterRegistry) {
+        ApplicationProperties.IdCache config = properties.keycloak().idCache();
+        this.changelog = changelog;
+
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(config.maxSize())
+                .expireAfterWrite(config.ttl())
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    /**
+     * Get the cached Keycloak ID, or null on a miss
+     */
+    public String get(Long userId) {
+        return cache.getIfPresent(userId);
+    }
+
+    /**
+     * Cache a mapping; a mapping that was not known yet is also published to the changelog
+     */
+    public void put(Long userId, String keycloakId) {
+        if (!keycloakId.equals(cache.asMap().put(userId, keycloakId))) {
+            changelog.publish(userId, keycloakId);
+        }
+    }
+
+    public void invalidate(Long userId) {
+        log.debug("Invalidating cached Keycloak ID for userId: {}", userId);
+        cache.invalidate(userId);
+        changelog.publish(userId, null);
+    }
+
+    /**
+     * Apply the mappings published to the changelog since the last call, waiting for a catch-up of another thread
+     */
+    public void restore() {
+        changelog.catchUp(this::apply);
+    }
+
+    /**
+     * Like {@link #restore()}, but returns false without waiting if another thread is catching up already
+     */
+    public boolean tryRestore() {
+        return changelog.tryCatchUp(this::apply) >= 0;
+    }
+
+    private void apply(Long userId, String keycloakId) {
+        if (keycloakId != null) {
+            cache.put(userId, keycloakId);
+        } else {
+            cache.invalidate(userId);
+        }
+    }
+
+    /**
+     * The initial restore, once for all consumers
+     */
+    @Override
+    public void start() {
+        try {
+            restore();
+        } catch (Exception e) {
+            // A cold cache is slower, not wrong
+            log.warn("Failed to restore Keycloak ID mappings, starting with a cold cache: {}", e.getMessage());
+        }
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Before the listener containers
+     */
+    @Override
+    public int getPhase() {
+        return AbstractMessageListenerContainer.DEFAULT_PHASE - 1;
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,48 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which Keycloak target a company's users live in, from {@code app.keycloak.targets}.
+ * Companies that no target lists, and users without a company, go to the default target.
+ */
+@Component
+public class KeycloakRouter {
+    public static final String DEFAULT_TARGET = "default";
+
+    private final Map<Long, String> byCompany = new HashMap<>();
+    private final List<String> targets = new ArrayList<>();
+
+    public KeycloakRouter(ApplicationProperties properties) {
+        targets.add(DEFAULT_TARGET);
+        properties.keycloak().targets().forEach((name, target) -> {
+            if (DEFAULT_TARGET.equals(name)) {
+                throw new IllegalStateException("Keycloak target name '" + DEFAULT_TARGET + "' is reserved for app.keycloak.base-url");
+            }
+            targets.add(name);
+            for (Long companyId : target.companies()) {
+                String previous = byCompany.putIfAbsent(companyId, name);
+                if (previous != null) {
+                    throw new IllegalStateException("Company " + companyId + " is routed to both Keycloak targets " + previous + " and " + name);
+                }
+            }
+        });
+    }
+
+    public String route(Long companyId) {
+        return companyId != null ? byCompany.getOrDefault(companyId, DEFAULT_TARGET) : DEFAULT_TARGET;
+    }
+
+    /**
+     * Names of all targets, the default one first
+     */
+    public List<String> targets() {
+        return List.copyOf(targets);
+    }
+}
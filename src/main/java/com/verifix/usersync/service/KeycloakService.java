@@ -4,118 +4,241 @@ import com.verifix.usersync.config.ApplicationProperties;
 import com.verifix.usersync.mapper.KeycloakMapper;
 import com.verifix.usersync.model.UserData;
 import com.verifix.usersync.model.keycloak.KeycloakUser;
+import com.verifix.usersync.model.keycloak.PartialImportPolicy;
+import com.verifix.usersync.model.keycloak.PartialImportRequest;
+import com.verifix.usersync.model.keycloak.PartialImportResult;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Keycloak admin API client. Every call goes to the named {@link KeycloakTarget}, see {@link KeycloakRouter}.
+ * The async variants run the same calls on virtual threads, so callers are not blocked while a request is in flight.
+ */
 @Service
 @Slf4j
 public class KeycloakService {
-    private final RestTemplate restTemplate;
+    private final KeycloakTargets targets;
     private final KeycloakMapper keycloakMapper;
-    private final OAuth2TokenService tokenService;
-    private final String baseUrl;
-    private final String realm;
+    private final KeycloakIdCache idCache;
+    private final boolean assignIds;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
 
-    public KeycloakService(RestTemplate restTemplate,
-                           ApplicationProperties properties,
+    public KeycloakService(KeycloakTargets targets,
                            KeycloakMapper keycloakMapper,
-                           OAuth2TokenService tokenService) {
-        this.restTemplate = restTemplate;
+                           KeycloakIdCache idCache,
+                           ApplicationProperties properties) {
+        this.targets = targets;
         this.keycloakMapper = keycloakMapper;
-        this.tokenService = tokenService;
-        this.baseUrl = normalizeUrl(properties.keycloak().baseUrl());
-        this.realm = properties.keycloak().realm();
+        this.idCache = idCache;
+        this.assignIds = properties.keycloak().lookup().strategy() == ApplicationProperties.Lookup.Strategy.ID;
+    }
+
+    public CompletableFuture<String> createUserAsync(String target, UserData userData) {
+        return CompletableFuture.supplyAsync(() -> createUser(target, userData), executor);
+    }
+
+    public CompletableFuture<Void> updateUserAsync(String target, String keycloakId, UserData userData) {
+        return CompletableFuture.runAsync(() -> updateUser(target, keycloakId, userData), executor);
+    }
+
+    public CompletableFuture<Void> deleteUserAsync(String target, String keycloakId, UserData userData) {
+        return CompletableFuture.runAsync(() -> deleteUser(target, keycloakId, userData), executor);
+    }
+
+    public CompletableFuture<List<UserData>> importUsersAsync(String target, List<UserData> users, PartialImportPolicy policy) {
+        return CompletableFuture.supplyAsync(() -> importUsers(target, users, policy), executor);
     }
 
     /**
-     * Find a user in Keycloak by user_id (stored as attribute)
+     * The user with exactly this username, or null. The full representation is requested, so the caller can check
+     * its attributes.
      */
-    public KeycloakUser findUserByExternalId(Long userId) {
-        try {
-            HttpHeaders headers = createAuthHeaders();
-            HttpEntity<?> entity = new HttpEntity<>(headers);
+    public KeycloakUser findUserByUsername(String target, String username) {
+        KeycloakTarget keycloak = targets.get(target);
+        String url = UriComponentsBuilder
+                .fromUriString(keycloak.baseUrl() + "/admin/realms/{realm}/users")
+                .queryParam("username", username)
+                .queryParam("exact", true)
+                .queryParam("briefRepresentation", false)
+                .buildAndExpand(keycloak.realm())
+                .toUriString();
+        return search(keycloak, url, "username " + username);
+    }
 
-            String url = UriComponentsBuilder
-                    .fromUriString(baseUrl + "/admin/realms/{realm}/users")
-                    .queryParam("q", "user_id:" + userId)
-                    .buildAndExpand(realm)
-                    .toUriString();
+    /**
+     * Keycloak ID of the user whose {@code userId} attribute is the given one, or null
+     */
+    public String findIdByAttribute(String target, Long userId) {
+        KeycloakTarget keycloak = targets.get(target);
+        String url = UriComponentsBuilder
+                .fromUriString(keycloak.baseUrl() + "/admin/realms/{realm}/users")
+                .queryParam("q", "userId:" + userId)
+                .queryParam("briefRepresentation", true)
+                .buildAndExpand(keycloak.realm())
+                .toUriString();
+        return searchId(keycloak, url, "userId " + userId);
+    }
 
-            ResponseEntity<List<KeycloakUser>> response = restTemplate.exchange(
-                    url,
-                    HttpMethod.GET,
-                    entity,
-                    new ParameterizedTypeReference<>() {
-                    });
+    /**
+     * The given Keycloak ID if such a user exists, else null
+     */
+    public String findIdById(String target, String keycloakId) {
+        KeycloakTarget keycloak = targets.get(target);
+        try {
+            String url = keycloak.baseUrl() + "/admin/realms/" + keycloak.realm() + "/users/" + keycloakId;
+            KeycloakUser user = keycloak.restTemplate().exchange(url, HttpMethod.GET, new HttpEntity<>(createHeaders()),
+                    KeycloakUser.class).getBody();
+            return user != null ? user.id() : null;
+        } catch (HttpClientErrorException.NotFound e) {
+            return null;
+        } catch (Exception e) {
+            log.error("Error finding user by ID {}: {}", keycloakId, e.getMessage());
+            throw new RuntimeException("Failed to find user by ID", e);
+        }
+    }
 
-            List<KeycloakUser> users = response.getBody();
+    private String searchId(KeycloakTarget keycloak, String url, String criterion) {
+        KeycloakUser user = search(keycloak, url, criterion);
+        return user != null ? user.id() : null;
+    }
 
-            if (users != null && !users.isEmpty()) {
-                log.info("Found user in Keycloak with user_id: {}", userId);
-                return users.getFirst();
+    private KeycloakUser search(KeycloakTarget keycloak, String url, String criterion) {
+        try {
+            List<KeycloakUser> users = keycloak.restTemplate().exchange(url, HttpMethod.GET, new HttpEntity<>(createHeaders()),
+                    new ParameterizedTypeReference<List<KeycloakUser>>() {
+                    }).getBody();
+            if (users == null || users.isEmpty()) {
+                return null;
             }
-
-            return null;
+            log.debug("Found user in Keycloak by {}", criterion);
+            return users.getFirst();
         } catch (HttpClientErrorException.NotFound e) {
             return null;
         } catch (Exception e) {
-            log.error("Error finding user by user_id {}: {}", userId, e.getMessage());
-            throw new RuntimeException("Failed to find user by external ID", e);
+            log.error("Error finding user by {}: {}", criterion, e.getMessage());
+            throw new RuntimeException("Failed to find user", e);
         }
     }
 
     /**
-     * Create a new user in Keycloak
+     * One page of realm users in Keycloak's order. The full representation is requested, because the brief one
+     * leaves out the attributes and with them the userId.
      */
-    public void createUser(UserData userData) {
+    public List<KeycloakUser> listUsers(String target, int first, int max) {
+        KeycloakTarget keycloak = targets.get(target);
         try {
-            HttpHeaders headers = createAuthHeaders();
-            KeycloakUser keycloakUser = keycloakMapper.mapToKeycloakUser(userData);
-            HttpEntity<KeycloakUser> entity = new HttpEntity<>(keycloakUser, headers);
+            HttpEntity<?> entity = new HttpEntity<>(createHeaders());
 
-            String url = baseUrl + "/admin/realms/" + realm + "/users";
+            String url = UriComponentsBuilder
+                    .fromUriString(keycloak.baseUrl() + "/admin/realms/{realm}/users")
+                    .queryParam("first", first)
+                    .queryParam("max", max)
+                    .queryParam("briefRepresentation", false)
+                    .buildAndExpand(keycloak.realm())
+                    .toUriString();
 
-            log.info("Creating user in Keycloak: userID: {}, login: {}", userData.userId(), userData.login());
+            List<KeycloakUser> users = keycloak.restTemplate().exchange(url, HttpMethod.GET, entity,
+                    new ParameterizedTypeReference<List<KeycloakUser>>() {
+                    }).getBody();
+            return users != null ? users : List.of();
+        } catch (Exception e) {
+            log.error("Error listing users from {}: {}", first, e.getMessage());
+            throw new RuntimeException("Failed to list users", e);
+        }
+    }
 
-            ResponseEntity<Void> response = restTemplate.exchange(url, HttpMethod.POST, entity, Void.class);
+    /**
+     * Create a new user in Keycloak and return its ID. With the {@code ID} lookup strategy the user is created through
+     * partialImport, since the users endpoint ignores a given ID and partialImport keeps it.
+     */
+    public String createUser(String target, UserData userData) {
+        KeycloakTarget keycloak = targets.get(target);
+        try {
+            HttpHeaders headers = createHeaders();
+            KeycloakUser keycloakUser = map(userData);
 
-            // Get the created user's ID from the Location header
-            String locationHeader = response.getHeaders().getFirst("Location");
-            if (locationHeader != null) {
-                String keycloakUserId = locationHeader.substring(locationHeader.lastIndexOf('/') + 1);
-                log.info("User created in Keycloak: userID: {}, login: {}, ID: {}", userData.userId(), userData.login(), keycloakUserId);
-                return;
-            }
+            log.info("Creating user in Keycloak: userID: {}, login: {}", userData.userId(), userData.login());
 
-            throw new RuntimeException("Failed to get created user ID from response");
+            String keycloakUserId = keycloakUser.id() != null
+                    ? importOne(keycloak, keycloakUser, headers)
+                    : post(keycloak, keycloakUser, headers);
+            log.info("User created in Keycloak: userID: {}, login: {}, ID: {}", userData.userId(), userData.login(), keycloakUserId);
+            idCache.put(userData.userId(), keycloakUserId);
+            return keycloakUserId;
+        } catch (HttpClientErrorException.Conflict e) {
+            idCache.invalidate(userData.userId());
+            log.error("User already exists in Keycloak: userID: {}, login: {}. {}", userData.userId(), userData.login(), e.getMessage());
+            throw new RuntimeException("Failed to create user", e);
         } catch (Exception e) {
             log.error("Error creating user in Keycloak: userID: {}, login: {}. {}", userData.userId(), userData.login(), e.getMessage());
             throw new RuntimeException("Failed to create user", e);
         }
     }
 
+    private String post(KeycloakTarget keycloak, KeycloakUser keycloakUser, HttpHeaders headers) {
+        String url = keycloak.baseUrl() + "/admin/realms/" + keycloak.realm() + "/users";
+        ResponseEntity<Void> response = keycloak.restTemplate().exchange(url, HttpMethod.POST, new HttpEntity<>(keycloakUser, headers), Void.class);
+
+        // Get the created user's ID from the Location header
+        String locationHeader = response.getHeaders().getFirst("Location");
+        if (locationHeader == null) {
+            throw new RuntimeException("Failed to get created user ID from response");
+        }
+        return locationHeader.substring(locationHeader.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Add one user with its own ID; an existing username fails with 409 like the users endpoint
+     */
+    private String importOne(KeycloakTarget keycloak, KeycloakUser keycloakUser, HttpHeaders headers) {
+        String url = keycloak.baseUrl() + "/admin/realms/" + keycloak.realm() + "/partialImport";
+        HttpEntity<PartialImportRequest> entity =
+                new HttpEntity<>(new PartialImportRequest(PartialImportPolicy.FAIL, List.of(keycloakUser)), headers);
+        PartialImportResult result = keycloak.restTemplate().exchange(url, HttpMethod.POST, entity, PartialImportResult.class).getBody();
+
+        if (result == null || result.results() == null) {
+            throw new RuntimeException("Empty partialImport response");
+        }
+        return result.results().stream()
+                .filter(entry -> "USER".equals(entry.resourceType()) && entry.id() != null)
+                .map(PartialImportResult.Entry::id)
+                .findFirst()
+                .orElse(keycloakUser.id());
+    }
+
     /**
      * Update an existing user in Keycloak
      */
-    public void updateUser(String keycloakId, UserData userData) {
+    public void updateUser(String target, String keycloakId, UserData userData) {
+        KeycloakTarget keycloak = targets.get(target);
         try {
-            HttpHeaders headers = createAuthHeaders();
+            HttpHeaders headers = createHeaders();
             KeycloakUser keycloakUser = keycloakMapper.mapToKeycloakUser(userData);
             HttpEntity<KeycloakUser> entity = new HttpEntity<>(keycloakUser, headers);
 
-            String url = baseUrl + "/admin/realms/" + realm + "/users/" + keycloakId;
+            String url = keycloak.baseUrl() + "/admin/realms/" + keycloak.realm() + "/users/" + keycloakId;
 
             log.info("Updating user in Keycloak: userID: {}, login: {}", userData.userId(), userData.login());
-            restTemplate.exchange(url, HttpMethod.PUT, entity, Void.class);
+            keycloak.restTemplate().exchange(url, HttpMethod.PUT, entity, Void.class);
 
             log.info("User updated in Keycloak: userID: {}, login: {}", userData.userId(), userData.login());
+        } catch (HttpClientErrorException.NotFound e) {
+            idCache.invalidate(userData.userId());
+            log.error("User not found in Keycloak on update: userID: {}, login: {}, ID: {}", userData.userId(), userData.login(), keycloakId);
+            throw new RuntimeException("Failed to update user", e);
         } catch (Exception e) {
             log.error("Error updating user in Keycloak: userID: {}, login: {}. {}", userData.userId(), userData.login(), e.getMessage());
             throw new RuntimeException("Failed to update user", e);
@@ -125,31 +248,106 @@ public class KeycloakService {
     /**
      * Delete a user from Keycloak
      */
-    public void deleteUser(String keycloakId, UserData userData) {
+    public void deleteUser(String target, String keycloakId, UserData userData) {
+        KeycloakTarget keycloak = targets.get(target);
         try {
-            HttpHeaders headers = createAuthHeaders();
+            HttpHeaders headers = createHeaders();
             HttpEntity<?> entity = new HttpEntity<>(headers);
 
-            String url = baseUrl + "/admin/realms/" + realm + "/users/" + keycloakId;
+            String url = keycloak.baseUrl() + "/admin/realms/" + keycloak.realm() + "/users/" + keycloakId;
 
             log.info("Deleting user from Keycloak: userID: {}, login: {}", userData.userId(), userData.login());
-            restTemplate.exchange(url, HttpMethod.DELETE, entity, Void.class);
+            keycloak.restTemplate().exchange(url, HttpMethod.DELETE, entity, Void.class);
+            idCache.invalidate(userData.userId());
 
             log.info("User deleted from Keycloak: userID: {}, login: {}", userData.userId(), userData.login());
+        } catch (HttpClientErrorException.NotFound e) {
+            idCache.invalidate(userData.userId());
+            log.error("User not found in Keycloak on delete: userID: {}, login: {}, ID: {}", userData.userId(), userData.login(), keycloakId);
+            throw new RuntimeException("Failed to delete user", e);
         } catch (Exception e) {
             log.error("Error deleting user from Keycloak: userID: {}, login: {}. {}", userData.userId(), userData.login(), e.getMessage());
             throw new RuntimeException("Failed to delete user", e);
         }
     }
 
-    private HttpHeaders createAuthHeaders() {
+    /**
+     * Create or overwrite many users with one partialImport call.
+     * Returns the users that Keycloak did not report as imported, or reported as skipped because they exist, so they
+     * can be saved one at a time. Results are matched to users by username, so a user whose normalized login is
+     * already taken by another user of the chunk is left out of the import and returned as well.
+     */
+    public List<UserData> importUsers(String target, List<UserData> users, PartialImportPolicy policy) {
+        KeycloakTarget keycloak = targets.get(target);
+        try {
+            HttpHeaders headers = createHeaders();
+
+            Map<String, UserData> byUsername = new HashMap<>(users.size() * 2);
+            List<UserData> duplicates = new ArrayList<>();
+            List<KeycloakUser> keycloakUsers = new ArrayList<>(users.size());
+            for (UserData userData : users) {
+                KeycloakUser keycloakUser = map(userData);
+                if (byUsername.putIfAbsent(keycloakUser.username(), userData) != null) {
+                    log.warn("Username {} of userId {} is already taken in this import, saving it one at a time", keycloakUser.username(), userData.userId());
+                    duplicates.add(userData);
+                    continue;
+                }
+                keycloakUsers.add(keycloakUser);
+            }
+            HttpEntity<PartialImportRequest> entity = new HttpEntity<>(new PartialImportRequest(policy, keycloakUsers), headers);
+
+            String url = keycloak.baseUrl() + "/admin/realms/" + keycloak.realm() + "/partialImport";
+
+            log.info("Importing {} users into Keycloak with policy {}", keycloakUsers.size(), policy);
+            PartialImportResult result = keycloak.restTemplate().exchange(url, HttpMethod.POST, entity, PartialImportResult.class).getBody();
+
+            if (result == null || result.results() == null) {
+                throw new RuntimeException("Empty partialImport response");
+            }
+
+            for (PartialImportResult.Entry entry : result.results()) {
+                if (!"USER".equals(entry.resourceType())) {
+                    continue;
+                }
+                if ("SKIPPED".equals(entry.action())) {
+                    continue;
+                }
+                UserData userData = byUsername.remove(entry.resourceName());
+                if (userData != null && entry.id() != null) {
+                    idCache.put(userData.userId(), entry.id());
+                }
+            }
+
+            log.info("Imported users into Keycloak: added: {}, overwritten: {}, skipped: {}, left to save one at a time: {}",
+                    result.added(), result.overwritten(), result.skipped(), byUsername.size() + duplicates.size());
+            List<UserData> notImported = new ArrayList<>(byUsername.values());
+            notImported.addAll(duplicates);
+            return notImported;
+        } catch (Exception e) {
+            log.error("Error importing {} users into Keycloak: {}", users.size(), e.getMessage());
+            throw new RuntimeException("Failed to import users", e);
+        }
+    }
+
+    /**
+     * The representation of a user to add; carries the user's derived ID when users are looked up by it
+     */
+    private KeycloakUser map(UserData userData) {
+        KeycloakUser keycloakUser = keycloakMapper.mapToKeycloakUser(userData);
+        return assignIds ? keycloakUser.withId(UserResolver.keycloakId(userData.userId())) : keycloakUser;
+    }
+
+    /**
+     * The bearer token is added by {@link com.verifix.usersync.config.KeycloakAuthInterceptor}
+     */
+    private HttpHeaders createHeaders() {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setBearerAuth(tokenService.getAccessToken());
         return headers;
     }
 
-    private String normalizeUrl(String url) {
-        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    @PreDestroy
+    public void shutdown() {
+        executor.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package com.verifix.usersync.service;
+
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * One Keycloak realm the admin API calls go to. The rest template carries the target's own connection pool,
+ * access token, concurrency limit and circuit breaker.
+ */
+public record KeycloakTarget(
+        String name,
+        String baseUrl,
+        String realm,
+        RestTemplate restTemplate,
+        OAuth2TokenService tokenService,
+        KeycloakConcurrencyLimiter limiter
+) {
+}
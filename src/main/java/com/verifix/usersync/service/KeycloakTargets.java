@@ -0,0 +1,33 @@
+package com.verifix.usersync.service;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The configured Keycloak targets by name, see {@link KeycloakRouter}
+ */
+public class KeycloakTargets {
+    private final Map<String, KeycloakTarget> targets = new LinkedHashMap<>();
+
+    public KeycloakTargets(List<KeycloakTarget> targets) {
+        targets.forEach(target -> this.targets.put(target.name(), target));
+    }
+
+    public KeycloakTarget get(String name) {
+        KeycloakTarget target = targets.get(name);
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown Keycloak target " + name);
+        }
+        return target;
+    }
+
+    public Collection<KeycloakTarget> all() {
+        return targets.values();
+    }
+
+    public void close() {
+        targets.values().forEach(target -> target.tokenService().shutdown());
+    }
+}
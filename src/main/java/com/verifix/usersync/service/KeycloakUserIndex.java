@@ -0,0 +1,104 @@
+package com.verifix.usersync.service;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact index of the users found in Keycloak: userId attribute to Keycloak ID and content hash.
+ * Entries live in parallel primitive arrays; Keycloak IDs are kept as the two halves of their UUID.
+ * About 50 bytes per user, so a realm of a million users fits in some 50 MB.
+ */
+final class KeycloakUserIndex {
+    private static final long MISSING = -1;
+
+    private final LongLongMap entries;
+    private final BitSet seen = new BitSet();
+    // Keycloak IDs that are not UUIDs (imported users may have any ID) are kept as strings
+    private final Map<Integer, String> otherIds = new HashMap<>();
+    private long[] userIds;
+    private long[] hashes;
+    private long[] idHigh;
+    private long[] idLow;
+    private int size;
+
+    KeycloakUserIndex(int expectedSize) {
+        entries = new LongLongMap(expectedSize);
+        userIds = new long[Math.max(16, expectedSize)];
+        hashes = new long[userIds.length];
+        idHigh = new long[userIds.length];
+        idLow = new long[userIds.length];
+    }
+
+    /**
+     * Add a user; a userId that is already indexed keeps its first Keycloak ID
+     */
+    void put(long userId, String keycloakId, long hash) {
+        if (entries.get(userId, MISSING) != MISSING) {
+            return;
+        }
+        if (size == userIds.length) {
+            int capacity = size * 2;
+            userIds = Arrays.copyOf(userIds, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            idHigh = Arrays.copyOf(idHigh, capacity);
+            idLow = Arrays.copyOf(idLow, capacity);
+        }
+
+        int entry = size++;
+        userIds[entry] = userId;
+        hashes[entry] = hash;
+        try {
+            UUID uuid = UUID.fromString(keycloakId);
+            if (!uuid.toString().equals(keycloakId)) {
+                throw new IllegalArgumentException("Not in canonical form");
+            }
+            idHigh[entry] = uuid.getMostSignificantBits();
+            idLow[entry] = uuid.getLeastSignificantBits();
+        } catch (IllegalArgumentException e) {
+            otherIds.put(entry, keycloakId);
+        }
+        entries.put(userId, entry);
+    }
+
+    /**
+     * Entry number of the user, or -1 if the user is not in Keycloak
+     */
+    int find(long userId) {
+        return (int) entries.get(userId, MISSING);
+    }
+
+    long hash(int entry) {
+        return hashes[entry];
+    }
+
+    String keycloakId(int entry) {
+        String other = otherIds.get(entry);
+        return other != null ? other : new UUID(idHigh[entry], idLow[entry]).toString();
+    }
+
+    long userId(int entry) {
+        return userIds[entry];
+    }
+
+    /**
+     * Mark the user as present in the source
+     */
+    void markSeen(int entry) {
+        seen.set(entry);
+    }
+
+    /**
+     * Next entry at or after {@code from} whose user was not seen in the source, or -1
+     */
+    int nextUnseen(int from) {
+        int entry = seen.nextClearBit(from);
+        return entry < size ? entry : -1;
+    }
+
+    int size() {
+        return size;
+    }
+}
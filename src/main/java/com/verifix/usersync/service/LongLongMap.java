@@ -0,0 +1,79 @@
+package com.verifix.usersync.service;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from non-negative long keys to long values, with no boxing and no per-entry objects.
+ * Roughly 16 bytes per slot at a load factor of at most one half.
+ */
+final class LongLongMap {
+    private static final long FREE = -1;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    LongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, FREE);
+    }
+
+    void put(long key, long value) {
+        int slot = slot(keys, key);
+        if (keys[slot] == FREE) {
+            keys[slot] = key;
+            if (++size * 2 > keys.length) {
+                values[slot] = value;
+                grow();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Value for the key, or {@code missing} if there is none
+     */
+    long get(long key, long missing) {
+        int slot = slot(keys, key);
+        return keys[slot] == FREE ? missing : values[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Slot holding the key, or the free slot where it would go; linear probing
+     */
+    private static int slot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
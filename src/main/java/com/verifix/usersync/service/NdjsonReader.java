@@ -0,0 +1,132 @@
+package com.verifix.usersync.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a file of newline-delimited records, plain or gzip (told by its magic bytes), one record at a time through a
+ * fixed buffer, so memory use does not grow with the file. Keeps the number of lines read and the uncompressed byte
+ * offset after them. A plain file resumes by seeking to that offset, a gzip file by reading past that many lines.
+ */
+final class NdjsonReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final InputStream in;
+    private final boolean compressed;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] record = new byte[1024];
+    private int position;
+    private int limit;
+    private long line;
+    private long offset;
+
+    private NdjsonReader(FileChannel channel, InputStream in, boolean compressed, long line, long offset) {
+        this.channel = channel;
+        this.in = in;
+        this.compressed = compressed;
+        this.line = line;
+        this.offset = offset;
+    }
+
+    /**
+     * Open the file after the first {@code line} lines, which end at byte {@code offset} of the uncompressed content
+     */
+    static NdjsonReader open(Path file, long line, long offset) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            channel.read(magic, 0);
+            if (magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b) {
+                NdjsonReader reader = new NdjsonReader(channel, new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE), true, 0, 0);
+                while (reader.line < line && reader.next() != null) {
+                    // Skipping what an earlier run finished
+                }
+                return reader;
+            }
+            channel.position(offset);
+            return new NdjsonReader(channel, Channels.newInputStream(channel), false, line, offset);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The next line without its line break, or null at the end of the file. Blank lines are returned empty.
+     */
+    byte[] next() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (length == 0) {
+                        return null;
+                    }
+                    break;
+                }
+            }
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            int chunk = position - start;
+            if (length + chunk > record.length) {
+                record = Arrays.copyOf(record, Math.max(record.length * 2, length + chunk));
+            }
+            System.arraycopy(buffer, start, record, length, chunk);
+            length += chunk;
+            offset += chunk;
+
+            if (position < limit) {
+                // The line break
+                position++;
+                offset++;
+                break;
+            }
+        }
+
+        line++;
+        if (length > 0 && record[length - 1] == '\r') {
+            length--;
+        }
+        return Arrays.copyOf(record, length);
+    }
+
+    /**
+     * Lines read so far, counted from the start of the file
+     */
+    long line() {
+        return line;
+    }
+
+    /**
+     * Uncompressed byte offset after the lines read so far
+     */
+    long offset() {
+        return offset;
+    }
+
+    boolean compressed() {
+        return compressed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            in.close();
+        }
+    }
+}
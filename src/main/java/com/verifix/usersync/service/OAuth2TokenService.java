@@ -1,52 +1,166 @@
 package com.verifix.usersync.service;
 
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.security.oauth2.client.AuthorizedClientServiceOAuth2AuthorizedClientManager;
 import org.springframework.security.oauth2.client.OAuth2AuthorizeRequest;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.core.OAuth2AccessToken;
-import org.springframework.stereotype.Service;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
-@Service
-@RequiredArgsConstructor
+/**
+ * Keeps a client-credentials access token for the Keycloak admin API.
+ * At most one refresh is in flight; concurrent callers wait for its result. The token is renewed in the
+ * background before it expires, so callers normally never wait for the token endpoint.
+ * Every {@link KeycloakTarget} has a token service of its own, on its own client registration.
+ */
 @Slf4j
 public class OAuth2TokenService {
     private static final Duration EXPIRY_BUFFER = Duration.ofSeconds(30);
+    private static final Duration RENEW_BEFORE = Duration.ofSeconds(60);
+    private static final Duration RENEW_RETRY_DELAY = Duration.ofSeconds(5);
+    private static final String PRINCIPAL = "keycloak-service";
 
+    private final String target;
+    private final String registrationId;
     private final AuthorizedClientServiceOAuth2AuthorizedClientManager authorizedClientManager;
-    private OAuth2AuthorizedClient cachedClient;
+    private final OAuth2AuthorizedClientService authorizedClientService;
+    private final MeterRegistry meterRegistry;
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler;
+    private volatile OAuth2AccessToken accessToken;
+
+    public OAuth2TokenService(String target,
+                              String registrationId,
+                              AuthorizedClientServiceOAuth2AuthorizedClientManager authorizedClientManager,
+                              OAuth2AuthorizedClientService authorizedClientService,
+                              MeterRegistry meterRegistry) {
+        this.target = target;
+        this.registrationId = registrationId;
+        this.authorizedClientManager = authorizedClientManager;
+        this.authorizedClientService = authorizedClientService;
+        this.meterRegistry = meterRegistry;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("token-renewal-" + target).daemon().factory());
+    }
 
     /**
      * Get a valid access token, refreshing if necessary
      */
     public String getAccessToken() {
-        // Check if we have a valid cached token
-        if (cachedClient != null && isTokenValid(cachedClient.getAccessToken())) {
+        OAuth2AccessToken token = accessToken;
+        if (isTokenValid(token)) {
             log.debug("Using cached access token");
-            return cachedClient.getAccessToken().getTokenValue();
+            return token.getTokenValue();
+        }
+
+        return refresh(token).getTokenValue();
+    }
+
+    /**
+     * Replace a token that Keycloak rejected. If another caller already replaced it, that token is returned.
+     */
+    public String refreshAccessToken(String rejectedToken) {
+        OAuth2AccessToken token = accessToken;
+        if (token != null && !token.getTokenValue().equals(rejectedToken) && isTokenValid(token)) {
+            return token.getTokenValue();
+        }
+
+        log.warn("Access token for {} was rejected, obtaining a new one", target);
+        return refresh(token).getTokenValue();
+    }
+
+    /**
+     * Fetch a new token unless another caller replaced the stale one while we waited for the lock
+     */
+    private OAuth2AccessToken refresh(OAuth2AccessToken stale) {
+        refreshLock.lock();
+        try {
+            OAuth2AccessToken current = accessToken;
+            if (current != stale && isTokenValid(current)) {
+                return current;
+            }
+            return fetchToken();
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private OAuth2AccessToken fetchToken() {
+        log.info("Obtaining new access token for {}", target);
+        Timer.Sample sample = Timer.start(meterRegistry);
+
+        try {
+            // Drop the stored client, otherwise the provider hands back the same token until it is almost expired
+            authorizedClientService.removeAuthorizedClient(registrationId, PRINCIPAL);
+
+            // Create authorize request for client credentials grant
+            OAuth2AuthorizeRequest authorizeRequest = OAuth2AuthorizeRequest
+                    .withClientRegistrationId(registrationId)
+                    .principal(PRINCIPAL)
+                    .build();
+
+            // Authorize and get the client
+            OAuth2AuthorizedClient authorizedClient = authorizedClientManager.authorize(authorizeRequest);
+
+            if (authorizedClient == null) {
+                throw new RuntimeException("Failed to obtain OAuth2 authorized client for " + target);
+            }
+
+            OAuth2AccessToken token = authorizedClient.getAccessToken();
+            accessToken = token;
+            sample.stop(refreshTimer("success"));
+            scheduleRenewal(token);
+
+            log.info("Access token for {} obtained successfully", target);
+            return token;
+        } catch (RuntimeException e) {
+            sample.stop(refreshTimer("failure"));
+            throw e;
         }
+    }
 
-        log.info("Obtaining new access token");
+    private void scheduleRenewal(OAuth2AccessToken token) {
+        if (token.getExpiresAt() == null) {
+            return;
+        }
 
-        // Create authorize request for client credentials grant
-        OAuth2AuthorizeRequest authorizeRequest = OAuth2AuthorizeRequest
-                .withClientRegistrationId("keycloak")
-                .principal("keycloak-service")
-                .build();
+        Instant now = Instant.now();
+        Duration delay = Duration.between(now, token.getExpiresAt().minus(RENEW_BEFORE));
+        if (delay.isNegative()) {
+            // Short-lived token: renew half way through its remaining lifetime
+            delay = Duration.between(now, token.getExpiresAt()).dividedBy(2);
+        }
 
-        // Authorize and get the client
-        cachedClient = authorizedClientManager.authorize(authorizeRequest);
+        log.debug("Scheduling access token renewal in {}", delay);
+        scheduler.schedule(() -> renew(token), Math.max(delay.toMillis(), 0), TimeUnit.MILLISECONDS);
+    }
 
-        if (cachedClient == null) {
-            throw new RuntimeException("Failed to obtain OAuth2 authorized client");
+    private void renew(OAuth2AccessToken token) {
+        try {
+            refresh(token);
+        } catch (Exception e) {
+            log.error("Failed to renew access token for {}: {}", target, e.getMessage());
+            if (isTokenValid(accessToken)) {
+                scheduler.schedule(() -> renew(token), RENEW_RETRY_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+            }
         }
+    }
 
-        log.info("Access token obtained successfully");
-        return cachedClient.getAccessToken().getTokenValue();
+    private Timer refreshTimer(String result) {
+        return Timer.builder("keycloak.token.refresh")
+                .description("Time spent obtaining Keycloak access tokens")
+                .tag("target", target)
+                .tag("result", result)
+                .register(meterRegistry);
     }
 
     /**
@@ -60,4 +174,8 @@ public class OAuth2TokenService {
         Instant expiryWithBuffer = token.getExpiresAt().minus(EXPIRY_BUFFER);
         return Instant.now().isBefore(expiryWithBuffer);
     }
-}
\ No newline at end of file
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
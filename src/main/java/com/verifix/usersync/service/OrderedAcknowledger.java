@@ -0,0 +1,141 @@
+package com.verifix.usersync.service;
+
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Acknowledges listener batches strictly in the order they were received, each one only after it and
+ * every batch before it have finished. A committed offset therefore never skips unfinished work.
+ * Acknowledgments may happen on any thread; the container commits them on the consumer thread.
+ * One acknowledger serves one consumer, since a commit covers the consumer's own partitions only.
+ * <p>
+ * A batch that completes exceptionally is not acknowledged, and neither is any batch after it. The consumer is to
+ * read them all again from the first offsets {@link #takeRewind()} hands out.
+ */
+public class OrderedAcknowledger {
+    private final Deque<PendingBatch> pending = new ArrayDeque<>();
+    // First offset per partition to read again since a batch failed, until the consumer thread takes it
+    private final Map<TopicPartition, Long> rewind = new HashMap<>();
+
+    /**
+     * @param offsets first offset of the batch in each of its partitions
+     */
+    public synchronized void add(CompletableFuture<Void> completion, Acknowledgment acknowledgment, Map<TopicPartition, Long> offsets) {
+        PendingBatch batch = new PendingBatch(completion, acknowledgment, offsets);
+        pending.addLast(batch);
+        if (!rewind.isEmpty()) {
+            // Received after a batch failed but before the consumer moved back, so it is read again as well
+            rewind(batch);
+        }
+        completion.whenComplete((result, error) -> acknowledgeCompleted());
+    }
+
+    /**
+     * Offsets to seek the consumer back to since a batch failed, or an empty map. Taken on the consumer thread,
+     * which seeks right away; batches received from then on are acknowledged as usual.
+     */
+    public synchronized Map<TopicPartition, Long> takeRewind() {
+        Map<TopicPartition, Long> offsets = Map.copyOf(rewind);
+        rewind.clear();
+        return offsets;
+    }
+
+    /**
+     * Number of received batches that are not acknowledged yet
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Wait for every batch up to the last one holding records of the partitions, then acknowledge what has finished.
+     * Called on the consumer thread before revoked partitions are committed, so their offsets are final before they
+     * move. Batches that do not finish in time are never acknowledged: committing them later could move the offset
+     * of a partition back under its new owner, which reads them again instead.
+     *
+     * @return the number of batches that did not finish in time
+     */
+    public int drain(Collection<TopicPartition> partitions, Duration timeout) {
+        CompletableFuture<?>[] waiting;
+        synchronized (this) {
+            int last = -1;
+            int index = 0;
+            for (PendingBatch batch : pending) {
+                if (!batch.abandoned && !Collections.disjoint(batch.offsets.keySet(), partitions)) {
+                    last = index;
+                }
+                index++;
+            }
+            waiting = pending.stream().limit(last + 1).map(batch -> batch.completion).toArray(CompletableFuture[]::new);
+        }
+
+        try {
+            CompletableFuture.allOf(waiting).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Unfinished batches are abandoned below
+        }
+
+        synchronized (this) {
+            // On the consumer thread, so these acknowledgments are part of the commit that follows
+            acknowledgeCompleted();
+            // The new owner reads the revoked partitions from their committed offsets anyway
+            rewind.keySet().removeAll(partitions);
+            int abandoned = 0;
+            for (PendingBatch batch : pending) {
+                if (!Collections.disjoint(batch.offsets.keySet(), partitions) && !batch.abandoned) {
+                    batch.abandoned = true;
+                    abandoned++;
+                }
+            }
+            return abandoned;
+        }
+    }
+
+    private synchronized void acknowledgeCompleted() {
+        while (!pending.isEmpty() && pending.peekFirst().completion.isDone()) {
+            PendingBatch batch = pending.pollFirst();
+            if (batch.abandoned) {
+                continue;
+            }
+            if (batch.completion.isCompletedExceptionally()) {
+                // Committing a later batch would skip this one, so everything from here on is read again
+                rewind(batch);
+                pending.forEach(this::rewind);
+            } else {
+                batch.acknowledgment.acknowledge();
+            }
+        }
+    }
+
+    private void rewind(PendingBatch batch) {
+        batch.abandoned = true;
+        batch.offsets.forEach((partition, offset) -> rewind.merge(partition, offset, Math::min));
+    }
+
+    private static final class PendingBatch {
+        private final CompletableFuture<Void> completion;
+        private final Acknowledgment acknowledgment;
+        private final Map<TopicPartition, Long> offsets;
+        private boolean abandoned;
+
+        private PendingBatch(CompletableFuture<Void> completion, Acknowledgment acknowledgment, Map<TopicPartition, Long> offsets) {
+            this.completion = completion;
+            this.acknowledgment = acknowledgment;
+            this.offsets = offsets;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collection;
+
+/**
+ * Rebalance hook of all listener containers, applied by Spring Boot's container factory configurer.
+ * The Keycloak ID cache is restored from the changelog before the containers start, so a fresh instance starts with
+ * the mappings the others have learnt. On assignment it catches up with what was published since, unless another
+ * consumer of this instance is doing so already; then the partitions are consumed right away.
+ * With the cooperative assignor only the partitions that move are revoked; their in-flight batches are finished
+ * and committed before they go, while the partitions that stay keep their work and their place. A consumer left
+ * without partitions, as when it stops, is released by the consumer service.
+ */
+@Component
+@Slf4j
+public class PartitionRebalanceListener implements ConsumerAwareRebalanceListener {
+    private final KeycloakIdCache idCache;
+    private final KafkaConsumerService consumerService;
+    private final Duration drainTimeout;
+
+    public PartitionRebalanceListener(KeycloakIdCache idCache,
+                                      KafkaConsumerService consumerService,
+                                      ApplicationProperties properties) {
+        this.idCache = idCache;
+        this.consumerService = consumerService;
+        this.drainTimeout = properties.kafka().drainTimeout();
+    }
+
+    @Override
+    public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        try {
+            if (!idCache.tryRestore()) {
+                log.debug("Keycloak ID mappings are being caught up by another consumer, not waiting for it");
+            }
+        } catch (Exception e) {
+            // A cold cache is slower, not wrong
+            log.warn("Failed to restore Keycloak ID mappings, continuing with a cold cache: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int abandoned = consumerService.drain(consumer, partitions, drainTimeout);
+        if (abandoned > 0) {
+            log.warn("{} batches of revoked partitions {} did not finish within {}, their new owner reads them again",
+                    abandoned, partitions, drainTimeout);
+        } else {
+            log.info("Drained revoked partitions {} in {} ms", partitions, (System.nanoTime() - start) / 1_000_000);
+        }
+        releaseIfEmpty(consumer, partitions);
+    }
+
+    /**
+     * Lost partitions already belong to another member, so there is no point waiting for their batches.
+     * The container goes on to the revocation callback, which then has nothing left to wait for.
+     */
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        int abandoned = consumerService.drain(consumer, partitions, Duration.ZERO);
+        log.warn("Lost partitions {}, {} of their batches will be read again by the new owner", partitions, abandoned);
+        releaseIfEmpty(consumer, partitions);
+    }
+
+    /**
+     * The assignment still holds the partitions that are leaving while the callbacks run
+     */
+    private void releaseIfEmpty(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (partitions.containsAll(consumer.assignment())) {
+            consumerService.release(consumer);
+        }
+    }
+}
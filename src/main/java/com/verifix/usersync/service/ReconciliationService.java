@@ -0,0 +1,506 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.mapper.MessageMapper;
+import com.verifix.usersync.model.Lane;
+import com.verifix.usersync.model.ReconciliationReport;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumPayload;
+import com.verifix.usersync.model.keycloak.KeycloakUser;
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+import io.github.resilience4j.ratelimiter.RateLimiterRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Brings Keycloak back in line with the source after changes were lost or failed for good.
+ * <ol>
+ *     <li>Read the source topic up to its current end and keep the position of each user's latest record.</li>
+ *     <li>For each Keycloak target, page through its realm and index every user with a userId attribute
+ *     (see {@link KeycloakUserIndex}).</li>
+ *     <li>Read the topic again and compare each latest record routed to the target with the index: create missing
+ *     users, update users whose content differs, delete users whose latest record is a delete.</li>
+ *     <li>Users in the realm that the source does not know, or routes elsewhere, are deleted only if
+ *     {@code delete-orphans} is set. Before each page of them, the topic is read on to its current end; users
+ *     that appeared meanwhile are left to the live path.</li>
+ * </ol>
+ * A change is dropped, when submitted and again when it runs, if the live path applied a newer change of the user
+ * meanwhile (see {@link SourcePositionStore}), so a run never writes back the state it read.
+ * Memory stays at a few primitive arrays per user. Keycloak calls are held to {@code app.reconciliation.rate}
+ * per second, and no change is submitted while live consumption is paused, so live traffic goes first.
+ * Changes go through the dispatcher's backfill lane and keep their order with live changes of the same user.
+ */
+@Service
+@Slf4j
+public class ReconciliationService {
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+    private static final String USER_ID_ATTRIBUTE = "userId";
+    private static final List<String> MANAGED_ATTRIBUTES = List.of("companyId", "fullName", USER_ID_ATTRIBUTE);
+
+    private final KeycloakService keycloakService;
+    private final KeycloakRouter router;
+    private final KeycloakMapper keycloakMapper;
+    private final KeycloakIdCache idCache;
+    private final MessageMapper messageMapper;
+    private final UserSyncService userSyncService;
+    private final UserFingerprintStore fingerprintStore;
+    private final SourcePositionStore positionStore;
+    private final UserEventDispatcher dispatcher;
+    private final ConsumptionGate consumptionGate;
+    private final ConsumerFactory<String, byte[]> consumerFactory;
+    private final ApplicationProperties.Reconciliation config;
+    private final String topic;
+    private final String groupId;
+    private final RateLimiter rateLimiter;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> changeCounters;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("reconciliation").daemon().factory());
+    private final ScheduledExecutorService scheduler;
+    private volatile Run current;
+    private volatile ReconciliationReport lastReport;
+
+    public ReconciliationService(KeycloakService keycloakService,
+                                 KeycloakRouter router,
+                                 KeycloakMapper keycloakMapper,
+                                 KeycloakIdCache idCache,
+                                 MessageMapper messageMapper,
+                                 UserSyncService userSyncService,
+                                 UserFingerprintStore fingerprintStore,
+                                 SourcePositionStore positionStore,
+                                 UserEventDispatcher dispatcher,
+                                 ConsumptionGate consumptionGate,
+                                 ConsumerFactory<String, byte[]> consumerFactory,
+                                 RateLimiterRegistry rateLimiterRegistry,
+                                 MeterRegistry meterRegistry,
+                                 ApplicationProperties properties,
+                                 @Value("${spring.kafka.consumer.group-id}") String groupId) {
+        this.keycloakService = keycloakService;
+        this.router = router;
+        this.keycloakMapper = keycloakMapper;
+        this.idCache = idCache;
+        this.messageMapper = messageMapper;
+        this.userSyncService = userSyncService;
+        this.fingerprintStore = fingerprintStore;
+        this.positionStore = positionStore;
+        this.dispatcher = dispatcher;
+        this.consumptionGate = consumptionGate;
+        this.consumerFactory = consumerFactory;
+        this.meterRegistry = meterRegistry;
+        this.changeCounters = Map.of(
+                "create", changeCounter("create"),
+                "update", changeCounter("update"),
+                "delete", changeCounter("delete"));
+        this.config = properties.reconciliation();
+        this.topic = config.topic() == null || config.topic().isBlank() ? properties.kafka().topic() : config.topic();
+        this.groupId = groupId + "-reconciliation";
+        this.rateLimiter = rateLimiterRegistry.rateLimiter("reconciliation", RateLimiterConfig.custom()
+                .limitForPeriod(config.rate())
+                .limitRefreshPeriod(Duration.ofSeconds(1))
+                .timeoutDuration(Duration.ofSeconds(5))
+                .build());
+
+        if (!config.interval().isZero()) {
+            long interval = config.interval().toMillis();
+            scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("reconciliation-schedule").daemon().factory());
+            scheduler.scheduleWithFixedDelay(this::start, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Start a run in the background. Returns false if one is already running.
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            log.info("Reconciliation is already running");
+            return false;
+        }
+        runner.execute(() -> {
+            try {
+                reconcile();
+            } finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Progress of the current run, or the report of the last one; null if there was none
+     */
+    public ReconciliationReport lastReport() {
+        Run run = current;
+        return run != null ? run.report(null, null) : lastReport;
+    }
+
+    private void reconcile() {
+        Run run = new Run(Instant.now());
+        current = run;
+        try {
+            lastReport = reconcile(run);
+        } finally {
+            current = null;
+        }
+    }
+
+    private ReconciliationReport reconcile(Run run) {
+        log.info("Starting reconciliation of realm users against {}", topic);
+
+        try {
+            Properties overrides = new Properties();
+            overrides.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+            try (Consumer<String, byte[]> consumer = consumerFactory.createConsumer(groupId, null, "-reconciliation", overrides)) {
+                List<TopicPartition> partitions = consumer.partitionsFor(topic).stream()
+                        .map(PartitionInfo::partition)
+                        .map(partition -> new TopicPartition(topic, partition))
+                        .toList();
+                consumer.assign(partitions);
+                Map<TopicPartition, Long> end = consumer.endOffsets(partitions);
+
+                LongLongMap latest = new LongLongMap(1024);
+                run.skipped.set(readSource(consumer, partitions, null, end, (record, payload, userData) ->
+                        latest.put(userData.userId(), position(record))));
+                log.info("Found {} users in {}", latest.size(), topic);
+
+                for (String target : router.targets()) {
+                    KeycloakUserIndex index = indexKeycloak(target, run);
+                    log.info("Indexed {} Keycloak users with a userId attribute in {}", index.size(), target);
+
+                    readSource(consumer, partitions, null, end, (record, payload, userData) -> {
+                        if (latest.get(userData.userId(), -1) == position(record) && target.equals(router.route(userData.companyId()))) {
+                            compare(target, record, payload, userData, index, run);
+                        }
+                    });
+
+                    handleOrphans(target, consumer, partitions, end, index, run);
+                }
+            }
+
+            run.awaitSubmitted();
+            ReconciliationReport report = run.report(Instant.now(), null);
+            log.info("Reconciliation finished: {}", report);
+            return report;
+        } catch (Exception e) {
+            log.error("Reconciliation failed: {}", e.getMessage(), e);
+            return run.report(Instant.now(), e.getMessage());
+        }
+    }
+
+    private KeycloakUserIndex indexKeycloak(String target, Run run) {
+        KeycloakUserIndex index = new KeycloakUserIndex(config.pageSize() * 16);
+        for (int first = 0; ; first += config.pageSize()) {
+            acquirePermission();
+            List<KeycloakUser> page = keycloakService.listUsers(target, first, config.pageSize());
+            for (KeycloakUser user : page) {
+                Long userId = userId(user);
+                if (userId != null && user.id() != null) {
+                    index.put(userId, user.id(), contentHash(user));
+                }
+            }
+            if (page.size() < config.pageSize()) {
+                run.keycloakUsers.addAndGet(index.size());
+                return index;
+            }
+        }
+    }
+
+    private void compare(String target, ConsumerRecord<String, byte[]> record, DebeziumPayload payload, UserData userData,
+                         KeycloakUserIndex index, Run run) {
+        int entry = index.find(userData.userId());
+        if (entry >= 0) {
+            index.markSeen(entry);
+        }
+        if (payload.after() != null) {
+            run.sourceUsers.incrementAndGet();
+        }
+
+        Source source = new Source(payload.position(), record.offset());
+        boolean inSync = payload.after() == null
+                ? entry < 0
+                : entry >= 0 && index.hash(entry) == contentHash(keycloakMapper.mapToKeycloakUser(userData));
+        if (inSync) {
+            run.unchanged.incrementAndGet();
+        } else if (isSuperseded(userData.userId(), source)) {
+            run.superseded.incrementAndGet();
+        } else if (payload.after() == null) {
+            delete(target, userData.userId(), index.keycloakId(entry), source, run);
+        } else if (entry < 0) {
+            run.created.incrementAndGet();
+            save(target, userData, null, source, run);
+        } else {
+            run.updated.incrementAndGet();
+            save(target, userData, index.keycloakId(entry), source, run);
+        }
+    }
+
+    /**
+     * Count, and with {@code delete-orphans} delete, the indexed users the source did not show. The topic is read on
+     * before each page of them, so a user created after the run read the source is not taken for an orphan.
+     */
+    private void handleOrphans(String target, Consumer<String, byte[]> consumer, List<TopicPartition> partitions,
+                               Map<TopicPartition, Long> end, KeycloakUserIndex index, Run run) {
+        Map<TopicPartition, Long> readTo = end;
+        int entry = index.nextUnseen(0);
+        while (entry >= 0) {
+            Map<TopicPartition, Long> current = consumer.endOffsets(partitions);
+            readSource(consumer, partitions, readTo, current, (record, payload, userData) -> {
+                int appeared = index.find(userData.userId());
+                if (appeared >= 0) {
+                    index.markSeen(appeared);
+                }
+            });
+            readTo = current;
+
+            for (int page = 0; page < config.pageSize() && (entry = index.nextUnseen(entry)) >= 0; page++, entry++) {
+                run.orphans.incrementAndGet();
+                if (config.deleteOrphans()) {
+                    delete(target, index.userId(entry), index.keycloakId(entry), null, run);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save through the normal path. The fingerprint is dropped first, it is what let Keycloak drift unnoticed.
+     */
+    private void save(String target, UserData userData, String keycloakId, Source source, Run run) {
+        fingerprintStore.invalidate(userData.userId());
+        if (keycloakId != null) {
+            idCache.put(userData.userId(), keycloakId);
+        }
+        submit(target, userData.userId(), () -> userSyncService.handleUserSave(userData), source, run, keycloakId == null ? "create" : "update");
+    }
+
+    /**
+     * Delete a user whose latest source record is a delete, or an orphan if {@code source} is null
+     */
+    private void delete(String target, long userId, String keycloakId, Source source, Run run) {
+        run.deleted.incrementAndGet();
+        idCache.put(userId, keycloakId);
+        UserData userData = new UserData(null, userId, null, null, null, null, null);
+        submit(target, userId, () -> userSyncService.handleUserDelete(target, userData), source, run, "delete");
+    }
+
+    private void submit(String target, long userId, Supplier<CompletableFuture<Void>> change, Source source, Run run, String action) {
+        awaitLiveTraffic();
+        acquirePermission();
+        changeCounters.get(action).increment();
+
+        run.submitted.incrementAndGet();
+        dispatcher.dispatch(userId, target, Lane.BACKFILL, () -> {
+            // The live path may have moved past the record while the change waited for its turn
+            if (source != null && isSuperseded(userId, source)) {
+                run.superseded.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+            return change.get();
+        }).whenComplete((result, error) -> {
+            if (error != null) {
+                run.failed.incrementAndGet();
+            }
+            run.submitted.decrementAndGet();
+        });
+    }
+
+    private Counter changeCounter(String action) {
+        return Counter.builder("usersync.reconciliation.changes")
+                .description("Changes submitted by reconciliation")
+                .tag("action", action)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Wait while live consumption is paused, so reconciliation never adds to a backlog that is already too deep
+     */
+    private void awaitLiveTraffic() {
+        try {
+            while (consumptionGate.isPaused()) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for live traffic", e);
+        }
+    }
+
+    private void acquirePermission() {
+        while (!rateLimiter.acquirePermission()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("Interrupted while waiting for the reconciliation rate limit");
+            }
+        }
+    }
+
+    /**
+     * Read every partition from the offsets in {@code start}, or from the beginning if null, up to the offsets in
+     * {@code end}, decoding each record. Tombstones are ignored. Returns the number of records that could not be decoded.
+     */
+    private long readSource(Consumer<String, byte[]> consumer, List<TopicPartition> partitions,
+                            Map<TopicPartition, Long> start, Map<TopicPartition, Long> end, SourceHandler handler) {
+        if (start == null) {
+            consumer.seekToBeginning(partitions);
+        } else {
+            start.forEach(consumer::seek);
+        }
+        long skipped = 0;
+
+        while (partitions.stream().anyMatch(partition -> consumer.position(partition) < end.get(partition))) {
+            for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                if (record.offset() >= end.get(new TopicPartition(record.topic(), record.partition())) || record.value() == null) {
+                    continue;
+                }
+                try {
+                    DebeziumPayload payload = messageMapper.parse(record.value());
+                    if (payload == null) {
+                        continue;
+                    }
+                    UserData userData = messageMapper.mapToUserData(payload);
+                    if (userData.userId() == null) {
+                        skipped++;
+                        continue;
+                    }
+                    handler.handle(record, payload, userData);
+                } catch (Exception e) {
+                    log.debug("Skipping undecodable record {}-{}@{}: {}", record.topic(), record.partition(), record.offset(), e.getMessage());
+                    skipped++;
+                }
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Partition in the top 16 bits, offset in the rest
+     */
+    private static long position(ConsumerRecord<?, ?> record) {
+        return ((long) record.partition() << 48) | record.offset();
+    }
+
+    private static Long userId(KeycloakUser user) {
+        if (user.attributes() == null) {
+            return null;
+        }
+        List<String> values = user.attributes().get(USER_ID_ATTRIBUTE);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(values.getFirst());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hash of the fields Keycloak returns and the sync manages. Credentials are never returned, so they are left out;
+     * Keycloak lowercases emails and may drop empty names.
+     */
+    static long contentHash(KeycloakUser user) {
+        long hash = UserFingerprintStore.FNV_OFFSET;
+        hash = UserFingerprintStore.hash(hash, blankToNull(user.username()));
+        hash = UserFingerprintStore.hash(hash, String.valueOf(Boolean.TRUE.equals(user.enabled())));
+        hash = UserFingerprintStore.hash(hash, blankToNull(user.firstName()));
+        hash = UserFingerprintStore.hash(hash, blankToNull(user.lastName()));
+        hash = UserFingerprintStore.hash(hash, user.email() == null ? null : blankToNull(user.email().toLowerCase(Locale.ROOT)));
+        for (String attribute : MANAGED_ATTRIBUTES) {
+            List<String> values = user.attributes() == null ? null : user.attributes().get(attribute);
+            if (values != null) {
+                for (String value : values) {
+                    hash = UserFingerprintStore.hash(hash, value);
+                }
+            }
+            hash = UserFingerprintStore.hash(hash, null);
+        }
+        return hash;
+    }
+
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        runner.shutdownNow();
+    }
+
+    /**
+     * Where the record a change was taken from stands in the database log and on the topic
+     */
+    private record Source(long position, long offset) {
+    }
+
+    private boolean isSuperseded(long userId, Source source) {
+        return positionStore.isSuperseded(userId, source.position(), source.offset());
+    }
+
+    @FunctionalInterface
+    private interface SourceHandler {
+        void handle(ConsumerRecord<String, byte[]> record, DebeziumPayload payload, UserData userData);
+    }
+
+    /**
+     * Counts of one run; changes complete on other threads
+     */
+    private static final class Run {
+        private final Instant startedAt;
+        private final AtomicLong keycloakUsers = new AtomicLong();
+        private final AtomicLong sourceUsers = new AtomicLong();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong updated = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+        private final AtomicLong superseded = new AtomicLong();
+        private final AtomicLong orphans = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong submitted = new AtomicLong();
+
+        private Run(Instant startedAt) {
+            this.startedAt = startedAt;
+        }
+
+        private void awaitSubmitted() throws InterruptedException {
+            while (submitted.get() > 0) {
+                Thread.sleep(100);
+            }
+        }
+
+        private ReconciliationReport report(Instant finishedAt, String error) {
+            return new ReconciliationReport(startedAt, finishedAt, keycloakUsers.get(), sourceUsers.get(),
+                    created.get(), updated.get(), deleted.get(), unchanged.get(), superseded.get(), orphans.get(), failed.get(),
+                    skipped.get(), error);
+        }
+    }
+}
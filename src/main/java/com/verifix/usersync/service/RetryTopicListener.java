@@ -0,0 +1,104 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.model.EventSource;
+import com.verifix.usersync.model.UserChangeEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Consumes the retry tiers on its own consumer, so records waiting for their delay never hold up the main listener.
+ * A record that is not due yet pauses its partition until it is; later records in the tier are due later still.
+ * <p>
+ * A retry is waited for at most half of {@code max.poll.interval.ms}, one record per poll, so the consumer stays in
+ * its group while Keycloak is down and the processor holds the change. A record still in flight then is handed back
+ * and, when it is delivered again, waited for anew instead of being applied a second time. A record whose change
+ * could not be sent on to the next tier is handed back as well and retried again.
+ */
+@Service
+@Slf4j
+public class RetryTopicListener {
+    private static final Duration MAX_PAUSE = Duration.ofSeconds(30);
+    private static final Duration SEND_FAILURE_PAUSE = Duration.ofSeconds(5);
+
+    private final UserChangeDecoder decoder;
+    private final UserChangeProcessor processor;
+    private final long maxWaitMillis;
+    // The retry still running for a record that was handed back; only touched by the listener thread
+    private InFlight inFlight;
+
+    public RetryTopicListener(UserChangeDecoder decoder,
+                              UserChangeProcessor processor,
+                              ConsumerFactory<String, byte[]> consumerFactory) {
+        this.decoder = decoder;
+        this.processor = processor;
+        Object maxPollInterval = consumerFactory.getConfigurationProperties().get(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG);
+        this.maxWaitMillis = (maxPollInterval == null ? 300_000 : Long.parseLong(maxPollInterval.toString())) / 2;
+    }
+
+    @KafkaListener(id = "usersync-retry", topics = "#{@failedRecordPublisher.retryTopics()}",
+            groupId = "${spring.kafka.consumer.group-id}-retry", batch = "false",
+            properties = ConsumerConfig.MAX_POLL_RECORDS_CONFIG + "=1")
+    public void consumeRetry(ConsumerRecord<String, byte[]> record, Acknowledgment acknowledgment) {
+        String due = FailedRecordPublisher.headerValue(record.headers(), FailedRecordPublisher.HEADER_DUE);
+        long wait = due == null ? 0 : Long.parseLong(due) - System.currentTimeMillis();
+        if (wait > 0) {
+            log.debug("Record {}-{}@{} is due in {} ms", record.topic(), record.partition(), record.offset(), wait);
+            acknowledgment.nack(Duration.ofMillis(Math.min(wait, MAX_PAUSE.toMillis())));
+            return;
+        }
+
+        CompletableFuture<Void> retry = inFlight != null && inFlight.isOf(record) ? inFlight.retry() : retry(record);
+        inFlight = null;
+
+        // Waiting here only blocks the retry consumer
+        try {
+            retry.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("Retry of record {}-{}@{} still running after {} ms, handing it back", record.topic(), record.partition(), record.offset(), maxWaitMillis);
+            inFlight = new InFlight(record.topic(), record.partition(), record.offset(), retry);
+            acknowledgment.nack(Duration.ZERO);
+            return;
+        } catch (ExecutionException e) {
+            // Failed changes complete normally once sent on to the next tier, so this one could not be sent
+            log.error("Failed to send record {}-{}@{} on, reading it again: {}", record.topic(), record.partition(), record.offset(),
+                    e.getCause().getMessage());
+            acknowledgment.nack(SEND_FAILURE_PAUSE);
+            return;
+        }
+        acknowledgment.acknowledge();
+    }
+
+    private CompletableFuture<Void> retry(ConsumerRecord<String, byte[]> record) {
+        EventSource source = FailedRecordPublisher.sourceOf(record.key(), record.value(), record.headers());
+        log.info("Retrying record {}-{}@{}, attempt {}", source.topic(), source.partition(), source.offset(), source.attempts() + 1);
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>(2);
+        UserChangeEvent event = decoder.decode(source, pending);
+        if (event != null) {
+            pending.add(processor.process(List.of(event)));
+        }
+        return CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new));
+    }
+
+    private record InFlight(String topic, int partition, long offset, CompletableFuture<Void> retry) {
+        boolean isOf(ConsumerRecord<?, ?> record) {
+            return record.topic().equals(topic) && record.partition() == partition && record.offset() == offset;
+        }
+    }
+}
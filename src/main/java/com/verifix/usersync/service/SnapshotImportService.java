@@ -0,0 +1,110 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserChangeGroup;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import com.verifix.usersync.model.keycloak.PartialImportPolicy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Loads connector snapshots (op=r events) in bulk through Keycloak's partialImport
+ */
+@Service
+@Slf4j
+public class SnapshotImportService {
+    private final KeycloakService keycloakService;
+    private final KeycloakRouter router;
+    private final UserFingerprintStore fingerprintStore;
+    private final ApplicationProperties.Snapshot config;
+
+    public SnapshotImportService(KeycloakService keycloakService,
+                                 KeycloakRouter router,
+                                 UserFingerprintStore fingerprintStore,
+                                 ApplicationProperties properties) {
+        this.keycloakService = keycloakService;
+        this.router = router;
+        this.fingerprintStore = fingerprintStore;
+        this.config = properties.snapshot();
+    }
+
+    /**
+     * Whether the group is a plain snapshot read that can go through bulk import
+     */
+    public boolean accepts(UserChangeGroup group) {
+        if (!config.enabled() || group.collapsed().size() != 1) {
+            return false;
+        }
+        UserChangeEvent event = group.collapsed().getFirst();
+        return event.operation() == DebeziumOperation.READ;
+    }
+
+    public int chunkSize() {
+        return config.chunkSize();
+    }
+
+    /**
+     * Import one chunk of users, with one partialImport call per Keycloak target. Completes with the users that
+     * were not imported and have to be retried one at a time through the normal path; never completes exceptionally.
+     * Users whose representation did not change since the last write are left out of the import.
+     */
+    public CompletableFuture<List<UserData>> importChunk(List<UserData> users) {
+        Map<Long, Long> fingerprints = new HashMap<>(users.size() * 2);
+        Map<String, List<UserData>> changed = new LinkedHashMap<>();
+        for (UserData userData : users) {
+            long fingerprint = fingerprintStore.fingerprint(userData);
+            if (!fingerprintStore.isUnchanged(userData.userId(), fingerprint, "snapshot")) {
+                fingerprints.put(userData.userId(), fingerprint);
+                changed.computeIfAbsent(router.route(userData.companyId()), target -> new ArrayList<>()).add(userData);
+            }
+        }
+        if (changed.isEmpty()) {
+            log.info("Skipping import of {} users: no changes since last write", users.size());
+            return CompletableFuture.completedFuture(List.of());
+        }
+
+        List<CompletableFuture<List<UserData>>> imports = changed.entrySet().stream()
+                .map(entry -> importTarget(entry.getKey(), entry.getValue(), fingerprints))
+                .toList();
+        return CompletableFuture.allOf(imports.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> imports.stream().flatMap(result -> result.join().stream()).toList());
+    }
+
+    private CompletableFuture<List<UserData>> importTarget(String target, List<UserData> changed, Map<Long, Long> fingerprints) {
+        return keycloakService.importUsersAsync(target, changed, config.ifUserExists())
+                .handle((notImported, error) -> {
+                    if (error != null) {
+                        log.error("Bulk import of {} users into {} failed, retrying them one at a time: {}", changed.size(), target, error.getMessage());
+                        return changed;
+                    }
+                    if (!notImported.isEmpty()) {
+                        log.warn("{} of {} users were not imported into {}, retrying them one at a time", notImported.size(), changed.size(), target);
+                    }
+                    recordImported(changed, notImported, fingerprints);
+                    return notImported;
+                });
+    }
+
+    /**
+     * Users reported as added or overwritten now hold exactly what was sent; skipped ones are saved later
+     */
+    private void recordImported(List<UserData> imported, List<UserData> notImported, Map<Long, Long> fingerprints) {
+        Set<Long> failed = notImported.stream().map(UserData::userId).collect(Collectors.toSet());
+        for (UserData userData : imported) {
+            if (!failed.contains(userData.userId())) {
+                fingerprintStore.record(userData.userId(), fingerprints.get(userData.userId()));
+            }
+        }
+    }
+}
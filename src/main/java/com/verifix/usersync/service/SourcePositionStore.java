@@ -0,0 +1,213 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.debezium.DebeziumSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded store of userId to the database log position of the last change applied to Keycloak for that user.
+ * Marks are ordered by log position and then by the offset of the record on the main topic, which tells apart
+ * changes of one transaction that share an Oracle SCN. A change at or below the user's mark was applied already,
+ * or is older than what was.
+ * <p>
+ * Marks live in three parallel primitive arrays, 24 bytes per slot. A user has its place in one bucket of
+ * {@value #WAYS} slots; when the bucket is full, the user whose last change is oldest makes room. A user without a
+ * mark has all its changes applied, as if the store were not there.
+ * <p>
+ * Marks only move forward. When log positions start over, e.g. after the database was restored or the connector
+ * replaced, every change would look old; {@link #reset} forgets the marks, as does a restart.
+ */
+@Component
+public class SourcePositionStore {
+    public enum Verdict {
+        APPLY, DUPLICATE, OUT_OF_ORDER
+    }
+
+    private static final int WAYS = 8;
+    private static final long FREE = -1;
+
+    private final boolean enabled;
+    private final long[] userIds;
+    private final long[] positions;
+    private final long[] offsets;
+    private final int bucketMask;
+    private final Counter duplicates;
+    private final Counter outOfOrder;
+    private int size;
+
+    public SourcePositionStore(ApplicationProperties properties, MeterRegistry meterRegistry) {
+        ApplicationProperties.Positions config = properties.positions();
+        this.enabled = config.enabled();
+        int buckets = enabled ? Integer.highestOneBit(Math.max(1, (config.maxSize() + WAYS - 1) / WAYS - 1)) << 1 : 1;
+        this.bucketMask = buckets - 1;
+        this.userIds = new long[buckets * WAYS];
+        this.positions = new long[userIds.length];
+        this.offsets = new long[userIds.length];
+        Arrays.fill(userIds, FREE);
+
+        this.duplicates = droppedCounter(meterRegistry, "duplicate");
+        this.outOfOrder = droppedCounter(meterRegistry, "out_of_order");
+        Gauge.builder("usersync.positions.size", this, store -> store.size())
+                .description("Users with a remembered log position")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Whether a change should still be applied. Changes at the mark count as duplicates, changes below it as out of
+     * order. {@code latest} is the newest change of the user accepted earlier in the same batch, or null.
+     */
+    public Verdict check(UserChangeEvent event, UserChangeEvent latest) {
+        long position = event.position();
+        if (!enabled || position == DebeziumSource.NONE) {
+            return Verdict.APPLY;
+        }
+
+        long offset = event.source().offset();
+        Verdict verdict;
+        if (latest != null && latest.position() != DebeziumSource.NONE) {
+            verdict = compare(position, offset, latest.position(), latest.source().offset());
+        } else {
+            verdict = check(event.userData().userId(), position, offset);
+        }
+
+        switch (verdict) {
+            case DUPLICATE -> duplicates.increment();
+            case OUT_OF_ORDER -> outOfOrder.increment();
+            default -> {
+            }
+        }
+        return verdict;
+    }
+
+    /**
+     * Raise the user's mark to the newest of the changes, once they are applied
+     */
+    public void record(Long userId, List<UserChangeEvent> events) {
+        if (!enabled) {
+            return;
+        }
+        UserChangeEvent newest = null;
+        for (UserChangeEvent event : events) {
+            if (event.position() != DebeziumSource.NONE && (newest == null
+                    || compare(event.position(), event.source().offset(), newest.position(), newest.source().offset()) == Verdict.APPLY)) {
+                newest = event;
+            }
+        }
+        if (newest != null) {
+            record(userId, newest.position(), newest.source().offset());
+        }
+    }
+
+    /**
+     * Whether a change newer than the one at {@code position} and {@code offset} was applied to the user already.
+     * Unlike {@link #check}, the change itself counts as not superseded and nothing is counted as dropped.
+     */
+    public synchronized boolean isSuperseded(long userId, long position, long offset) {
+        if (!enabled || position == DebeziumSource.NONE || userId < 0) {
+            return false;
+        }
+        int slot = find(userId);
+        return slot >= 0 && (positions[slot] > position || (positions[slot] == position && offsets[slot] > offset));
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Forget the mark of one user, or of every user when {@code userId} is null, so their next changes are applied
+     * whatever their position
+     *
+     * @return the number of marks forgotten
+     */
+    public synchronized int reset(Long userId) {
+        if (userId == null) {
+            int forgotten = size;
+            Arrays.fill(userIds, FREE);
+            size = 0;
+            return forgotten;
+        }
+        int slot = userId < 0 ? -1 : find(userId);
+        if (slot < 0) {
+            return 0;
+        }
+        userIds[slot] = FREE;
+        size--;
+        return 1;
+    }
+
+    private synchronized Verdict check(long userId, long position, long offset) {
+        int slot = userId < 0 ? -1 : find(userId);
+        return slot < 0 ? Verdict.APPLY : compare(position, offset, positions[slot], offsets[slot]);
+    }
+
+    private synchronized void record(long userId, long position, long offset) {
+        if (userId < 0) {
+            return;
+        }
+        int slot = find(userId);
+        if (slot >= 0) {
+            if (compare(position, offset, positions[slot], offsets[slot]) == Verdict.APPLY) {
+                positions[slot] = position;
+                offsets[slot] = offset;
+            }
+            return;
+        }
+
+        // A free slot of the bucket, else the one with the oldest change
+        int start = bucket(userId);
+        int victim = start;
+        for (slot = start; slot < start + WAYS; slot++) {
+            if (userIds[slot] == FREE) {
+                victim = slot;
+                size++;
+                break;
+            }
+            if (positions[slot] < positions[victim]) {
+                victim = slot;
+            }
+        }
+        userIds[victim] = userId;
+        positions[victim] = position;
+        offsets[victim] = offset;
+    }
+
+    private int find(long userId) {
+        int start = bucket(userId);
+        for (int slot = start; slot < start + WAYS; slot++) {
+            if (userIds[slot] == userId) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int bucket(long userId) {
+        long h = userId * 0x9E3779B97F4A7C15L;
+        return ((int) (h ^ (h >>> 32)) & bucketMask) * WAYS;
+    }
+
+    private static Verdict compare(long position, long offset, long markPosition, long markOffset) {
+        if (position < markPosition) {
+            return Verdict.OUT_OF_ORDER;
+        }
+        if (position == markPosition && offset <= markOffset) {
+            return Verdict.DUPLICATE;
+        }
+        return Verdict.APPLY;
+    }
+
+    private static Counter droppedCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("usersync.events.dropped")
+                .description("Change events dropped because the user's mark was at or past their log position")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+}
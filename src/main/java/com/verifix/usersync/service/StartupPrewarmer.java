@@ -0,0 +1,96 @@
+package com.verifix.usersync.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.mapper.MessageMapper;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumPayload;
+import com.verifix.usersync.model.keycloak.KeycloakUser;
+import com.verifix.usersync.model.keycloak.PartialImportPolicy;
+import com.verifix.usersync.model.keycloak.PartialImportRequest;
+import com.verifix.usersync.model.keycloak.PartialImportResult;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLContext;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Runs one synthetic user through the decode and mapping path before the listener starts, so the first real event
+ * does not pay for loading the Jackson serializers, the ICU transliterator or the HTTP client classes.
+ * It runs before lifecycle beans start, so a CDS training run that exits on refresh archives these classes as well.
+ * Nothing is sent to Kafka or Keycloak.
+ */
+@Component
+@Slf4j
+public class StartupPrewarmer implements SmartInitializingSingleton {
+    // Cyrillic name and login, so the transliterator is loaded too
+    private static final String ENVELOPE = """
+            {"payload":{"op":"u","before":{"COMPANY_ID":1,"USER_ID":"AQ==","NAME":"Иван Петров","LOGIN":"иван","STATE":"A"},
+            "after":{"COMPANY_ID":1,"USER_ID":"AQ==","NAME":"Иван Петров","LOGIN":"иван.петров","PASSWORD":"5baa61e4c9b93f3f0682250b6cf8331b7ee68fd8",
+            "EMAIL":"ivan@example.com","STATE":"A"},"source":{"ts_ms":0,"snapshot":"false","scn":"1"}}}""";
+
+    private final MessageMapper messageMapper;
+    private final KeycloakMapper keycloakMapper;
+    private final ObjectMapper objectMapper;
+    private final KeycloakTargets keycloakTargets;
+    private final boolean enabled;
+
+    public StartupPrewarmer(MessageMapper messageMapper,
+                            KeycloakMapper keycloakMapper,
+                            ObjectMapper objectMapper,
+                            KeycloakTargets keycloakTargets,
+                            ApplicationProperties properties) {
+        this.messageMapper = messageMapper;
+        this.keycloakMapper = keycloakMapper;
+        this.objectMapper = objectMapper;
+        this.keycloakTargets = keycloakTargets;
+        this.enabled = properties.startup().prewarm();
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (!enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            prewarm();
+            log.info("Prewarmed the sync path in {} ms", (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            // Only the first event gets slower
+            log.warn("Failed to prewarm the sync path: {}", e.getMessage());
+        }
+    }
+
+    private void prewarm() throws Exception {
+        DebeziumPayload payload = messageMapper.parse(ENVELOPE.getBytes(StandardCharsets.UTF_8));
+        messageMapper.hasRelevantChanges(payload.before(), payload.after());
+        UserData userData = messageMapper.mapToUserData(payload);
+        KeycloakUser user = keycloakMapper.mapToKeycloakUser(userData);
+
+        // The types the Keycloak admin API calls write and read
+        objectMapper.writeValueAsBytes(new PartialImportRequest(PartialImportPolicy.SKIP, List.of(user)));
+        objectMapper.readValue(objectMapper.writeValueAsBytes(List.of(user)), new TypeReference<List<KeycloakUser>>() {
+        });
+        objectMapper.readValue("""
+                {"added":1,"skipped":0,"overwritten":0,"results":[{"action":"ADDED","resourceType":"USER","resourceName":"ivan","id":"1"}]}""",
+                PartialImportResult.class);
+
+        // Requests are created but never executed
+        boolean tls = false;
+        for (KeycloakTarget target : keycloakTargets.all()) {
+            target.restTemplate().getRequestFactory().createRequest(URI.create(target.baseUrl()), HttpMethod.GET);
+            tls |= target.baseUrl().startsWith("https:");
+        }
+        if (tls) {
+            SSLContext.getDefault().createSSLEngine();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Stage timers and event counters of the sync pipeline. All meters are registered up front,
+ * so recording on the hot path is a map lookup and an atomic add.
+ */
+@Component
+public class SyncMetrics {
+    private static final String UNKNOWN = "unknown";
+
+    public enum Stage {
+        PARSE, FILTER, MAP, LOOKUP, CREATE, UPDATE, DELETE
+    }
+
+    public enum Outcome {
+        PROCESSED, SKIPPED, FAILED
+    }
+
+    private final Map<Stage, Timer> stageTimers = new EnumMap<>(Stage.class);
+    private final Map<Outcome, Map<DebeziumOperation, Counter>> eventCounters = new EnumMap<>(Outcome.class);
+    private final Map<Outcome, Counter> unknownOperationCounters = new EnumMap<>(Outcome.class);
+
+    public SyncMetrics(MeterRegistry meterRegistry) {
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, Timer.builder("usersync.stage")
+                    .description("Time spent in each stage of syncing an event")
+                    .tag("stage", stage.name().toLowerCase(Locale.ROOT))
+                    .register(meterRegistry));
+        }
+
+        for (Outcome outcome : Outcome.values()) {
+            Map<DebeziumOperation, Counter> counters = new EnumMap<>(DebeziumOperation.class);
+            for (DebeziumOperation operation : DebeziumOperation.values()) {
+                counters.put(operation, eventCounter(meterRegistry, outcome, operation.name().toLowerCase(Locale.ROOT)));
+            }
+            eventCounters.put(outcome, counters);
+            unknownOperationCounters.put(outcome, eventCounter(meterRegistry, outcome, UNKNOWN));
+        }
+    }
+
+    private static Counter eventCounter(MeterRegistry meterRegistry, Outcome outcome, String operation) {
+        return Counter.builder("usersync.events")
+                .description("Change events by operation and outcome")
+                .tag("operation", operation)
+                .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                .register(meterRegistry);
+    }
+
+    /**
+     * Record a synchronous stage that started at {@code startNanos} ({@link System#nanoTime()})
+     */
+    public void record(Stage stage, long startNanos) {
+        stageTimers.get(stage).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Time an asynchronous stage from the call until its future completes
+     */
+    public <T> CompletableFuture<T> time(Stage stage, Supplier<CompletableFuture<T>> call) {
+        long start = System.nanoTime();
+        return call.get().whenComplete((result, error) -> record(stage, start));
+    }
+
+    /**
+     * Count an event; {@code operation} may be null when the event could not be decoded
+     */
+    public void count(Outcome outcome, DebeziumOperation operation) {
+        Counter counter = operation == null
+                ? unknownOperationCounters.get(outcome)
+                : eventCounters.get(outcome).get(operation);
+        counter.increment();
+    }
+}
@@ -0,0 +1,151 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserChangeGroup;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Applies collapsed user changes to Keycloak, one user group at a time or as a bulk snapshot import. Shared by the
+ * consumer and the dump replay, so both retry alike and move the user's mark in the {@link SourcePositionStore} and
+ * the sync metrics the same way. What happens to a change that keeps failing is up to the caller.
+ */
+@Component
+@Slf4j
+public class UserChangeApplier {
+    private final SnapshotImportService snapshotImportService;
+    private final UserSyncService userSyncService;
+    private final SourcePositionStore positionStore;
+    private final SyncMetrics metrics;
+    private final ApplicationProperties.Dispatcher config;
+
+    public UserChangeApplier(SnapshotImportService snapshotImportService,
+                             UserSyncService userSyncService,
+                             SourcePositionStore positionStore,
+                             SyncMetrics metrics,
+                             ApplicationProperties properties) {
+        this.snapshotImportService = snapshotImportService;
+        this.userSyncService = userSyncService;
+        this.positionStore = positionStore;
+        this.metrics = metrics;
+        this.config = properties.dispatcher();
+    }
+
+    /**
+     * Apply the collapsed operations of a group, retrying the whole group after a backoff on failure.
+     * Only this user's chain waits for the retry. Calls refused by the open Keycloak circuit breaker do not use up
+     * attempts; the group waits until the breaker lets requests through again. Once the attempts are used up, the
+     * collapsed events are counted as failed and the future completes with the last error.
+     */
+    public CompletableFuture<Void> applyWithRetry(UserChangeGroup group) {
+        return applyWithRetry(group, 1);
+    }
+
+    /**
+     * Bulk import the snapshot reads of the groups, one collapsed event each. Imported users are counted and their
+     * mark moved; the future holds the userIds the import did not confirm, which go through the normal path.
+     */
+    public CompletableFuture<Set<Long>> importSnapshot(List<UserChangeGroup> groups) {
+        List<UserData> users = groups.stream().map(group -> group.collapsed().getFirst().userData()).toList();
+        return snapshotImportService.importChunk(users).thenApply(failed -> {
+            Set<Long> notImported = failed.stream().map(UserData::userId).collect(Collectors.toSet());
+            for (UserChangeGroup group : groups) {
+                if (!notImported.contains(group.userId())) {
+                    metrics.count(SyncMetrics.Outcome.PROCESSED, DebeziumOperation.READ);
+                    positionStore.record(group.userId(), group.events());
+                }
+            }
+            return notImported;
+        });
+    }
+
+    private CompletableFuture<Void> applyWithRetry(UserChangeGroup group, int attempt) {
+        return applyGroup(group).exceptionallyCompose(error -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+
+            if (isRejectedByCircuitBreaker(cause)) {
+                log.debug("Keycloak circuit breaker is open, holding userId {}", group.userId());
+                return delayed(() -> applyWithRetry(group, attempt));
+            }
+
+            if (attempt >= config.maxAttempts()) {
+                log.error("Failed to sync userId {} after {} attempts: {}", group.userId(), attempt, cause.getMessage());
+                group.collapsed().forEach(event -> metrics.count(SyncMetrics.Outcome.FAILED, event.operation()));
+                return CompletableFuture.failedFuture(cause);
+            }
+
+            log.warn("Attempt {} to sync userId {} failed, retrying in {}: {}", attempt, group.userId(), config.retryBackoff(), cause.getMessage());
+            return delayed(() -> applyWithRetry(group, attempt + 1));
+        });
+    }
+
+    private CompletableFuture<Void> delayed(Supplier<CompletableFuture<Void>> task) {
+        Executor delayed = CompletableFuture.delayedExecutor(config.retryBackoff().toMillis(), TimeUnit.MILLISECONDS);
+        return CompletableFuture.runAsync(() -> {
+        }, delayed).thenCompose(ignored -> task.get());
+    }
+
+    static boolean isRejectedByCircuitBreaker(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CallNotPermittedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Apply the collapsed operations in order; once all succeeded, the user's mark moves past every event of the group
+     */
+    private CompletableFuture<Void> applyGroup(UserChangeGroup group) {
+        CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+        for (UserChangeEvent event : group.collapsed()) {
+            result = result.thenCompose(ignored -> applyEvent(event));
+        }
+        return result.thenRun(() -> positionStore.record(group.userId(), group.events()));
+    }
+
+    private CompletableFuture<Void> applyEvent(UserChangeEvent event) {
+        DebeziumOperation operation = event.operation();
+        UserData userData = event.userData();
+
+        log.info("Processing {} operation for userId: {}, login: {}", operation, userData.userId(), userData.login());
+
+        CompletableFuture<Void> result = switch (operation) {
+            case READ -> {
+                log.debug("Processing user.read event for userId: {}, login: {}", userData.userId(), userData.login());
+                yield userSyncService.handleUserSave(userData);
+            }
+            case CREATE -> {
+                log.debug("Processing user.add event for userId: {}, login: {}", userData.userId(), userData.login());
+                yield userSyncService.handleUserSave(userData);
+            }
+            case UPDATE -> {
+                log.debug("Processing user.edit event for userId: {}, login: {}", userData.userId(), userData.login());
+                yield userSyncService.handleUserSave(userData);
+            }
+            case DELETE -> {
+                log.debug("Processing user.delete event for userId: {}, login: {}", userData.userId(), userData.login());
+                yield userSyncService.handleUserDelete(userData);
+            }
+        };
+
+        return result.thenRun(() -> {
+            metrics.count(SyncMetrics.Outcome.PROCESSED, operation);
+            log.info("Successfully processed {} operation for userId: {}, login: {}", operation, userData.userId(), userData.login());
+        });
+    }
+}
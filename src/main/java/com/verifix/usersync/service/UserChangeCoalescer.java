@@ -0,0 +1,52 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserChangeGroup;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Component
+public class UserChangeCoalescer {
+
+    /**
+     * Group events by userId and collapse each group to its final state.
+     * Groups are returned in the order of their first event.
+     */
+    public List<UserChangeGroup> coalesce(List<UserChangeEvent> events) {
+        Map<Long, List<UserChangeEvent>> byUser = new LinkedHashMap<>();
+        for (UserChangeEvent event : events) {
+            byUser.computeIfAbsent(event.userData().userId(), k -> new ArrayList<>()).add(event);
+        }
+
+        List<UserChangeGroup> groups = new ArrayList<>(byUser.size());
+        byUser.forEach((userId, userEvents) -> groups.add(new UserChangeGroup(userId, userEvents, collapse(userEvents))));
+        return groups;
+    }
+
+    /**
+     * A delete wins over every save before it; only the last save after the last delete is kept.
+     * The result is therefore one of: [save], [delete] or [delete, save].
+     */
+    private List<UserChangeEvent> collapse(List<UserChangeEvent> events) {
+        UserChangeEvent lastDelete = null;
+        UserChangeEvent lastSave = null;
+
+        for (UserChangeEvent event : events) {
+            if (event.isDelete()) {
+                lastDelete = event;
+                lastSave = null;
+            } else {
+                lastSave = event;
+            }
+        }
+
+        if (lastDelete == null) {
+            return List.of(lastSave);
+        }
+        return lastSave == null ? List.of(lastDelete) : List.of(lastDelete, lastSave);
+    }
+}
@@ -0,0 +1,156 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.mapper.MessageMapper;
+import com.verifix.usersync.model.EventSource;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import com.verifix.usersync.model.debezium.DebeziumPayload;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Decodes Debezium records into change events for the main and the retry listeners
+ */
+@Component
+@Slf4j
+public class UserChangeDecoder {
+    private final MessageMapper messageMapper;
+    private final FailedRecordPublisher failedRecordPublisher;
+    private final SyncMetrics metrics;
+
+    public UserChangeDecoder(MessageMapper messageMapper, FailedRecordPublisher failedRecordPublisher, SyncMetrics metrics) {
+        this.messageMapper = messageMapper;
+        this.failedRecordPublisher = failedRecordPublisher;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Decode a record into a change event. Returns null when the record should be skipped.
+     * Records that cannot be decoded go straight to the dead-letter topic; the send is added to {@code deadLetters}.
+     */
+    public UserChangeEvent decode(EventSource source, List<CompletableFuture<Void>> deadLetters) {
+        log.debug("Decoding message from topic: {}, partition: {}, offset: {}", source.topic(), source.partition(), source.offset());
+
+        try {
+            return processMessage(source);
+        } catch (IOException e) {
+            log.error("JSON processing error for message: {}", e.getMessage());
+            logProblematicMessage(source.value());
+            deadLetters.add(deadLetter(source, e));
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid message format: {}", e.getMessage());
+            logProblematicMessage(source.value());
+            deadLetters.add(deadLetter(source, e));
+        } catch (Exception e) {
+            log.error("Unexpected error processing message: {}", e.getMessage(), e);
+            logProblematicMessage(source.value());
+            deadLetters.add(deadLetter(source, e));
+        }
+        return null;
+    }
+
+    /**
+     * Decode a record into a change event, or null when it should be skipped. Records that cannot be decoded throw
+     * instead of going to the dead-letter topic, for callers that keep failed records themselves.
+     */
+    public UserChangeEvent decodeOrThrow(EventSource source) throws IOException {
+        return processMessage(source);
+    }
+
+    private CompletableFuture<Void> deadLetter(EventSource source, Exception cause) {
+        metrics.count(SyncMetrics.Outcome.FAILED, null);
+        return failedRecordPublisher.deadLetter(source, cause);
+    }
+
+    private void logProblematicMessage(byte[] message) {
+        log.error("Problematic message: {}", message != null ? new String(message, StandardCharsets.UTF_8) : null);
+    }
+
+    private UserChangeEvent processMessage(EventSource source) throws IOException {
+        byte[] messageValue = source.value();
+        if (messageValue == null || messageValue.length == 0) {
+            log.warn("Received message with empty value, skipping");
+            metrics.count(SyncMetrics.Outcome.SKIPPED, null);
+            return null;
+        }
+
+        // Parse payload
+        DebeziumPayload payload;
+        long start = System.nanoTime();
+        try {
+            payload = messageMapper.parse(messageValue);
+        } catch (IOException e) {
+            log.error("Failed to parse Debezium message: {}", e.getMessage());
+            throw e;
+        } finally {
+            metrics.record(SyncMetrics.Stage.PARSE, start);
+        }
+
+        if (payload == null) {
+            log.warn("Received message with no payload, skipping");
+            metrics.count(SyncMetrics.Outcome.SKIPPED, null);
+            return null;
+        }
+
+        // Skip messages with no relevant changes
+        start = System.nanoTime();
+        boolean relevant = messageMapper.hasRelevantChanges(payload.before(), payload.after());
+        metrics.record(SyncMetrics.Stage.FILTER, start);
+        if (!relevant) {
+            String userId = extractUserId(payload);
+            log.info("Skipping message: no changes in tracked columns for userId {}", userId);
+            metrics.count(SyncMetrics.Outcome.SKIPPED, findOperation(payload.operation()));
+            return null;
+        }
+
+        // Map to user data
+        UserData userData;
+        start = System.nanoTime();
+        try {
+            userData = messageMapper.mapToUserData(payload);
+        } catch (Exception e) {
+            log.error("Failed to map message to user data: {}", e.getMessage());
+            throw e;
+        } finally {
+            metrics.record(SyncMetrics.Stage.MAP, start);
+        }
+
+        // Validate user data
+        if (userData.userId() == null) {
+            log.error("Invalid user data: login: {}", userData.login());
+            throw new IllegalArgumentException("Invalid user data: missing userId");
+        }
+
+        try {
+            return new UserChangeEvent(DebeziumOperation.fromCode(payload.operation()), userData, source, payload.position());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown operation type: {} for userId: {}, login: {}", payload.operation(), userData.userId(), userData.login());
+            throw e;
+        }
+    }
+
+    private DebeziumOperation findOperation(String code) {
+        for (DebeziumOperation operation : DebeziumOperation.values()) {
+            if (operation.getCode().equals(code)) {
+                return operation;
+            }
+        }
+        return null;
+    }
+
+    private String extractUserId(DebeziumPayload payload) {
+        if (payload.after() != null && payload.after().get("USER_ID") != null) {
+            return payload.after().get("USER_ID");
+        }
+        if (payload.before() != null && payload.before().get("USER_ID") != null) {
+            return payload.before().get("USER_ID");
+        }
+        return "unknown";
+    }
+}
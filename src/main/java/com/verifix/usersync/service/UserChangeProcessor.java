@@ -0,0 +1,169 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.model.Lane;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserChangeGroup;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Syncs batches of decoded change events to Keycloak: events are collapsed per user, snapshot reads may be
+ * bulk imported, and everything else is dispatched concurrently while keeping per-user order. Users with only
+ * snapshot reads left go to the backfill lane, all others to the live lane. Each user takes the dispatcher slots of
+ * the Keycloak target its company is routed to; a bulk import takes one backfill slot per chunk. Changes at or below
+ * the log position last applied for their user are dropped up front.
+ */
+@Service
+@Slf4j
+public class UserChangeProcessor {
+    private final UserChangeCoalescer coalescer;
+    private final UserEventDispatcher dispatcher;
+    private final KeycloakRouter router;
+    private final SnapshotImportService snapshotImportService;
+    private final UserChangeApplier applier;
+    private final SourcePositionStore positionStore;
+    private final FailedRecordPublisher failedRecordPublisher;
+    private final SyncMetrics metrics;
+
+    public UserChangeProcessor(UserChangeCoalescer coalescer,
+                               UserEventDispatcher dispatcher,
+                               KeycloakRouter router,
+                               SnapshotImportService snapshotImportService,
+                               UserChangeApplier applier,
+                               SourcePositionStore positionStore,
+                               FailedRecordPublisher failedRecordPublisher,
+                               SyncMetrics metrics) {
+        this.coalescer = coalescer;
+        this.dispatcher = dispatcher;
+        this.router = router;
+        this.snapshotImportService = snapshotImportService;
+        this.applier = applier;
+        this.positionStore = positionStore;
+        this.failedRecordPublisher = failedRecordPublisher;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sync a batch of events. The returned future completes once every collapsed change has either succeeded
+     * or been handed to the retry topics. It completes exceptionally if a failed change could not be sent on, in which
+     * case the records must not be acknowledged but read again.
+     */
+    public CompletableFuture<Void> process(List<UserChangeEvent> events) {
+        events = dropApplied(events);
+        List<UserChangeGroup> groups = coalescer.coalesce(events);
+        log.info("Collapsed {} events into {} user changes", events.size(), groups.size());
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(groups.size());
+        List<UserChangeGroup> snapshotGroups = new ArrayList<>();
+        for (UserChangeGroup group : groups) {
+            countCollapsed(group);
+            if (snapshotImportService.accepts(group)) {
+                snapshotGroups.add(group);
+            } else {
+                futures.add(dispatchGroup(group));
+            }
+        }
+        importSnapshot(snapshotGroups, futures);
+
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Drop replayed and out-of-order changes, also against the newer changes of the same user earlier in the batch,
+     * so an old snapshot row cannot overwrite a live update
+     */
+    private List<UserChangeEvent> dropApplied(List<UserChangeEvent> events) {
+        List<UserChangeEvent> kept = new ArrayList<>(events.size());
+        Map<Long, UserChangeEvent> latest = new HashMap<>();
+        for (UserChangeEvent event : events) {
+            Long userId = event.userData().userId();
+            SourcePositionStore.Verdict verdict = positionStore.check(event, latest.get(userId));
+            if (verdict == SourcePositionStore.Verdict.APPLY) {
+                kept.add(event);
+                latest.put(userId, event);
+            } else {
+                log.debug("Dropping {} {} of userId {} at position {}", verdict, event.operation(), userId, event.position());
+                metrics.count(SyncMetrics.Outcome.SKIPPED, event.operation());
+            }
+        }
+        return kept;
+    }
+
+    private CompletableFuture<Void> dispatchGroup(UserChangeGroup group) {
+        return dispatcher.dispatch(group.userId(), target(group), group.lane(), () -> applyWithRetry(group));
+    }
+
+    /**
+     * Target of the user's latest event, whose slots the group takes
+     */
+    private String target(UserChangeGroup group) {
+        return router.route(group.events().getLast().userData().companyId());
+    }
+
+    /**
+     * Bulk import snapshot reads chunk by chunk, one backfill task per chunk and target that holds a slot while the
+     * import runs. Users the import did not confirm go through the normal path after it.
+     * Users with unfinished earlier work skip the import, so their changes stay in order.
+     */
+    private void importSnapshot(List<UserChangeGroup> groups, List<CompletableFuture<Void>> futures) {
+        int chunkSize = snapshotImportService.chunkSize();
+        for (int start = 0; start < groups.size(); start += chunkSize) {
+            Map<String, List<UserChangeGroup>> importable = new LinkedHashMap<>();
+            for (UserChangeGroup group : groups.subList(start, Math.min(start + chunkSize, groups.size()))) {
+                if (dispatcher.isBusy(group.userId())) {
+                    futures.add(dispatchGroup(group));
+                } else {
+                    importable.computeIfAbsent(target(group), target -> new ArrayList<>()).add(group);
+                }
+            }
+            importable.forEach((target, chunk) -> importChunk(target, chunk, futures));
+        }
+    }
+
+    private void importChunk(String target, List<UserChangeGroup> chunk, List<CompletableFuture<Void>> futures) {
+        List<Long> userIds = chunk.stream().map(UserChangeGroup::userId).toList();
+        CompletableFuture<Set<Long>> notImported = dispatcher.dispatch(userIds, target, Lane.BACKFILL, () -> applier.importSnapshot(chunk));
+        for (UserChangeGroup group : chunk) {
+            futures.add(dispatcher.dispatchIf(group.userId(), target, Lane.BACKFILL,
+                    () -> notImported.handle((failed, error) -> error != null || failed.contains(group.userId())).join(),
+                    () -> applyWithRetry(group)));
+        }
+    }
+
+    /**
+     * Apply the group with retries; once the attempts are used up, the records of the collapsed events move on to
+     * the next retry tier. The future fails only if that send fails.
+     */
+    private CompletableFuture<Void> applyWithRetry(UserChangeGroup group) {
+        return applier.applyWithRetry(group).exceptionallyCompose(error -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            return CompletableFuture.allOf(group.collapsed().stream()
+                    .map(event -> failedRecordPublisher.retry(event.source(), cause))
+                    .toArray(CompletableFuture[]::new));
+        });
+    }
+
+    /**
+     * Events superseded by a later event of the same user count as skipped
+     */
+    private void countCollapsed(UserChangeGroup group) {
+        for (UserChangeEvent event : group.events()) {
+            boolean kept = false;
+            for (UserChangeEvent collapsed : group.collapsed()) {
+                kept |= collapsed == event;
+            }
+            if (!kept) {
+                metrics.count(SyncMetrics.Outcome.SKIPPED, event.operation());
+            }
+        }
+    }
+}
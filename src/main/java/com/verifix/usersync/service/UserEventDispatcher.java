@@ -0,0 +1,213 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.Lane;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runs async sync work for different users concurrently.
+ * Work for the same user is chained, so it still runs in submission order, whatever its lane. A task dispatched for
+ * several users at once, such as a bulk import, is chained for each of them and takes a single slot.
+ * At most {@code max-in-flight} tasks run at once per Keycloak target, so a slow target only holds up its own users;
+ * further tasks wait in a queue per target and {@link Lane}, and dispatching never blocks the caller. While both lanes
+ * of a target wait, a freed slot goes to the live lane in {@code live-share} of the cases; a lane alone gets every
+ * slot. The number of dispatched but unfinished tasks per lane is the backlog that {@link FlowController} keeps in
+ * bounds.
+ */
+@Component
+@Slf4j
+public class UserEventDispatcher {
+    private final ConcurrentMap<Long, CompletableFuture<?>> tails = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Slots> slots = new ConcurrentHashMap<>();
+    private final Map<Lane, AtomicInteger> backlog = new EnumMap<>(Lane.class);
+    // Queued tasks are started off the completing thread, so a run of tasks that finish synchronously cannot recurse
+    private final Executor handoff = ForkJoinPool.commonPool();
+    private final int maxInFlight;
+    private final double liveShare;
+
+    public UserEventDispatcher(ApplicationProperties properties, MeterRegistry meterRegistry) {
+        this.maxInFlight = properties.dispatcher().maxInFlight();
+        this.liveShare = properties.dispatcher().liveShare();
+        for (Lane lane : Lane.values()) {
+            AtomicInteger count = new AtomicInteger();
+            backlog.put(lane, count);
+            Gauge.builder("usersync.backlog", count, AtomicInteger::get)
+                    .description("User changes dispatched but not finished, queued or running")
+                    .tag("lane", lane.name().toLowerCase(Locale.ROOT))
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Dispatch to the slots of the default Keycloak target
+     */
+    public CompletableFuture<Void> dispatch(Long userId, Lane lane, Supplier<CompletableFuture<Void>> task) {
+        return dispatch(userId, KeycloakRouter.DEFAULT_TARGET, lane, task);
+    }
+
+    /**
+     * Start the task once all previously dispatched tasks of the user have finished, successfully or not,
+     * and the lane is given a slot of the target
+     */
+    public CompletableFuture<Void> dispatch(Long userId, String target, Lane lane, Supplier<CompletableFuture<Void>> task) {
+        return dispatch(List.of(userId), target, lane, () -> true, task);
+    }
+
+    /**
+     * Dispatch one task on behalf of several users, such as a bulk import. It starts once the earlier tasks of all
+     * of them have finished and holds a single slot while it runs; their later tasks wait for it.
+     */
+    public <T> CompletableFuture<T> dispatch(Collection<Long> userIds, String target, Lane lane, Supplier<CompletableFuture<T>> task) {
+        return dispatch(userIds, target, lane, () -> true, task);
+    }
+
+    /**
+     * Like {@link #dispatch(Long, String, Lane, Supplier)}, but whether the task is still needed is decided once the
+     * user's earlier tasks have finished. A task that is not needed completes without taking a slot.
+     */
+    public CompletableFuture<Void> dispatchIf(Long userId, String target, Lane lane, BooleanSupplier needed,
+                                              Supplier<CompletableFuture<Void>> task) {
+        return dispatch(List.of(userId), target, lane, needed, task);
+    }
+
+    private <T> CompletableFuture<T> dispatch(Collection<Long> userIds, String target, Lane lane, BooleanSupplier needed,
+                                              Supplier<CompletableFuture<T>> task) {
+        Slots targetSlots = slots.computeIfAbsent(target, ignored -> new Slots());
+        AtomicInteger laneBacklog = backlog.get(lane);
+        laneBacklog.incrementAndGet();
+
+        // Completes with whether the task was given a slot to run in
+        CompletableFuture<Boolean> start = new CompletableFuture<>();
+        CompletableFuture<T> future = start.thenCompose(slot -> slot ? task.get() : CompletableFuture.<T>completedFuture(null));
+        List<CompletableFuture<?>> previous = new ArrayList<>(userIds.size());
+        for (Long userId : userIds) {
+            CompletableFuture<?> tail = tails.put(userId, future);
+            if (tail != null) {
+                previous.add(tail);
+            }
+        }
+
+        future.whenComplete((result, error) -> {
+            if (start.join()) {
+                targetSlots.release();
+            }
+            laneBacklog.decrementAndGet();
+            userIds.forEach(userId -> tails.remove(userId, future));
+        });
+
+        CompletableFuture.allOf(previous.toArray(CompletableFuture[]::new)).whenComplete((result, error) -> {
+            if (needed.getAsBoolean()) {
+                targetSlots.acquire(lane, () -> start.complete(true));
+            } else {
+                start.complete(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Whether the user has dispatched work that has not finished yet
+     */
+    public boolean isBusy(Long userId) {
+        return tails.containsKey(userId);
+    }
+
+    public int inFlight() {
+        return slots.values().stream().mapToInt(Slots::running).sum();
+    }
+
+    /**
+     * Dispatched tasks of the lane that have not finished, including those waiting for their user or for a slot
+     */
+    public int backlog(Lane lane) {
+        return backlog.get(lane).get();
+    }
+
+    public int backlog() {
+        return backlog(Lane.LIVE) + backlog(Lane.BACKFILL);
+    }
+
+    /**
+     * The slots of one Keycloak target and the tasks waiting for them
+     */
+    private final class Slots {
+        private final Map<Lane, Queue<Runnable>> waiting = new EnumMap<>(Lane.class);
+        private int running;
+        // Tasks started from each lane while both had work waiting
+        private long liveStarted;
+        private long backfillStarted;
+
+        private Slots() {
+            for (Lane lane : Lane.values()) {
+                waiting.put(lane, new ArrayDeque<>());
+            }
+        }
+
+        private void acquire(Lane lane, Runnable start) {
+            synchronized (this) {
+                if (running >= maxInFlight) {
+                    waiting.get(lane).add(start);
+                    return;
+                }
+                running++;
+            }
+            start.run();
+        }
+
+        private void release() {
+            Runnable next;
+            synchronized (this) {
+                next = next();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            handoff.execute(next);
+        }
+
+        /**
+         * Next queued task by weight: live goes first unless it has had more than its share of the slots
+         */
+        private Runnable next() {
+            Queue<Runnable> live = waiting.get(Lane.LIVE);
+            Queue<Runnable> backfill = waiting.get(Lane.BACKFILL);
+            if (live.isEmpty() || backfill.isEmpty()) {
+                liveStarted = 0;
+                backfillStarted = 0;
+                return live.isEmpty() ? backfill.poll() : live.poll();
+            }
+
+            if (liveStarted * (1 - liveShare) <= backfillStarted * liveShare) {
+                liveStarted++;
+                return live.poll();
+            }
+            backfillStarted++;
+            return backfill.poll();
+        }
+
+        private synchronized int running() {
+            return running;
+        }
+    }
+}
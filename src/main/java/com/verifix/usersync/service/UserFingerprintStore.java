@@ -0,0 +1,226 @@
+package com.verifix.usersync.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.keycloak.KeycloakCredential;
+import com.verifix.usersync.model.keycloak.KeycloakUser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded store of userId to a 64-bit hash of the last Keycloak representation written for that user.
+ * Optionally saved to a local file so suppression survives restarts.
+ */
+@Component
+@Slf4j
+public class UserFingerprintStore {
+    private static final String CACHE_NAME = "userFingerprints";
+    private static final int FILE_MAGIC = 0x55534650;
+    static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final KeycloakMapper keycloakMapper;
+    private final ApplicationProperties.Fingerprints config;
+    private final Cache<Long, Long> cache;
+    private final Path file;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> suppressedCounters = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    public UserFingerprintStore(KeycloakMapper keycloakMapper, ApplicationProperties properties, MeterRegistry meterRegistry) {
+        this.keycloakMapper = keycloakMapper;
+        this.config = properties.fingerprints();
+        this.meterRegistry = meterRegistry;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(config.maxSize())
+                .recordStats()
+                .build();
+        this.file = config.file() == null || config.file().isBlank() ? null : Path.of(config.file());
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+
+        if (config.enabled() && file != null) {
+            load();
+            flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("fingerprint-flush").daemon().factory());
+            long interval = config.flushInterval().toMillis();
+            flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Fingerprint of the representation the user would be written as
+     */
+    public long fingerprint(UserData userData) {
+        return fingerprint(keycloakMapper.mapToKeycloakUser(userData));
+    }
+
+    /**
+     * Whether the last representation written for the user had this fingerprint. Counts a suppressed write if so.
+     */
+    public boolean isUnchanged(Long userId, long fingerprint, String path) {
+        if (!config.enabled()) {
+            return false;
+        }
+        Long stored = cache.getIfPresent(userId);
+        if (stored == null || stored != fingerprint) {
+            return false;
+        }
+        suppressedCounters.computeIfAbsent(path, this::suppressedCounter).increment();
+        return true;
+    }
+
+    public void record(Long userId, long fingerprint) {
+        if (config.enabled()) {
+            cache.put(userId, fingerprint);
+            dirty.set(true);
+        }
+    }
+
+    public void invalidate(Long userId) {
+        if (config.enabled()) {
+            cache.invalidate(userId);
+            dirty.set(true);
+        }
+    }
+
+    static long fingerprint(KeycloakUser user) {
+        long hash = FNV_OFFSET;
+        hash = hash(hash, user.username());
+        hash = hash(hash, String.valueOf(user.enabled()));
+        hash = hash(hash, user.firstName());
+        hash = hash(hash, user.lastName());
+        hash = hash(hash, user.email());
+
+        List<KeycloakCredential> credentials = user.credentials();
+        if (credentials != null) {
+            for (KeycloakCredential credential : credentials) {
+                hash = hash(hash, credential.type());
+                hash = hash(hash, credential.secretData());
+                hash = hash(hash, credential.credentialData());
+                hash = hash(hash, String.valueOf(credential.temporary()));
+            }
+        }
+
+        // Map.of iteration order differs between JVM runs, the persisted hash must not
+        if (user.attributes() != null) {
+            for (Map.Entry<String, List<String>> attribute : new TreeMap<>(user.attributes()).entrySet()) {
+                hash = hash(hash, attribute.getKey());
+                for (String value : attribute.getValue()) {
+                    hash = hash(hash, value);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * FNV-1a over the chars of the value, followed by a separator so adjacent fields cannot run together
+     */
+    static long hash(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return (hash ^ (value == null ? 0xFFFF : 0xFFFE)) * FNV_PRIME;
+    }
+
+    private Counter suppressedCounter(String path) {
+        return Counter.builder("usersync.writes.suppressed")
+                .description("Keycloak writes skipped because the representation did not change")
+                .tag("path", path)
+                .register(meterRegistry);
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            log.info("No fingerprint file at {}, starting empty", file);
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                log.warn("Ignoring fingerprint file {}: unknown format", file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                cache.put(in.readLong(), in.readLong());
+            }
+            log.info("Loaded {} fingerprints from {}", count, file);
+        } catch (IOException e) {
+            log.warn("Failed to load fingerprints from {}, starting empty: {}", file, e.getMessage());
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Write the store to a temporary file and move it over the previous one
+     */
+    synchronized void flush() throws IOException {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+
+        Map<Long, Long> snapshot = Map.copyOf(cache.asMap());
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<Long, Long> entry : snapshot.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            dirty.set(true);
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Saved {} fingerprints to {}", snapshot.size(), file);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Failed to save fingerprints to {}: {}", file, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flushQuietly();
+        }
+    }
+}
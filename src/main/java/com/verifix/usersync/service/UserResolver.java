@@ -0,0 +1,148 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.config.ApplicationProperties.Lookup.Strategy;
+import com.verifix.usersync.mapper.LoginNormalizer;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.keycloak.KeycloakUser;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the Keycloak ID of a user: from the cache, else with the configured {@link Strategy}, else, if enabled,
+ * by searching the {@code userId} attribute. Every Keycloak lookup is timed per strategy and result, so strategies
+ * can be compared on the same realm.
+ * <p>
+ * The username strategy accepts the user holding the normalized login only if its {@code userId} attribute is the
+ * user's: a login that was freed and taken again, or a user created by hand, belongs to someone else and falls through
+ * to the fallback. The ID strategy only finds users created or imported while it was active; others are found by the fallback.
+ */
+@Component
+@Slf4j
+public class UserResolver {
+    private static final String ID_NAMESPACE = "usersync:user:";
+    private static final String USER_ID_ATTRIBUTE = "userId";
+
+    private enum Result {
+        FOUND, MISSING, FAILED
+    }
+
+    private final KeycloakService keycloakService;
+    private final KeycloakIdCache idCache;
+    private final LoginNormalizer loginNormalizer;
+    private final Strategy strategy;
+    private final boolean fallback;
+    private final Map<Strategy, Map<Result, Timer>> timers = new EnumMap<>(Strategy.class);
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public UserResolver(KeycloakService keycloakService,
+                        KeycloakIdCache idCache,
+                        LoginNormalizer loginNormalizer,
+                        ApplicationProperties properties,
+                        MeterRegistry meterRegistry) {
+        ApplicationProperties.Lookup config = properties.keycloak().lookup();
+        this.keycloakService = keycloakService;
+        this.idCache = idCache;
+        this.loginNormalizer = loginNormalizer;
+        this.strategy = config.strategy();
+        this.fallback = config.fallback() && strategy != Strategy.ATTRIBUTE;
+
+        for (Strategy each : Strategy.values()) {
+            Map<Result, Timer> byResult = new EnumMap<>(Result.class);
+            for (Result result : Result.values()) {
+                byResult.put(result, Timer.builder("usersync.lookup")
+                        .description("Keycloak user lookups by strategy and result")
+                        .tag("strategy", each.name().toLowerCase(Locale.ROOT))
+                        .tag("result", result.name().toLowerCase(Locale.ROOT))
+                        .register(meterRegistry));
+            }
+            timers.put(each, byResult);
+        }
+    }
+
+    /**
+     * The Keycloak ID the {@code ID} strategy gives a user: a name-based UUID of its userId
+     */
+    public static String keycloakId(Long userId) {
+        return UUID.nameUUIDFromBytes((ID_NAMESPACE + userId).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Non-blocking variant of {@link #resolve(String, UserData)}; a cache hit completes immediately
+     */
+    public CompletableFuture<String> resolveAsync(String target, UserData userData) {
+        String cached = idCache.get(userData.userId());
+        if (cached != null) {
+            log.debug("Using cached Keycloak ID for user_id: {}", userData.userId());
+            return CompletableFuture.completedFuture(cached);
+        }
+        return CompletableFuture.supplyAsync(() -> resolve(target, userData), executor);
+    }
+
+    /**
+     * The user's Keycloak ID, or null if the user does not exist in the target
+     */
+    public String resolve(String target, UserData userData) {
+        String cached = idCache.get(userData.userId());
+        if (cached != null) {
+            return cached;
+        }
+
+        String keycloakId = lookup(strategy, target, userData);
+        if (keycloakId == null && fallback) {
+            keycloakId = lookup(Strategy.ATTRIBUTE, target, userData);
+        }
+        if (keycloakId != null) {
+            idCache.put(userData.userId(), keycloakId);
+        }
+        return keycloakId;
+    }
+
+    private String lookup(Strategy by, String target, UserData userData) {
+        long start = System.nanoTime();
+        Result result = Result.FAILED;
+        try {
+            String keycloakId = switch (by) {
+                case USERNAME -> {
+                    String username = loginNormalizer.normalize(userData.login());
+                    KeycloakUser user = username == null || username.isEmpty() ? null : keycloakService.findUserByUsername(target, username);
+                    yield user != null && holdsUserId(user, userData.userId()) ? user.id() : null;
+                }
+                case ID -> keycloakService.findIdById(target, keycloakId(userData.userId()));
+                case ATTRIBUTE -> keycloakService.findIdByAttribute(target, userData.userId());
+            };
+            result = keycloakId != null ? Result.FOUND : Result.MISSING;
+            return keycloakId;
+        } finally {
+            timers.get(by).get(result).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static boolean holdsUserId(KeycloakUser user, Long userId) {
+        List<String> values = user.attributes() != null ? user.attributes().get(USER_ID_ATTRIBUTE) : null;
+        if (values != null && values.contains(userId.toString())) {
+            return true;
+        }
+        log.warn("Username {} belongs to Keycloak user {} with userId {}, not {}", user.username(), user.id(), values, userId);
+        return false;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.close();
+    }
+}
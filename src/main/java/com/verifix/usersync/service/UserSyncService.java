@@ -1,52 +1,84 @@
 package com.verifix.usersync.service;
 
 import com.verifix.usersync.model.UserData;
-import com.verifix.usersync.model.keycloak.KeycloakUser;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+
 @Service
 @Slf4j
 public class UserSyncService {
     private final KeycloakService keycloakService;
+    private final UserResolver userResolver;
+    private final KeycloakRouter router;
+    private final UserFingerprintStore fingerprintStore;
+    private final SyncMetrics metrics;
 
-    public UserSyncService(KeycloakService keycloakService) {
+    public UserSyncService(KeycloakService keycloakService, UserResolver userResolver, KeycloakRouter router,
+                           UserFingerprintStore fingerprintStore, SyncMetrics metrics) {
         this.keycloakService = keycloakService;
+        this.userResolver = userResolver;
+        this.router = router;
+        this.fingerprintStore = fingerprintStore;
+        this.metrics = metrics;
     }
 
-    public void handleUserSave(UserData userData) {
-        log.info("Processing user save for user_id: {} and login: {}", userData.userId(), userData.login());
+    /**
+     * Create or update the user in its company's Keycloak target. The lookup and the write are chained without
+     * blocking the caller.
+     * Skipped entirely when the representation equals the last one written for this user.
+     */
+    public CompletableFuture<Void> handleUserSave(UserData userData) {
+        long fingerprint = fingerprintStore.fingerprint(userData);
+        if (fingerprintStore.isUnchanged(userData.userId(), fingerprint, "save")) {
+            log.info("Skipping user save for user_id: {} and login: {}: no changes since last write", userData.userId(), userData.login());
+            return CompletableFuture.completedFuture(null);
+        }
 
-        try {
-            KeycloakUser existingUser = keycloakService.findUserByExternalId(userData.userId());
+        log.info("Processing user save for user_id: {} and login: {}", userData.userId(), userData.login());
+        String target = router.route(userData.companyId());
 
-            if (existingUser != null) {
-                keycloakService.updateUser(existingUser.id(), userData);
-            } else {
-                keycloakService.createUser(userData);
-            }
+        return metrics.time(SyncMetrics.Stage.LOOKUP, () -> userResolver.resolveAsync(target, userData))
+                .thenCompose(keycloakId -> keycloakId != null
+                        ? metrics.time(SyncMetrics.Stage.UPDATE, () -> keycloakService.updateUserAsync(target, keycloakId, userData))
+                        : metrics.time(SyncMetrics.Stage.CREATE, () -> keycloakService.createUserAsync(target, userData)).thenAccept(createdId -> {
+                        }))
+                .whenComplete((result, error) -> {
+                    if (error == null) {
+                        fingerprintStore.record(userData.userId(), fingerprint);
+                        log.info("Successfully processed user save user_id: {} and login: {}", userData.userId(), userData.login());
+                    } else {
+                        fingerprintStore.invalidate(userData.userId());
+                        log.error("Error in handleUserSave for user_id: {} and login: {}. {}", userData.userId(), userData.login(), error.getMessage());
+                    }
+                });
+    }
 
-            log.info("Successfully processed user save user_id: {} and login: {}", userData.userId(), userData.login());
-        } catch (Exception e) {
-            log.error("Error in handleUserSave for user_id: {} and login: {}. {}", userData.userId(), userData.login(), e.getMessage());
-            throw new RuntimeException("Failed to process user save", e);
-        }
+    /**
+     * Delete the user from its company's Keycloak target if it exists
+     */
+    public CompletableFuture<Void> handleUserDelete(UserData userData) {
+        return handleUserDelete(router.route(userData.companyId()), userData);
     }
 
-    public void handleUserDelete(UserData userData) {
+    /**
+     * Delete the user from the target if it exists. The lookup and the delete are chained without blocking the caller.
+     */
+    public CompletableFuture<Void> handleUserDelete(String target, UserData userData) {
         log.info("Processing user delete for user_id: {} and login: {}", userData.userId(), userData.login());
+        fingerprintStore.invalidate(userData.userId());
 
-        try {
-            KeycloakUser existingUser = keycloakService.findUserByExternalId(userData.userId());
-
-            if (existingUser != null) {
-                keycloakService.deleteUser(existingUser.id(), userData);
-            }
-
-            log.info("Successfully processed user delete for user_id: {} and login: {}", userData.userId(), userData.login());
-        } catch (Exception e) {
-            log.error("Error in handleUserDelete for user_id: {} and login: {}. {}", userData.userId(), userData.login(), e.getMessage());
-            throw new RuntimeException("Failed to process user delete", e);
-        }
+        return metrics.time(SyncMetrics.Stage.LOOKUP, () -> userResolver.resolveAsync(target, userData))
+                .thenCompose(keycloakId -> keycloakId != null
+                        ? metrics.time(SyncMetrics.Stage.DELETE, () -> keycloakService.deleteUserAsync(target, keycloakId, userData))
+                        : CompletableFuture.<Void>completedFuture(null))
+                .whenComplete((result, error) -> {
+                    if (error == null) {
+                        log.info("Successfully processed user delete for user_id: {} and login: {}", userData.userId(), userData.login());
+                    } else {
+                        log.error("Error in handleUserDelete for user_id: {} and login: {}. {}", userData.userId(), userData.login(), error.getMessage());
+                    }
+                });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package com.verifix.usersync;
+
+import com.verifix.usersync.config.ApplicationProperties;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binds {@link ApplicationProperties} for unit tests from a few {@code app.*} values, on top of the required ones
+ */
+public final class TestProperties {
+    private static final Map<String, String> REQUIRED = Map.of(
+            "app.tracked-columns", "USER_ID",
+            "app.kafka.topic", "user-changes",
+            "app.keycloak.realm", "test");
+
+    private TestProperties() {
+    }
+
+    public static ApplicationProperties bind(Map<String, String> values) {
+        Map<String, String> merged = new HashMap<>(REQUIRED);
+        merged.putAll(values);
+        return new Binder(new MapConfigurationPropertySource(merged)).bindOrCreate("app", ApplicationProperties.class);
+    }
+}
@@ -0,0 +1,78 @@
+package com.verifix.usersync.config;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.service.KeycloakConcurrencyLimiter;
+import com.verifix.usersync.service.KeycloakRouter;
+import com.verifix.usersync.service.OAuth2TokenService;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+class RestTemplateConfigTest {
+    private static final String USER_URL = "http://keycloak/admin/realms/test/users/kc-1";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void retriesA401WithinOnePermitAndOneTimedCall() {
+        ApplicationProperties properties = TestProperties.bind(Map.of());
+        KeycloakConcurrencyLimiter limiter = new KeycloakConcurrencyLimiter(
+                KeycloakRouter.DEFAULT_TARGET, properties.keycloak().limiter(), meterRegistry);
+        CircuitBreaker circuitBreaker = CircuitBreaker.ofDefaults("keycloak");
+        RotatingTokenService tokenService = new RotatingTokenService();
+
+        RestTemplate restTemplate = new RestTemplateConfig(new RestTemplateBuilder(), meterRegistry).restTemplate(
+                KeycloakRouter.DEFAULT_TARGET, properties.keycloak().http(), tokenService, limiter, circuitBreaker);
+        MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+        server.expect(requestTo(USER_URL))
+                .andExpect(header(HttpHeaders.AUTHORIZATION, "Bearer stale"))
+                .andRespond(withStatus(HttpStatus.UNAUTHORIZED));
+        server.expect(requestTo(USER_URL))
+                .andExpect(header(HttpHeaders.AUTHORIZATION, "Bearer fresh"))
+                .andRespond(withSuccess());
+
+        try {
+            restTemplate.getForEntity(USER_URL, String.class);
+        } finally {
+            tokenService.shutdown();
+        }
+
+        server.verify();
+        assertThat(meterRegistry.get("keycloak.requests").tags("operation", "lookup", "status", "200").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.find("keycloak.requests").tag("status", "401").timer()).isNull();
+        assertThat(circuitBreaker.getMetrics().getNumberOfSuccessfulCalls()).isEqualTo(1);
+        assertThat(limiter.inFlight()).isZero();
+    }
+
+    /**
+     * Hands out a token that Keycloak rejects, then a good one
+     */
+    private static final class RotatingTokenService extends OAuth2TokenService {
+        RotatingTokenService() {
+            super(KeycloakRouter.DEFAULT_TARGET, "keycloak", null, null, null);
+        }
+
+        @Override
+        public String getAccessToken() {
+            return "stale";
+        }
+
+        @Override
+        public String refreshAccessToken(String rejectedToken) {
+            return "fresh";
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.verifix.usersync.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory stand-in for the Keycloak token and admin user endpoints the service calls.
+ * Usernames are unique, {@code q=} searches match attributes by exact name and partialImport keeps given user IDs
+ * while the users endpoint assigns its own, like Keycloak.
+ * Every admin call can be delayed and can fail with a 500 or a 429 at configurable rates.
+ */
+class KeycloakStub implements AutoCloseable {
+
+    /**
+     * @param latencyMillis base delay of every admin call
+     * @param jitterMillis  random extra delay, uniform in [0, jitter]
+     * @param errorRate     share of admin calls answered with 500
+     * @param throttleRate  share of admin calls answered with 429
+     */
+    record Behaviour(long latencyMillis, long jitterMillis, double errorRate, double throttleRate) {
+    }
+
+    /**
+     * A successful write of a user representation, with the time it arrived
+     */
+    record Write(String fullName, long nanos) {
+    }
+
+    private record StoredUser(String id, String username, JsonNode representation) {
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Behaviour behaviour;
+    private final String realm;
+    private final HttpServer server;
+    private final Map<String, StoredUser> usersById = new ConcurrentHashMap<>();
+    private final Map<String, String> idsByUsername = new ConcurrentHashMap<>();
+    private final Map<String, String> idsByAttribute = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final Queue<Write> writes = new ConcurrentLinkedQueue<>();
+
+    KeycloakStub(String realm, Behaviour behaviour) throws IOException {
+        this.realm = realm;
+        this.behaviour = behaviour;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/realms/" + realm + "/protocol/openid-connect/token", this::token);
+        server.createContext("/admin/realms/" + realm, this::admin);
+        server.start();
+    }
+
+    String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    Map<String, Long> calls() {
+        Map<String, Long> result = new TreeMap<>();
+        calls.forEach((name, count) -> result.put(name, count.sum()));
+        return result;
+    }
+
+    Queue<Write> writes() {
+        return writes;
+    }
+
+    /**
+     * Full name of every stored user by its {@code userId} attribute
+     */
+    Map<Long, String> fullNamesByUserId() {
+        Map<Long, String> result = new HashMap<>();
+        for (StoredUser user : usersById.values()) {
+            JsonNode attributes = user.representation().path("attributes");
+            result.put(attributes.path("userId").path(0).asLong(), attributes.path("fullName").path(0).asText());
+        }
+        return result;
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        count("token");
+        exchange.getRequestBody().readAllBytes();
+        respond(exchange, 200, """
+                {"access_token":"%s","token_type":"Bearer","expires_in":300}""".formatted(UUID.randomUUID()));
+    }
+
+    private void admin(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath().substring(("/admin/realms/" + realm).length());
+            String method = exchange.getRequestMethod();
+            byte[] body = exchange.getRequestBody().readAllBytes();
+
+            delay();
+            double roll = ThreadLocalRandom.current().nextDouble();
+            if (roll < behaviour.errorRate()) {
+                count("injected.500");
+                respond(exchange, 500, "{\"error\":\"injected\"}");
+                return;
+            }
+            if (roll < behaviour.errorRate() + behaviour.throttleRate()) {
+                count("injected.429");
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, 429, "{\"error\":\"throttled\"}");
+                return;
+            }
+
+            if (path.equals("/partialImport") && method.equals("POST")) {
+                partialImport(exchange, objectMapper.readTree(body));
+            } else if (path.equals("/users") && method.equals("GET")) {
+                search(exchange);
+            } else if (path.equals("/users") && method.equals("POST")) {
+                create(exchange, objectMapper.readTree(body));
+            } else if (path.startsWith("/users/") && method.equals("GET")) {
+                get(exchange, path.substring("/users/".length()));
+            } else if (path.startsWith("/users/") && method.equals("PUT")) {
+                update(exchange, path.substring("/users/".length()), objectMapper.readTree(body));
+            } else if (path.startsWith("/users/") && method.equals("DELETE")) {
+                delete(exchange, path.substring("/users/".length()));
+            } else {
+                respond(exchange, 404, "{}");
+            }
+        }
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        for (String param : query == null ? new String[0] : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+
+        String id;
+        if (params.containsKey("username") && "true".equals(params.get("exact"))) {
+            count("lookup.username");
+            id = idsByUsername.get(params.get("username"));
+        } else {
+            count("lookup.attribute");
+            id = idsByAttribute.get(params.getOrDefault("q", ""));
+        }
+        StoredUser user = id == null ? null : usersById.get(id);
+
+        ArrayNode result = objectMapper.createArrayNode();
+        if (user != null) {
+            result.add(representation(user, "true".equals(params.get("briefRepresentation"))));
+        }
+        respond(exchange, 200, result.toString());
+    }
+
+    private void get(HttpExchange exchange, String id) throws IOException {
+        count("lookup.id");
+        StoredUser user = usersById.get(id);
+        if (user == null) {
+            respond(exchange, 404, "{\"error\":\"User not found\"}");
+            return;
+        }
+        respond(exchange, 200, representation(user, false).toString());
+    }
+
+    /**
+     * The brief representation leaves out attributes and credentials, like Keycloak's
+     */
+    private static ObjectNode representation(StoredUser user, boolean brief) {
+        ObjectNode representation = ((ObjectNode) user.representation().deepCopy()).put("id", user.id());
+        if (brief) {
+            representation.remove(List.of("attributes", "credentials"));
+        }
+        return representation;
+    }
+
+    private void create(HttpExchange exchange, JsonNode representation) throws IOException {
+        count("create");
+        StoredUser user = store(UUID.randomUUID().toString(), representation);
+        if (user == null) {
+            respond(exchange, 409, "{\"errorMessage\":\"User exists with same username\"}");
+            return;
+        }
+        exchange.getResponseHeaders().add("Location", baseUrl() + "/admin/realms/" + realm + "/users/" + user.id());
+        respond(exchange, 201, null);
+    }
+
+    private void update(HttpExchange exchange, String id, JsonNode representation) throws IOException {
+        count("update");
+        StoredUser existing = usersById.get(id);
+        if (existing == null) {
+            respond(exchange, 404, "{\"error\":\"User not found\"}");
+            return;
+        }
+        remove(existing);
+        if (store(id, representation) == null) {
+            store(id, existing.representation());
+            respond(exchange, 409, "{\"errorMessage\":\"User exists with same username\"}");
+            return;
+        }
+        respond(exchange, 204, null);
+    }
+
+    private void delete(HttpExchange exchange, String id) throws IOException {
+        count("delete");
+        StoredUser existing = usersById.get(id);
+        if (existing == null) {
+            respond(exchange, 404, "{\"error\":\"User not found\"}");
+            return;
+        }
+        remove(existing);
+        respond(exchange, 204, null);
+    }
+
+    private void partialImport(HttpExchange exchange, JsonNode request) throws IOException {
+        count("import");
+        String policy = request.path("ifResourceExists").asText();
+        boolean overwrite = "OVERWRITE".equals(policy);
+        int added = 0;
+        int skipped = 0;
+        int overwritten = 0;
+        ArrayNode results = objectMapper.createArrayNode();
+
+        for (JsonNode representation : request.path("users")) {
+            if ("FAIL".equals(policy) && idsByUsername.containsKey(representation.path("username").asText())) {
+                respond(exchange, 409, "{\"errorMessage\":\"User exists with same username\"}");
+                return;
+            }
+        }
+
+        for (JsonNode representation : request.path("users")) {
+            String username = representation.path("username").asText();
+            String existingId = idsByUsername.get(username);
+            String action;
+            String id;
+            if (existingId == null) {
+                String givenId = representation.path("id").asText(null);
+                StoredUser user = givenId != null && usersById.containsKey(givenId)
+                        ? null : store(givenId != null ? givenId : UUID.randomUUID().toString(), representation);
+                if (user == null) {
+                    continue;
+                }
+                id = user.id();
+                action = "ADDED";
+                added++;
+            } else if (overwrite) {
+                remove(usersById.get(existingId));
+                store(existingId, representation);
+                id = existingId;
+                action = "OVERWRITTEN";
+                overwritten++;
+            } else {
+                id = existingId;
+                action = "SKIPPED";
+                skipped++;
+            }
+            results.addObject().put("action", action).put("resourceType", "USER").put("resourceName", username).put("id", id);
+        }
+
+        ObjectNode response = objectMapper.createObjectNode()
+                .put("added", added)
+                .put("skipped", skipped)
+                .put("overwritten", overwritten);
+        response.set("results", results);
+        respond(exchange, 200, response.toString());
+    }
+
+    /**
+     * Store the user unless another user already has its username. Returns null on a conflict.
+     */
+    private StoredUser store(String id, JsonNode representation) {
+        String username = representation.path("username").asText();
+        if (idsByUsername.putIfAbsent(username, id) != null) {
+            return null;
+        }
+
+        StoredUser user = new StoredUser(id, username, representation);
+        usersById.put(id, user);
+        for (Iterator<Map.Entry<String, JsonNode>> it = representation.path("attributes").fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> attribute = it.next();
+            for (JsonNode value : attribute.getValue()) {
+                idsByAttribute.put(attribute.getKey() + ":" + value.asText(), id);
+            }
+        }
+        writes.add(new Write(representation.path("attributes").path("fullName").path(0).asText(), System.nanoTime()));
+        return user;
+    }
+
+    private void remove(StoredUser user) {
+        usersById.remove(user.id());
+        idsByUsername.remove(user.username(), user.id());
+        for (Iterator<Map.Entry<String, JsonNode>> it = user.representation().path("attributes").fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> attribute = it.next();
+            for (JsonNode value : attribute.getValue()) {
+                idsByAttribute.remove(attribute.getKey() + ":" + value.asText(), user.id());
+            }
+        }
+    }
+
+    private void delay() {
+        long millis = behaviour.latencyMillis() + (behaviour.jitterMillis() > 0
+                ? ThreadLocalRandom.current().nextLong(behaviour.jitterMillis() + 1) : 0);
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void count(String name) {
+        calls.computeIfAbsent(name, key -> new LongAdder()).increment();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
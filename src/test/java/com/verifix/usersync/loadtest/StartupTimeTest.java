@@ -0,0 +1,175 @@
+package com.verifix.usersync.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Time from launching the packaged service to its first Keycloak write, for the plain jar and the fast-start build
+ * (AOT classes and the CDS archive of the training run). Each run starts a fresh JVM on a topic of its own holding
+ * one create event for a new user. Needs {@code ./mvnw -Pfast-start -DskipTests package} first; run with
+ * {@code ./mvnw -Pstartup-benchmark test [-Dstartup.runs=5]}.
+ */
+@Slf4j
+@Tag("startup")
+@EmbeddedKafka(partitions = 1)
+class StartupTimeTest {
+    private static final String REALM = "startup";
+    private static final Path TARGET = Path.of("target");
+    private static final Path FAST_START = TARGET.resolve("fast-start");
+    private static final Pattern STARTED = Pattern.compile("Started \\w+ in ([0-9.]+) seconds");
+    private static final Duration RUN_TIMEOUT = Duration.ofSeconds(60);
+
+    private record Variant(String name, Path directory, List<String> jvmArguments, String jar) {
+    }
+
+    private record Run(long firstEventMillis, double startedSeconds) {
+    }
+
+    @Test
+    void timeToFirstEvent(EmbeddedKafkaBroker broker) throws Exception {
+        List<Variant> variants = List.of(
+                new Variant("plain", TARGET, List.of(), plainJar()),
+                new Variant("fast-start", FAST_START,
+                        List.of("-XX:SharedArchiveFile=application.jsa", "-Dspring.aot.enabled=true"), "usersync.jar"));
+        assertThat(FAST_START.resolve("application.jsa"))
+                .as("Build with ./mvnw -Pfast-start -DskipTests package first")
+                .exists();
+
+        try (KeycloakStub stub = new KeycloakStub(REALM, new KeycloakStub.Behaviour(0, 0, 0, 0))) {
+            int runs = Integer.getInteger("startup.runs", 3);
+            StringBuilder report = new StringBuilder("=== usersync startup benchmark ===\n");
+            int runNumber = 0;
+            for (Variant variant : variants) {
+                List<Run> results = new ArrayList<>();
+                for (int i = 0; i < runs; i++) {
+                    String topic = "user-changes-startup-" + ++runNumber;
+                    broker.addTopics(topic);
+                    produceEvent(broker.getBrokersAsString(), topic, runNumber);
+                    results.add(run(variant, broker.getBrokersAsString(), topic, stub));
+                }
+                report.append("%-12s first event: median %d ms, min %d ms; context started: median %.2f s (%d runs)%n".formatted(
+                        variant.name() + ":",
+                        median(results.stream().mapToLong(Run::firstEventMillis).toArray()),
+                        results.stream().mapToLong(Run::firstEventMillis).min().orElse(-1),
+                        median(results.stream().mapToLong(run -> Math.round(run.startedSeconds() * 1000)).toArray()) / 1000.0,
+                        runs));
+            }
+
+            log.info("\n{}", report);
+            Files.writeString(TARGET.resolve("startup-benchmark-report.txt"), report);
+        }
+    }
+
+    /**
+     * Launch the service and wait for the stub to see its first write; the JVM is stopped afterwards
+     */
+    private Run run(Variant variant, String brokers, String topic, KeycloakStub stub) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(variant.jvmArguments());
+        command.addAll(List.of("-jar", variant.jar(),
+                "--server.port=0",
+                "--spring.kafka.properties.security.protocol=PLAINTEXT"));
+
+        Path output = Files.createTempFile(TARGET, "startup-" + variant.name(), ".log");
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .directory(variant.directory().toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(output.toFile());
+        builder.environment().putAll(Map.of(
+                "KAFKA_BROKERS", brokers,
+                "KAFKA_TOPIC", topic,
+                "KAFKA_GROUP_ID", topic,
+                "KEYCLOAK_URL", stub.baseUrl(),
+                "KEYCLOAK_REALM", REALM,
+                "KEYCLOAK_CLIENT_ID", "user-sync",
+                "KEYCLOAK_CLIENT_SECRET", "secret"));
+
+        int writesBefore = stub.writes().size();
+        long start = System.nanoTime();
+        Process process = builder.start();
+        try {
+            long deadline = start + RUN_TIMEOUT.toNanos();
+            while (stub.writes().size() == writesBefore) {
+                assertThat(process.isAlive()).as("Service exited early, see %s", output).isTrue();
+                assertThat(System.nanoTime()).as("No Keycloak write within %s, see %s", RUN_TIMEOUT, output).isLessThan(deadline);
+                Thread.sleep(5);
+            }
+            long firstWrite = stub.writes().stream().skip(writesBefore).findFirst().orElseThrow().nanos();
+            Run run = new Run(TimeUnit.NANOSECONDS.toMillis(firstWrite - start), startedSeconds(output));
+            Files.delete(output);
+            return run;
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private static void produceEvent(String brokers, String topic, int userId) throws Exception {
+        String envelope = """
+                {"payload":{"before":null,"after":{"COMPANY_ID":100,"USER_ID":"%s","NAME":"Иван Петров","LOGIN":"иван.%d",\
+                "PASSWORD":"5baa61e4c9b93f3f0682250b6cf8331b7ee68fd8","EMAIL":"ivan%d@example.com","STATE":"A"},\
+                "source":{"connector":"oracle","ts_ms":1718000000000,"snapshot":"false","scn":"1"},"op":"c"}}"""
+                .formatted(Base64.getEncoder().encodeToString(BigInteger.valueOf(userId).toByteArray()), userId, userId);
+        try (KafkaProducer<String, byte[]> producer = new KafkaProducer<>(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, brokers,
+                ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class,
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class))) {
+            producer.send(new ProducerRecord<>(topic, String.valueOf(userId), envelope.getBytes(StandardCharsets.UTF_8))).get();
+        }
+    }
+
+    /**
+     * The boot jar of the current build, next to the .original one the repackaging leaves behind
+     */
+    private static String plainJar() throws IOException {
+        try (Stream<Path> files = Files.list(TARGET)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith("usersync-") && name.endsWith(".jar"))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No usersync jar in target, package the service first"));
+        }
+    }
+
+    /**
+     * Spring Boot's own startup time from the log, -1 if it is not there
+     */
+    private static double startedSeconds(Path output) throws IOException {
+        Matcher matcher = STARTED.matcher(Files.readString(output));
+        return matcher.find() ? Double.parseDouble(matcher.group(1)) : -1;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
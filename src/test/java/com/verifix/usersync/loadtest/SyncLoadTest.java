@@ -0,0 +1,442 @@
+package com.verifix.usersync.loadtest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.ContainerTestUtils;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * End-to-end load test: Debezium events go through embedded Kafka and the real service into a Keycloak stub.
+ * Excluded from the normal build; run with {@code ./mvnw -Pload-test test} and tune with the
+ * {@code loadtest.*} system properties described in the README.
+ */
+@Tag("load")
+@Slf4j
+@EmbeddedKafka(partitions = SyncLoadTest.PARTITIONS, topics = SyncLoadTest.TOPIC)
+@SpringBootTest(properties = {
+        "spring.kafka.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.properties.security.protocol=PLAINTEXT",
+        "app.kafka.topic=" + SyncLoadTest.TOPIC,
+        "app.retry.create-topics=true",
+        "app.retry.delays=1s,5s",
+        "app.keycloak.id-cache.changelog-enabled=true",
+        "logging.level.com.verifix.usersync=WARN"
+})
+class SyncLoadTest {
+    static final String TOPIC = "user-changes-load";
+    static final int PARTITIONS = 4;
+    private static final String DEAD_LETTER_TOPIC = TOPIC + "-dlt";
+    private static final List<String> REDIRECT_TOPICS = List.of(TOPIC + "-retry-1", TOPIC + "-retry-2", DEAD_LETTER_TOPIC);
+    private static final String REALM = "loadtest";
+
+    private static final LoadProfile PROFILE = LoadProfile.fromSystemProperties();
+    private static final KeycloakStub STUB = startStub();
+
+    @Value("${spring.embedded.kafka.brokers}")
+    private String brokers;
+
+    @Value("${spring.kafka.consumer.group-id}")
+    private String groupId;
+
+    @Autowired
+    private KafkaListenerEndpointRegistry listenerRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @DynamicPropertySource
+    static void keycloak(DynamicPropertyRegistry registry) {
+        registry.add("KEYCLOAK_URL", STUB::baseUrl);
+        registry.add("KEYCLOAK_REALM", () -> REALM);
+        registry.add("KEYCLOAK_CLIENT_ID", () -> "user-sync");
+        registry.add("KEYCLOAK_CLIENT_SECRET", () -> "secret");
+        registry.add("app.keycloak.lookup.strategy", () -> System.getProperty("loadtest.lookupStrategy", "USERNAME"));
+    }
+
+    @AfterAll
+    static void stopStub() {
+        STUB.close();
+    }
+
+    @Test
+    void syncsGeneratedLoad() throws Exception {
+        // Keep the consumer group join out of the measurement
+        for (MessageListenerContainer container : listenerRegistry.getListenerContainers()) {
+            if (Arrays.asList(container.getContainerProperties().getTopics()).contains(TOPIC)) {
+                ContainerTestUtils.waitForAssignment(container, PARTITIONS);
+            }
+        }
+
+        List<LoadEvent> events = new EventGenerator(PROFILE).generate();
+        long[] sentNanos = new long[events.size()];
+        GcSnapshot gcBefore = GcSnapshot.take();
+        ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        long start = System.nanoTime();
+        try (KafkaProducer<String, byte[]> producer = new KafkaProducer<>(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, brokers,
+                ProducerConfig.LINGER_MS_CONFIG, 5,
+                ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class,
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class))) {
+            for (LoadEvent event : events) {
+                sentNanos[event.seq()] = System.nanoTime();
+                producer.send(new ProducerRecord<>(TOPIC, String.valueOf(event.userId()), event.envelope()));
+            }
+        }
+
+        Map<String, Long> redirected;
+        try (Admin admin = Admin.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, brokers))) {
+            redirected = awaitDrained(admin, events.size());
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        GcSnapshot gcAfter = GcSnapshot.take();
+
+        Map<Long, String> expected = EventGenerator.expectedState(events);
+        Map<Long, String> actual = STUB.fullNamesByUserId();
+        String report = report(events, sentNanos, elapsedNanos, gcBefore, gcAfter, redirected, diverged(expected, actual));
+        log.warn("\n{}", report);
+        Files.writeString(Path.of("target", "load-test-report.txt"), report);
+
+        // Retried changes may land after newer ones and dead-lettered ones never land, so only a clean run must match
+        if (redirected.values().stream().allMatch(count -> count == 0)) {
+            assertThat(actual).isEqualTo(expected);
+        }
+    }
+
+    /**
+     * Wait until the main group has committed every produced record and the retry group has drained the tiers.
+     * Records are only committed after they were handed on, so this state is final. Returns the records written
+     * to each retry tier and the dead-letter topic.
+     */
+    private Map<String, Long> awaitDrained(Admin admin, int total) throws Exception {
+        long deadline = System.nanoTime() + PROFILE.timeout().toNanos();
+        while (System.nanoTime() < deadline) {
+            if (committed(admin, groupId, List.of(TOPIC)) >= total) {
+                Map<String, Long> redirected = new TreeMap<>();
+                for (String topic : REDIRECT_TOPICS) {
+                    redirected.put(topic, endOffset(admin, topic));
+                }
+                long retried = redirected.entrySet().stream()
+                        .filter(entry -> !entry.getKey().equals(DEAD_LETTER_TOPIC))
+                        .mapToLong(Map.Entry::getValue)
+                        .sum();
+                if (committed(admin, groupId + "-retry", REDIRECT_TOPICS) >= retried) {
+                    return redirected;
+                }
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Not all events were committed within " + PROFILE.timeout());
+    }
+
+    private static long committed(Admin admin, String group, List<String> topics) throws Exception {
+        return admin.listConsumerGroupOffsets(group).partitionsToOffsetAndMetadata().get().entrySet().stream()
+                .filter(entry -> topics.contains(entry.getKey().topic()) && entry.getValue() != null)
+                .mapToLong(entry -> entry.getValue().offset())
+                .sum();
+    }
+
+    private static long endOffset(Admin admin, String topic) throws Exception {
+        Map<TopicPartition, OffsetSpec> latest = new HashMap<>();
+        admin.describeTopics(List.of(topic)).allTopicNames().get().get(topic).partitions()
+                .forEach(partition -> latest.put(new TopicPartition(topic, partition.partition()), OffsetSpec.latest()));
+        return admin.listOffsets(latest).all().get().values().stream()
+                .mapToLong(ListOffsetsResult.ListOffsetsResultInfo::offset)
+                .sum();
+    }
+
+    private static long diverged(Map<Long, String> expected, Map<Long, String> actual) {
+        Set<Long> users = new HashSet<>(expected.keySet());
+        users.addAll(actual.keySet());
+        return users.stream().filter(user -> !Objects.equals(expected.get(user), actual.get(user))).count();
+    }
+
+    /**
+     * Events the position store dropped as already applied, by reason
+     */
+    private Map<String, Long> dropped() {
+        Map<String, Long> dropped = new TreeMap<>();
+        for (Counter counter : meterRegistry.find("usersync.events.dropped").counters()) {
+            dropped.put(counter.getId().getTag("reason"), (long) counter.count());
+        }
+        return dropped;
+    }
+
+    /**
+     * Mean Keycloak lookup time and count by strategy and result, for lookups that happened
+     */
+    private Map<String, String> lookups() {
+        Map<String, String> lookups = new TreeMap<>();
+        for (Timer timer : meterRegistry.find("usersync.lookup").timers()) {
+            if (timer.count() > 0) {
+                lookups.put(timer.getId().getTag("strategy") + "/" + timer.getId().getTag("result"),
+                        "%d x %.1f ms".formatted(timer.count(), timer.mean(TimeUnit.MILLISECONDS)));
+            }
+        }
+        return lookups;
+    }
+
+    private String report(List<LoadEvent> events, long[] sentNanos, long elapsedNanos, GcSnapshot before, GcSnapshot after,
+                          Map<String, Long> redirected, long diverged) {
+        long[] latencies = STUB.writes().stream()
+                .mapToLong(write -> {
+                    int seq = EventGenerator.seqOf(write.fullName());
+                    return seq < 0 ? -1 : write.nanos() - sentNanos[seq];
+                })
+                .filter(latency -> latency >= 0)
+                .sorted()
+                .toArray();
+
+        Map<String, Long> calls = STUB.calls();
+        long adminCalls = calls.entrySet().stream()
+                .filter(entry -> !entry.getKey().equals("token") && !entry.getKey().startsWith("injected"))
+                .mapToLong(Map.Entry::getValue)
+                .sum();
+        Map<Character, Long> mix = events.stream().collect(Collectors.groupingBy(LoadEvent::op, Collectors.counting()));
+        double seconds = elapsedNanos / 1e9;
+        long peakHeap = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .mapToLong(pool -> pool.getPeakUsage().getUsed())
+                .sum();
+
+        StringBuilder report = new StringBuilder();
+        report.append("=== usersync load test ===\n");
+        report.append("profile:            ").append(PROFILE).append('\n');
+        report.append("events:             ").append(events.size()).append(" ").append(new TreeMap<>(mix)).append('\n');
+        report.append("elapsed:            %.2f s%n".formatted(seconds));
+        report.append("throughput:         %.0f events/s%n".formatted(events.size() / seconds));
+        report.append("sync latency:       p50 %s, p95 %s, p99 %s, max %s (produce to Keycloak write, %d writes)%n".formatted(
+                percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99),
+                percentile(latencies, 1.0), latencies.length));
+        report.append("keycloak calls:     ").append(calls).append('\n');
+        report.append("lookups:            ").append(lookups()).append('\n');
+        report.append("calls per event:    %.3f%n".formatted((double) adminCalls / events.size()));
+        report.append("redirected records: ").append(redirected).append('\n');
+        report.append("dropped events:     ").append(dropped()).append('\n');
+        report.append("diverged users:     ").append(diverged).append('\n');
+        report.append("gc:                 %d collections, %d ms%n".formatted(after.count() - before.count(), after.millis() - before.millis()));
+        report.append("heap:               peak %d MB, used at end %d MB%n".formatted(peakHeap >> 20,
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20));
+        return report.toString();
+    }
+
+    private static String percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return "n/a";
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return "%.1f ms".formatted(sorted[Math.max(index, 0)] / 1e6);
+    }
+
+    private static KeycloakStub startStub() {
+        try {
+            return new KeycloakStub(REALM, PROFILE.stub());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to start Keycloak stub", e);
+        }
+    }
+
+    /**
+     * Load shape, read from {@code loadtest.*} system properties
+     *
+     * @param mix           weights of c/u/d/r events, e.g. {@code c=10,u=70,d=5,r=15}
+     * @param hotKeyShare   share of events that go to the hottest 1% of users
+     */
+    record LoadProfile(int events, int users, Map<Character, Integer> mix, double hotKeyShare, long seed,
+                       Duration timeout, KeycloakStub.Behaviour stub) {
+
+        static LoadProfile fromSystemProperties() {
+            Map<Character, Integer> mix = new HashMap<>();
+            for (String part : System.getProperty("loadtest.mix", "c=10,u=70,d=5,r=15").split(",")) {
+                String[] pair = part.trim().split("=");
+                mix.put(pair[0].charAt(0), Integer.parseInt(pair[1]));
+            }
+            return new LoadProfile(
+                    Integer.getInteger("loadtest.events", 20_000),
+                    Integer.getInteger("loadtest.users", 5_000),
+                    mix,
+                    Double.parseDouble(System.getProperty("loadtest.hotKeyShare", "0.2")),
+                    Long.getLong("loadtest.seed", 42L),
+                    Duration.parse(System.getProperty("loadtest.timeout", "PT5M")),
+                    new KeycloakStub.Behaviour(
+                            Long.getLong("loadtest.stub.latencyMillis", 5L),
+                            Long.getLong("loadtest.stub.jitterMillis", 5L),
+                            Double.parseDouble(System.getProperty("loadtest.stub.errorRate", "0.0")),
+                            Double.parseDouble(System.getProperty("loadtest.stub.throttleRate", "0.0"))));
+        }
+    }
+
+    record LoadEvent(int seq, long userId, char op, byte[] envelope) {
+    }
+
+    /**
+     * Generates a consistent event history: creates only for absent users, updates and deletes only for present ones
+     */
+    static final class EventGenerator {
+        private static final String SEQ_MARKER = " #";
+
+        private final LoadProfile profile;
+        private final Random random;
+        private final char[] ops;
+        private final int[] cumulativeWeights;
+
+        EventGenerator(LoadProfile profile) {
+            this.profile = profile;
+            this.random = new Random(profile.seed());
+            this.ops = new char[profile.mix().size()];
+            this.cumulativeWeights = new int[ops.length];
+            int i = 0;
+            int total = 0;
+            for (Map.Entry<Character, Integer> entry : new TreeMap<>(profile.mix()).entrySet()) {
+                ops[i] = entry.getKey();
+                total += entry.getValue();
+                cumulativeWeights[i++] = total;
+            }
+        }
+
+        List<LoadEvent> generate() {
+            Map<Long, String> current = new HashMap<>();
+            LoadEvent[] events = new LoadEvent[profile.events()];
+            int hotUsers = Math.max(1, profile.users() / 100);
+
+            for (int seq = 0; seq < events.length; seq++) {
+                long userId = 1_000_000L + (random.nextDouble() < profile.hotKeyShare()
+                        ? random.nextInt(hotUsers)
+                        : random.nextInt(profile.users()));
+                String before = current.get(userId);
+                char op = pickOp();
+                if (before == null && (op == 'u' || op == 'd')) {
+                    op = 'c';
+                } else if (before != null && op == 'c') {
+                    op = 'u';
+                }
+
+                String after = op == 'd' ? null : name(userId, seq);
+                if (after == null) {
+                    current.remove(userId);
+                } else {
+                    current.put(userId, after);
+                }
+                events[seq] = new LoadEvent(seq, userId, op, envelope(seq, userId, op, op == 'c' || op == 'r' ? null : before, after));
+            }
+            return Arrays.asList(events);
+        }
+
+        private char pickOp() {
+            int roll = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < ops.length; i++) {
+                if (roll < cumulativeWeights[i]) {
+                    return ops[i];
+                }
+            }
+            return ops[ops.length - 1];
+        }
+
+        /**
+         * Full name of every user that should exist once all events are applied
+         */
+        static Map<Long, String> expectedState(List<LoadEvent> events) {
+            Map<Long, String> state = new HashMap<>();
+            for (LoadEvent event : events) {
+                if (event.op() == 'd') {
+                    state.remove(event.userId());
+                } else {
+                    state.put(event.userId(), name(event.userId(), event.seq()));
+                }
+            }
+            return state;
+        }
+
+        /**
+         * Every event carries a unique name, so each write can be traced back to the event that caused it
+         */
+        private static String name(long userId, int seq) {
+            return "Load User " + userId + SEQ_MARKER + seq;
+        }
+
+        static int seqOf(String fullName) {
+            int marker = fullName.lastIndexOf(SEQ_MARKER);
+            return marker < 0 ? -1 : Integer.parseInt(fullName.substring(marker + SEQ_MARKER.length()));
+        }
+
+        /**
+         * The SCN follows the event sequence, as the database log would
+         */
+        private static byte[] envelope(int seq, long userId, char op, String beforeName, String afterName) {
+            String before = beforeName == null ? "null" : row(userId, beforeName);
+            String after = afterName == null ? "null" : row(userId, afterName);
+            return """
+                    {"payload":{"before":%s,"after":%s,"source":{"version":"2.7.0.Final","connector":"oracle",\
+                    "ts_ms":1718000000000,"snapshot":"%s","scn":"%d"},"op":"%s","ts_ms":1718000000123}}"""
+                    .formatted(before, after, op == 'r', 289_000_000L + seq, op)
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String row(long userId, String name) {
+            return """
+                    {"COMPANY_ID":%d,"USER_ID":"%s","NAME":"%s","LOGIN":"user.%d","PASSWORD":"5baa61e4c9b93f3f0682250b6cf8331b7ee68fd8",\
+                    "EMAIL":"user%d@example.com","STATE":"A"}"""
+                    .formatted(100 + userId % 7, Base64.getEncoder().encodeToString(BigInteger.valueOf(userId).toByteArray()),
+                            name, userId, userId);
+        }
+    }
+
+    private record GcSnapshot(long count, long millis) {
+        static GcSnapshot take() {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(gc.getCollectionCount(), 0);
+                millis += Math.max(gc.getCollectionTime(), 0);
+            }
+            return new GcSnapshot(count, millis);
+        }
+    }
+}
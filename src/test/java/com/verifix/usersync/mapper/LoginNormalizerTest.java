@@ -0,0 +1,45 @@
+package com.verifix.usersync.mapper;
+
+import com.ibm.icu.text.Transliterator;
+import com.verifix.usersync.model.UserData;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LoginNormalizerTest {
+    private final LoginNormalizer normalizer = new LoginNormalizer();
+
+    @Test
+    void matchesTransliterateAndRegexPipeline() {
+        Transliterator transliterator = Transliterator.getInstance("Cyrillic-Latin");
+
+        for (String login : List.of("john.smith", "John Smith", "j$o#h%n!", "user@example.com", "Иван Петров",
+                "Ўткир_Ғуломов", "Шоҳрух-99", "Mixed Логин 7", "")) {
+            String expected = transliterator.transliterate(login)
+                    .toLowerCase()
+                    .replace(" ", "_")
+                    .replaceAll("[^a-z0-9@._-]", "");
+
+            assertThat(normalizer.normalize(login)).as(login).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void returnsAlreadyNormalizedLoginUnchanged() {
+        String login = "already.normal_login-1@x";
+
+        assertThat(normalizer.normalize(login)).isSameAs(login);
+    }
+
+    @Test
+    void splitsNameOnWhitespace() {
+        UserData user = new UserData(1L, 2L, "  John \t Ronald  Tolkien ", "john", null, null, "A");
+
+        assertThat(user.getFirstName()).isEqualTo("John");
+        assertThat(user.getLastName()).isEqualTo("Ronald Tolkien");
+        assertThat(new UserData(1L, 2L, "Cher", "cher", null, null, "A").getLastName()).isEmpty();
+        assertThat(new UserData(1L, 2L, "   ", "x", null, null, "A").getFirstName()).isEmpty();
+    }
+}
@@ -0,0 +1,92 @@
+package com.verifix.usersync.mapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumPayload;
+import com.verifix.usersync.model.debezium.DebeziumSource;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageMapperTest {
+    private static final String SCHEMA = """
+            {"type":"struct","fields":[{"type":"struct","fields":[{"type":"bytes","optional":false,"field":"USER_ID"}],
+            "optional":true,"name":"before"}],"optional":false,"name":"envelope"}""";
+
+    private final MessageMapper messageMapper = new MessageMapper(properties(), new ObjectMapper());
+
+    @Test
+    void parsesEnvelopeWithSchema() throws Exception {
+        DebeziumPayload payload = parse("""
+                {"schema":%s,"payload":{"before":null,
+                "after":{"COMPANY_ID":100,"USER_ID":"AeI=","NAME":"John Smith","LOGIN":"john","PASSWORD":null,
+                "EMAIL":"john@example.com","STATE":"A","IGNORED":{"nested":[1,2,3]}},
+                "source":{"version":"2.7.0","ts_ms":1},"op":"c","ts_ms":2}}""".formatted(SCHEMA));
+
+        assertThat(payload.operation()).isEqualTo("c");
+        assertThat(payload.before()).isNull();
+        assertThat(messageMapper.hasRelevantChanges(payload.before(), payload.after())).isTrue();
+
+        UserData userData = messageMapper.mapToUserData(payload);
+        assertThat(userData.companyId()).isEqualTo(100L);
+        assertThat(userData.userId()).isEqualTo(482L);
+        assertThat(userData.login()).isEqualTo("john");
+        assertThat(userData.password()).isNull();
+        assertThat(userData.state()).isEqualTo("A");
+        assertThat(payload.position()).isEqualTo(DebeziumSource.NONE);
+    }
+
+    @Test
+    void readsLogPositionFromSource() throws Exception {
+        DebeziumPayload oracle = parse("""
+                {"payload":{"op":"r","before":null,"after":{"USER_ID":1},
+                "source":{"connector":"oracle","ts_ms":1718000000000,"snapshot":"last","scn":"289357163","commit_scn":"1"}}}""");
+        DebeziumPayload postgres = parse("""
+                {"payload":{"op":"u","before":null,"after":{"USER_ID":1},
+                "source":{"connector":"postgresql","snapshot":false,"lsn":24023128,"xmin":null}}}""");
+
+        assertThat(oracle.position()).isEqualTo(289357163L);
+        assertThat(oracle.source().snapshot()).isTrue();
+        assertThat(oracle.source().tsMs()).isEqualTo(1718000000000L);
+        assertThat(postgres.position()).isEqualTo(24023128L);
+        assertThat(postgres.source().snapshot()).isFalse();
+    }
+
+    @Test
+    void ignoresChangesInUntrackedColumns() throws Exception {
+        DebeziumPayload payload = parse("""
+                {"payload":{"op":"u",
+                "before":{"COMPANY_ID":100,"USER_ID":1,"NAME":"John","LOGIN":"john","STATE":"A","LAST_SEEN":1},
+                "after":{"COMPANY_ID":100,"USER_ID":1,"NAME":"John","LOGIN":"john","STATE":"P","LAST_SEEN":2}}}""");
+
+        assertThat(messageMapper.hasRelevantChanges(payload.before(), payload.after())).isFalse();
+    }
+
+    @Test
+    void detectsChangesInTrackedColumns() throws Exception {
+        DebeziumPayload payload = parse("""
+                {"payload":{"op":"u",
+                "before":{"COMPANY_ID":100,"USER_ID":1,"NAME":"John","LOGIN":"john"},
+                "after":{"COMPANY_ID":100,"USER_ID":1,"NAME":"John","LOGIN":"john.smith"}}}""");
+
+        assertThat(messageMapper.hasRelevantChanges(payload.before(), payload.after())).isTrue();
+    }
+
+    @Test
+    void returnsNullWithoutPayload() throws Exception {
+        assertThat(parse("{\"schema\":" + SCHEMA + ",\"payload\":null}")).isNull();
+    }
+
+    private DebeziumPayload parse(String json) throws Exception {
+        return messageMapper.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ApplicationProperties properties() {
+        return TestProperties.bind(Map.of("app.tracked-columns", "COMPANY_ID,USER_ID,NAME,LOGIN,PASSWORD,EMAIL"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.model.EventSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.mock.MockConsumerFactory;
+import org.springframework.kafka.mock.MockProducerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeadLetterReplayServiceTest {
+    private static final TopicPartition DLT = new TopicPartition("user-changes-dlt", 0);
+
+    private final MockProducer<String, byte[]> producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer()) {
+        @Override
+        public void close(Duration timeout) {
+            // The template closes the producer after each send; the test reads its history afterwards
+        }
+    };
+    private final FailedRecordPublisher publisher = new FailedRecordPublisher(
+            new KafkaTemplate<>(new MockProducerFactory<>(() -> producer)),
+            TestProperties.bind(Map.of()),
+            new SimpleMeterRegistry());
+    private final List<Map<TopicPartition, OffsetAndMetadata>> commits = new ArrayList<>();
+
+    @Test
+    void replaysUpToTheLimitAndCommitsOnlyWhatWasSent() {
+        for (int offset = 0; offset < 3; offset++) {
+            EventSource source = new EventSource(String.valueOf(offset), "{}".getBytes(StandardCharsets.UTF_8), "user-changes", 0, offset, 3);
+            publisher.deadLetter(source, new IllegalStateException("Keycloak responded 500")).join();
+        }
+        List<ProducerRecord<String, byte[]>> deadLettered = List.copyOf(producer.history());
+        producer.clear();
+
+        MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+                commits.add(offsets);
+                super.commitSync(offsets);
+            }
+        };
+        consumer.schedulePollTask(() -> {
+            consumer.updateBeginningOffsets(Map.of(DLT, 0L));
+            consumer.rebalance(List.of(DLT));
+            for (int offset = 0; offset < deadLettered.size(); offset++) {
+                ProducerRecord<String, byte[]> dead = deadLettered.get(offset);
+                ConsumerRecord<String, byte[]> record = new ConsumerRecord<>(DLT.topic(), DLT.partition(), offset, dead.key(), dead.value());
+                for (Header header : dead.headers()) {
+                    record.headers().add(header);
+                }
+                consumer.addRecord(record);
+            }
+        });
+
+        DeadLetterReplayService replayService = new DeadLetterReplayService(new MockConsumerFactory<>(() -> consumer), publisher, "usersync");
+
+        assertThat(replayService.replay(2)).isEqualTo(2);
+
+        assertThat(producer.history()).hasSize(2).allSatisfy(replayed -> {
+            assertThat(replayed.topic()).isEqualTo("user-changes-retry-1");
+            assertThat(FailedRecordPublisher.headerValue(replayed.headers(), FailedRecordPublisher.HEADER_ATTEMPTS)).isEqualTo("0");
+        });
+        assertThat(producer.history()).extracting(ProducerRecord::key).containsExactly("0", "1");
+        assertThat(commits).containsExactly(Map.of(DLT, new OffsetAndMetadata(2)));
+    }
+}
@@ -0,0 +1,131 @@
+package com.verifix.usersync.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.MessageMapper;
+import com.verifix.usersync.model.ReplayReport;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserChangeGroup;
+import com.verifix.usersync.model.UserData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DumpReplayServiceTest {
+    // Two records per batch: [user 1, garbage-1], [user 2, garbage-2], [user 3, user 4]
+    private static final List<String> LINES = List.of(
+            envelope(1), "garbage-1", envelope(2), "garbage-2", envelope(3), envelope(4));
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SyncMetrics metrics = new SyncMetrics(meterRegistry);
+    private final ApplicationProperties properties = TestProperties.bind(Map.of("app.replay.batch-size", "2"));
+    private final SourcePositionStore positionStore = new SourcePositionStore(properties, meterRegistry);
+    private final List<Long> saved = new ArrayList<>();
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest(name = "gzip={0}")
+    @ValueSource(booleans = {false, true})
+    void resumesAnInterruptedRunAfterTheLastFinishedBatch(boolean gzip) throws IOException {
+        Path file = dump(gzip);
+        Path checkpoint = dir.resolve("dump.checkpoint");
+        Path failed = dir.resolve("dump.failed");
+
+        // The run dies in the second batch, after its undecodable line went to the failed file
+        DumpReplayService interrupted = replayService(new UserChangeCoalescer() {
+            private int batches;
+
+            @Override
+            public List<UserChangeGroup> coalesce(List<UserChangeEvent> events) {
+                if (++batches == 2) {
+                    throw new IllegalStateException("Killed");
+                }
+                return super.coalesce(events);
+            }
+        });
+        assertThatThrownBy(() -> interrupted.replay(file, checkpoint, failed)).hasMessage("Killed");
+        assertThat(saved).containsExactly(1L);
+        assertThat(Files.readString(failed)).isEqualTo("garbage-1\ngarbage-2\n");
+
+        ReplayReport report = replayService(new UserChangeCoalescer()).replay(file, checkpoint, failed);
+
+        assertThat(report.resumedAt()).isEqualTo(2);
+        assertThat(report.records()).isEqualTo(4);
+        assertThat(report.undecodable()).isEqualTo(1);
+        assertThat(report.applied()).isEqualTo(3);
+        assertThat(saved).containsExactlyInAnyOrder(1L, 2L, 3L, 4L);
+        // Cut back to the checkpoint before the batch was replayed again, so nothing is kept twice
+        assertThat(Files.readString(failed)).isEqualTo("garbage-1\ngarbage-2\n");
+        // Applied like on the consumer: counted and the users' marks moved
+        assertThat(meterRegistry.get("usersync.events").tags("operation", "create", "outcome", "processed").counter().count()).isEqualTo(4);
+        assertThat(positionStore.isSuperseded(4L, 99, 0)).isTrue();
+    }
+
+    @Test
+    void refusesTheCheckpointOfAnotherFile() throws IOException {
+        Path file = dump(false);
+        Path checkpoint = dir.resolve("dump.checkpoint");
+        replayService(new UserChangeCoalescer()).replay(file, checkpoint, dir.resolve("dump.failed"));
+
+        Path other = Files.copy(file, dir.resolve("other.ndjson"));
+        assertThatThrownBy(() -> replayService(new UserChangeCoalescer()).replay(other, checkpoint, dir.resolve("other.failed")))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining(file.toAbsolutePath().toString());
+    }
+
+    private DumpReplayService replayService(UserChangeCoalescer coalescer) {
+        SnapshotImportService snapshotImportService = new SnapshotImportService(null, null, null, properties);
+        UserChangeApplier applier = new UserChangeApplier(snapshotImportService, new RecordingUserSyncService(), positionStore, metrics, properties);
+        UserChangeDecoder decoder = new UserChangeDecoder(new MessageMapper(properties, new ObjectMapper()), null, metrics);
+        return new DumpReplayService(decoder, coalescer, snapshotImportService, applier, null, properties);
+    }
+
+    private Path dump(boolean gzip) throws IOException {
+        Path file = dir.resolve(gzip ? "dump.ndjson.gz" : "dump.ndjson");
+        try (OutputStream out = gzip ? new GZIPOutputStream(Files.newOutputStream(file)) : Files.newOutputStream(file)) {
+            out.write((String.join("\n", LINES) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    private static String envelope(long userId) {
+        return """
+                {"payload":{"op":"c","before":null,"after":{"COMPANY_ID":1,"USER_ID":%d,"NAME":"User %d","LOGIN":"user%d","STATE":"A"},\
+                "source":{"connector":"oracle","scn":"%d"}}}""".formatted(userId, userId, userId, 100 + userId);
+    }
+
+    /**
+     * Keeps the userIds it was asked to save
+     */
+    private final class RecordingUserSyncService extends UserSyncService {
+        RecordingUserSyncService() {
+            super(null, null, null, null, metrics);
+        }
+
+        @Override
+        public CompletableFuture<Void> handleUserSave(UserData userData) {
+            synchronized (saved) {
+                saved.add(userData.userId());
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.model.EventSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.mock.MockProducerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FailedRecordPublisherTest {
+    private static final byte[] VALUE = "{\"payload\":{}}".getBytes(StandardCharsets.UTF_8);
+
+    private final MockProducer<String, byte[]> producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer()) {
+        @Override
+        public void close(Duration timeout) {
+            // The template closes the producer after each send; the test reads its history afterwards
+        }
+    };
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final FailedRecordPublisher publisher = new FailedRecordPublisher(
+            new KafkaTemplate<>(new MockProducerFactory<>(() -> producer)),
+            TestProperties.bind(Map.of("app.retry.delays", "10s,1m")),
+            meterRegistry);
+
+    @Test
+    void movesARecordThroughEachTierAndThenToTheDeadLetterTopic() {
+        EventSource source = new EventSource("42", VALUE, "user-changes", 3, 17L, 0);
+        RuntimeException cause = new IllegalStateException("Keycloak responded 500");
+
+        long before = System.currentTimeMillis();
+        publisher.retry(source, cause).join();
+        ProducerRecord<String, byte[]> first = producer.history().getLast();
+        assertThat(first.topic()).isEqualTo("user-changes-retry-1");
+        assertThat(Long.parseLong(FailedRecordPublisher.headerValue(first.headers(), FailedRecordPublisher.HEADER_DUE)))
+                .isBetween(before + 10_000, System.currentTimeMillis() + 10_000);
+
+        EventSource retried = FailedRecordPublisher.sourceOf(first.key(), first.value(), first.headers());
+        publisher.retry(retried, cause).join();
+        ProducerRecord<String, byte[]> second = producer.history().getLast();
+        assertThat(second.topic()).isEqualTo("user-changes-retry-2");
+
+        publisher.retry(FailedRecordPublisher.sourceOf(second.key(), second.value(), second.headers()), cause).join();
+        ProducerRecord<String, byte[]> dead = producer.history().getLast();
+        assertThat(dead.topic()).isEqualTo("user-changes-dlt");
+        assertThat(FailedRecordPublisher.headerValue(dead.headers(), FailedRecordPublisher.HEADER_DUE)).isNull();
+        assertThat(FailedRecordPublisher.headerValue(dead.headers(), FailedRecordPublisher.HEADER_EXCEPTION))
+                .isEqualTo(IllegalStateException.class.getName());
+
+        // The original coordinates survive every hop
+        EventSource deadSource = FailedRecordPublisher.sourceOf(dead.key(), dead.value(), dead.headers());
+        assertThat(deadSource.key()).isEqualTo("42");
+        assertThat(deadSource.value()).isEqualTo(VALUE);
+        assertThat(deadSource.topic()).isEqualTo("user-changes");
+        assertThat(deadSource.partition()).isEqualTo(3);
+        assertThat(deadSource.offset()).isEqualTo(17L);
+        assertThat(deadSource.attempts()).isEqualTo(3);
+
+        assertThat(meterRegistry.get("usersync.records.redirected").tag("destination", "user-changes-dlt").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void replaysADeadLetteredRecordIntoTheFirstTierDueNow() {
+        EventSource dead = new EventSource("42", VALUE, "user-changes", 3, 17L, 3);
+
+        long before = System.currentTimeMillis();
+        publisher.replay(dead).join();
+
+        ProducerRecord<String, byte[]> replayed = producer.history().getLast();
+        assertThat(replayed.topic()).isEqualTo("user-changes-retry-1");
+        assertThat(FailedRecordPublisher.headerValue(replayed.headers(), FailedRecordPublisher.HEADER_ATTEMPTS)).isEqualTo("0");
+        assertThat(Long.parseLong(FailedRecordPublisher.headerValue(replayed.headers(), FailedRecordPublisher.HEADER_DUE)))
+                .isBetween(before, System.currentTimeMillis());
+        assertThat(FailedRecordPublisher.headerValue(replayed.headers(), FailedRecordPublisher.HEADER_EXCEPTION)).isNull();
+    }
+}
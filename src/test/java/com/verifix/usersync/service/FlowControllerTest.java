@@ -0,0 +1,112 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.Lane;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FlowControllerTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ApplicationProperties properties = TestProperties.bind(Map.of(
+            "app.flow-control.backlog-high-water", "4",
+            "app.flow-control.backlog-low-water", "1",
+            "app.flow-control.latency-high-water", "2s",
+            "app.flow-control.latency-low-water", "500ms",
+            // Checked by the test only
+            "app.flow-control.check-interval", "1h"));
+    private final UserEventDispatcher dispatcher = new UserEventDispatcher(properties, meterRegistry);
+    private final KeycloakConcurrencyLimiter limiter = new KeycloakConcurrencyLimiter(
+            KeycloakRouter.DEFAULT_TARGET, properties.keycloak().limiter(), meterRegistry);
+    private final ConsumptionGate gate = new ConsumptionGate(new KafkaListenerEndpointRegistry(), meterRegistry);
+    private final FlowController flowController = new FlowController(dispatcher,
+            new KeycloakTargets(List.of(new KeycloakTarget(KeycloakRouter.DEFAULT_TARGET, null, null, null, null, limiter))),
+            gate, properties);
+    private final List<CompletableFuture<Void>> running = new ArrayList<>();
+    private long nextUserId;
+
+    @AfterEach
+    void shutdown() {
+        running.forEach(task -> task.complete(null));
+        flowController.shutdown();
+    }
+
+    @Test
+    void pausesAtTheBacklogHighWaterAndResumesOnlyAtTheLowWater() {
+        dispatch(3);
+        flowController.check();
+        assertThat(gate.isPaused(ConsumptionGate.BACKLOG)).isFalse();
+
+        dispatch(1);
+        flowController.check();
+        assertThat(gate.isPaused(ConsumptionGate.BACKLOG)).isTrue();
+
+        finish(2);
+        flowController.check();
+        assertThat(dispatcher.backlog(Lane.LIVE)).isEqualTo(2);
+        assertThat(gate.isPaused(ConsumptionGate.BACKLOG)).isTrue();
+
+        finish(1);
+        flowController.check();
+        assertThat(gate.isPaused(ConsumptionGate.BACKLOG)).isFalse();
+        assertThat(meterRegistry.get("usersync.consumption.pause").tag("reason", ConsumptionGate.BACKLOG).timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void pausesOnHighLatencyWhileWorkIsInFlightAndResumesAtTheLowWater() {
+        respond(Duration.ofSeconds(3));
+        flowController.check();
+        // Nothing in flight: a stale average must not hold consumption back
+        assertThat(gate.isPaused(ConsumptionGate.LATENCY)).isFalse();
+
+        dispatch(1);
+        flowController.check();
+        assertThat(gate.isPaused(ConsumptionGate.LATENCY)).isTrue();
+
+        // Between the marks: stays paused
+        while (limiter.averageLatency().compareTo(Duration.ofSeconds(1)) > 0) {
+            respond(Duration.ofMillis(100));
+        }
+        flowController.check();
+        assertThat(gate.isPaused(ConsumptionGate.LATENCY)).isTrue();
+
+        while (limiter.averageLatency().compareTo(Duration.ofMillis(500)) > 0) {
+            respond(Duration.ofMillis(100));
+        }
+        flowController.check();
+        assertThat(gate.isPaused(ConsumptionGate.LATENCY)).isFalse();
+    }
+
+    private void dispatch(int tasks) {
+        for (int i = 0; i < tasks; i++) {
+            CompletableFuture<Void> task = new CompletableFuture<>();
+            running.add(task);
+            dispatcher.dispatch(++nextUserId, Lane.LIVE, () -> task);
+        }
+    }
+
+    private void finish(int tasks) {
+        for (int i = 0; i < tasks; i++) {
+            running.removeFirst().complete(null);
+        }
+    }
+
+    private void respond(Duration latency) {
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        limiter.release(latency.toNanos(), false);
+    }
+}
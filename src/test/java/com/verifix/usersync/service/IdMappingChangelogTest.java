@@ -0,0 +1,117 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.mock.MockConsumerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IdMappingChangelogTest {
+    private static final String TOPIC = "user-changes-id-mappings";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // Everything published so far; each catch-up gets a fresh consumer over it
+    private final List<ConsumerRecord<String, byte[]>> published = new ArrayList<>();
+    private final Map<Long, String> restored = new LinkedHashMap<>();
+
+    @Test
+    void restoresMappingsAndTombstonesThenReadsOnlyWhatWasPublishedSince() {
+        IdMappingChangelog changelog = changelog(new MockConsumerFactory<>(this::consumer));
+        publish("1", "kc-1");
+        publish("2", "kc-2");
+        publish("oops", "kc-x");
+        publish("1", null);
+
+        assertThat(changelog.catchUp(this::restore)).isEqualTo(3);
+        assertThat(restored).containsOnly(Map.entry(1L, "deleted"), Map.entry(2L, "kc-2"));
+
+        publish("3", "kc-3");
+        restored.clear();
+        assertThat(changelog.catchUp(this::restore)).isEqualTo(1);
+        assertThat(restored).containsOnly(Map.entry(3L, "kc-3"));
+        assertThat(meterRegistry.get("keycloak.id.mappings.restore").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    void givesUpAtTheDeadlineAndResumesFromWhereItStopped() {
+        Map<String, Object> config = new LinkedHashMap<>(Map.of(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG, "0"));
+        IdMappingChangelog changelog = changelog(new MockConsumerFactory<>(this::consumer) {
+            @Override
+            public Map<String, Object> getConfigurationProperties() {
+                return config;
+            }
+        });
+        publish("1", "kc-1");
+        publish("2", "kc-2");
+
+        // No time at all: returns with nothing restored instead of holding up the consumer
+        assertThat(changelog.catchUp(this::restore)).isZero();
+        assertThat(restored).isEmpty();
+
+        config.remove(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG);
+        assertThat(changelog.catchUp(this::restore)).isEqualTo(2);
+        assertThat(restored).containsOnlyKeys(1L, 2L);
+    }
+
+    @Test
+    void doesNotQueueBehindACatchUpInProgress() {
+        IdMappingChangelog changelog = changelog(new MockConsumerFactory<>(this::consumer));
+        publish("1", "kc-1");
+        List<Long> concurrent = new ArrayList<>();
+
+        // Another consumer gets its partitions while the first is still reading
+        assertThat(changelog.catchUp((userId, keycloakId) -> {
+            concurrent.add(CompletableFuture.supplyAsync(() -> changelog.tryCatchUp(this::restore)).join());
+            restore(userId, keycloakId);
+        })).isEqualTo(1);
+
+        assertThat(concurrent).containsExactly(-1L);
+        assertThat(restored).containsOnly(Map.entry(1L, "kc-1"));
+
+        publish("2", "kc-2");
+        assertThat(changelog.tryCatchUp(this::restore)).isEqualTo(1);
+        assertThat(restored).containsOnlyKeys(1L, 2L);
+    }
+
+    private IdMappingChangelog changelog(ConsumerFactory<String, byte[]> consumerFactory) {
+        return new IdMappingChangelog(null, consumerFactory, meterRegistry,
+                TestProperties.bind(Map.of("app.keycloak.id-cache.changelog-enabled", "true")), "usersync");
+    }
+
+    private void restore(Long userId, String keycloakId) {
+        restored.put(userId, keycloakId != null ? keycloakId : "deleted");
+    }
+
+    private void publish(String userId, String keycloakId) {
+        byte[] value = keycloakId != null ? keycloakId.getBytes(StandardCharsets.UTF_8) : null;
+        published.add(new ConsumerRecord<>(TOPIC, 0, published.size(), userId, value));
+    }
+
+    private MockConsumer<String, byte[]> consumer() {
+        MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.updatePartitions(TOPIC, List.of(new PartitionInfo(TOPIC, 0, null, null, null)));
+        consumer.updateBeginningOffsets(Map.of(PARTITION, 0L));
+        consumer.updateEndOffsets(Map.of(PARTITION, (long) published.size()));
+        List<ConsumerRecord<String, byte[]>> records = List.copyOf(published);
+        consumer.schedulePollTask(() -> records.stream()
+                .filter(record -> record.offset() >= consumer.position(PARTITION))
+                .forEach(consumer::addRecord));
+        return consumer;
+    }
+}
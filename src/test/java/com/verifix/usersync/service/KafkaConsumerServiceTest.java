@@ -0,0 +1,78 @@
+package com.verifix.usersync.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.MessageMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.mock.MockProducerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KafkaConsumerServiceTest {
+    private static final String TOPIC = "user-changes";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SyncMetrics metrics = new SyncMetrics(meterRegistry);
+    private final ApplicationProperties properties = TestProperties.bind(Map.of("app.flow-control.enabled", "false"));
+    // Sends to the dead-letter topic wait for the test to complete or fail them
+    private final MockProducer<String, byte[]> producer = new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer()) {
+        @Override
+        public void close(Duration timeout) {
+            // The template closes the producer after each send
+        }
+    };
+    private final FailedRecordPublisher failedRecordPublisher = new FailedRecordPublisher(
+            new KafkaTemplate<>(new MockProducerFactory<>(() -> producer)), properties, meterRegistry);
+    private final SourcePositionStore positionStore = new SourcePositionStore(properties, meterRegistry);
+    private final UserEventDispatcher dispatcher = new UserEventDispatcher(properties, meterRegistry);
+    private final KafkaConsumerService consumerService = new KafkaConsumerService(
+            new UserChangeDecoder(new MessageMapper(properties, new ObjectMapper()), failedRecordPublisher, metrics),
+            new UserChangeProcessor(new UserChangeCoalescer(), dispatcher, new KeycloakRouter(properties),
+                    new SnapshotImportService(null, null, null, properties), null, positionStore, failedRecordPublisher, metrics),
+            new FlowController(dispatcher, null, null, properties));
+    private final MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    private final List<String> acknowledged = new ArrayList<>();
+
+    @Test
+    void readsABatchAgainWhenItsDeadLetterCannotBeSent() {
+        consumer.assign(List.of(PARTITION));
+        consumer.updateBeginningOffsets(Map.of(PARTITION, 0L));
+
+        consumerService.consumeUserChanges(List.of(undecodable(5)), () -> acknowledged.add("first"), consumer);
+        assertThat(producer.errorNext(new KafkaException("Broker unavailable"))).isTrue();
+        assertThat(acknowledged).isEmpty();
+
+        // The next poll is dropped and the consumer moved back to the failed record
+        consumerService.consumeUserChanges(List.of(undecodable(6)), () -> acknowledged.add("next"), consumer);
+        assertThat(consumer.position(PARTITION)).isEqualTo(5);
+        assertThat(producer.history()).hasSize(1);
+
+        consumerService.consumeUserChanges(List.of(undecodable(5), undecodable(6)), () -> acknowledged.add("again"), consumer);
+        assertThat(producer.completeNext()).isTrue();
+        assertThat(acknowledged).isEmpty();
+        assertThat(producer.completeNext()).isTrue();
+        assertThat(acknowledged).containsExactly("again");
+    }
+
+    private static ConsumerRecord<String, byte[]> undecodable(long offset) {
+        return new ConsumerRecord<>(TOPIC, 0, offset, "1", "not json".getBytes(StandardCharsets.UTF_8));
+    }
+}
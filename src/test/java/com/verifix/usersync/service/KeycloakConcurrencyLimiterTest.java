@@ -0,0 +1,60 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeycloakConcurrencyLimiterTest {
+    private static final long FAST = Duration.ofMillis(20).toNanos();
+    private static final long SLOW = Duration.ofSeconds(2).toNanos();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final KeycloakConcurrencyLimiter limiter = limiter();
+
+    @Test
+    void shrinksOnOverloadAndSlowResponses() throws Exception {
+        limiter.acquire();
+        limiter.release(FAST, true);
+        assertThat(limiter.limit()).isEqualTo(9);
+
+        limiter.acquire();
+        limiter.release(SLOW, false);
+        assertThat(limiter.limit()).isEqualTo(8);
+        assertThat(meterRegistry.get("keycloak.concurrency.limit").gauge().value()).isEqualTo(8);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(SLOW, false);
+        }
+        assertThat(limiter.limit()).isEqualTo(1);
+    }
+
+    @Test
+    void growsOnlyWhileTheLimitIsUsed() throws Exception {
+        limiter.acquire();
+        limiter.release(FAST, false);
+        assertThat(limiter.limit()).isEqualTo(10);
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                limiter.acquire();
+            }
+            for (int i = 0; i < 10; i++) {
+                limiter.release(FAST, false);
+            }
+        }
+        assertThat(limiter.limit()).isEqualTo(11);
+        assertThat(limiter.inFlight()).isZero();
+    }
+
+    private KeycloakConcurrencyLimiter limiter() {
+        ApplicationProperties properties = TestProperties.bind(Map.of("app.keycloak.limiter.initial-limit", "10"));
+        return new KeycloakConcurrencyLimiter(KeycloakRouter.DEFAULT_TARGET, properties.keycloak().limiter(), meterRegistry);
+    }
+}
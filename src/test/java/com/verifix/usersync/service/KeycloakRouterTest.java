@@ -0,0 +1,50 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KeycloakRouterTest {
+
+    @Test
+    void routesListedCompaniesAndDefaultsTheRest() {
+        KeycloakRouter router = new KeycloakRouter(properties(Map.of(
+                "app.keycloak.targets.large.companies", "101,205",
+                "app.keycloak.targets.eu.companies", "300")));
+
+        assertThat(router.targets()).first().isEqualTo(KeycloakRouter.DEFAULT_TARGET);
+        assertThat(router.targets()).containsExactlyInAnyOrder(KeycloakRouter.DEFAULT_TARGET, "large", "eu");
+        assertThat(router.route(205L)).isEqualTo("large");
+        assertThat(router.route(300L)).isEqualTo("eu");
+        assertThat(router.route(102L)).isEqualTo(KeycloakRouter.DEFAULT_TARGET);
+        assertThat(router.route(null)).isEqualTo(KeycloakRouter.DEFAULT_TARGET);
+    }
+
+    @Test
+    void rejectsACompanyRoutedTwice() {
+        assertThatThrownBy(() -> new KeycloakRouter(properties(Map.of(
+                "app.keycloak.targets.large.companies", "101",
+                "app.keycloak.targets.eu.companies", "101"))))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Company 101");
+    }
+
+    private static ApplicationProperties properties(Map<String, String> targets) {
+        Map<String, String> values = new HashMap<>();
+        targets.forEach((key, companies) -> {
+            String prefix = key.substring(0, key.length() - ".companies".length());
+            values.put(key, companies);
+            values.put(prefix + ".base-url", "http://keycloak");
+            values.put(prefix + ".realm", "test");
+            values.put(prefix + ".admin-client-id", "user-sync");
+            values.put(prefix + ".admin-client-secret", "secret");
+        });
+        return TestProperties.bind(values);
+    }
+}
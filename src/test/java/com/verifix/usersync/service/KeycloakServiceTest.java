@@ -0,0 +1,95 @@
+package com.verifix.usersync.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.mapper.LoginNormalizer;
+import com.verifix.usersync.model.UserData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+
+class KeycloakServiceTest {
+    private static final String USERS_URL = "http://keycloak/admin/realms/test/users";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ApplicationProperties properties = TestProperties.bind(Map.of("app.keycloak.lookup.strategy", "USERNAME"));
+    private final KeycloakIdCache idCache = new KeycloakIdCache(properties,
+            new IdMappingChangelog(null, null, meterRegistry, properties, "usersync"), meterRegistry);
+    private final RestTemplate restTemplate = new RestTemplate();
+    private final MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+    private final KeycloakService keycloakService = new KeycloakService(
+            new KeycloakTargets(List.of(new KeycloakTarget(KeycloakRouter.DEFAULT_TARGET, "http://keycloak", "test", restTemplate, null, null))),
+            new KeycloakMapper(new ObjectMapper(), new LoginNormalizer()), idCache, properties);
+    private final UserData user = new UserData(1L, 42L, "User 42", "user42", null, null, "A");
+
+    @AfterEach
+    void shutdown() {
+        keycloakService.shutdown();
+    }
+
+    @Test
+    void cachesTheIdFromTheLocationOfACreatedUser() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setLocation(URI.create(USERS_URL + "/kc-42"));
+        server.expect(requestTo(USERS_URL)).andExpect(method(HttpMethod.POST))
+                .andRespond(withStatus(HttpStatus.CREATED).headers(headers));
+
+        assertThat(keycloakService.createUser(KeycloakRouter.DEFAULT_TARGET, user)).isEqualTo("kc-42");
+
+        server.verify();
+        assertThat(idCache.get(42L)).isEqualTo("kc-42");
+    }
+
+    @Test
+    void dropsTheCachedIdWhenTheUsernameIsTaken() {
+        idCache.put(42L, "kc-stale");
+        server.expect(requestTo(USERS_URL)).andExpect(method(HttpMethod.POST))
+                .andRespond(withStatus(HttpStatus.CONFLICT));
+
+        assertThatThrownBy(() -> keycloakService.createUser(KeycloakRouter.DEFAULT_TARGET, user)).isInstanceOf(RuntimeException.class);
+
+        server.verify();
+        assertThat(idCache.get(42L)).isNull();
+    }
+
+    @Test
+    void dropsTheCachedIdWhenTheUserIsGoneOnUpdate() {
+        idCache.put(42L, "kc-gone");
+        server.expect(requestTo(USERS_URL + "/kc-gone")).andExpect(method(HttpMethod.PUT))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        assertThatThrownBy(() -> keycloakService.updateUser(KeycloakRouter.DEFAULT_TARGET, "kc-gone", user)).isInstanceOf(RuntimeException.class);
+
+        server.verify();
+        assertThat(idCache.get(42L)).isNull();
+    }
+
+    @Test
+    void dropsTheCachedIdWhenTheUserIsGoneOnDelete() {
+        idCache.put(42L, "kc-gone");
+        server.expect(requestTo(USERS_URL + "/kc-gone")).andExpect(method(HttpMethod.DELETE))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        assertThatThrownBy(() -> keycloakService.deleteUser(KeycloakRouter.DEFAULT_TARGET, "kc-gone", user)).isInstanceOf(RuntimeException.class);
+
+        server.verify();
+        assertThat(idCache.get(42L)).isNull();
+    }
+}
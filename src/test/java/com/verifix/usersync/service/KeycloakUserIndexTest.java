@@ -0,0 +1,49 @@
+package com.verifix.usersync.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeycloakUserIndexTest {
+
+    @Test
+    void keepsEntriesAcrossGrowth() {
+        KeycloakUserIndex index = new KeycloakUserIndex(4);
+        List<String> ids = new ArrayList<>();
+        for (long userId = 0; userId < 10_000; userId++) {
+            String id = UUID.randomUUID().toString();
+            ids.add(id);
+            index.put(userId * 7919, id, userId);
+        }
+
+        assertThat(index.size()).isEqualTo(10_000);
+        for (long userId = 0; userId < 10_000; userId++) {
+            int entry = index.find(userId * 7919);
+            assertThat(index.keycloakId(entry)).isEqualTo(ids.get((int) userId));
+            assertThat(index.hash(entry)).isEqualTo(userId);
+        }
+        assertThat(index.find(1)).isEqualTo(-1);
+    }
+
+    @Test
+    void tracksUsersNotSeenInTheSource() {
+        KeycloakUserIndex index = new KeycloakUserIndex(16);
+        index.put(1, "3f0c9f38-4a4e-4b8e-9d7e-1f2a3b4c5d6e", 11);
+        index.put(2, "imported-user-2", 22);
+        index.put(3, "0b5d1c2e-7a8f-4e6d-9c3b-2a1f0e9d8c7b", 33);
+        index.put(2, "duplicate", 44);
+
+        index.markSeen(index.find(1));
+        index.markSeen(index.find(3));
+
+        int unseen = index.nextUnseen(0);
+        assertThat(index.userId(unseen)).isEqualTo(2);
+        assertThat(index.keycloakId(unseen)).isEqualTo("imported-user-2");
+        assertThat(index.hash(unseen)).isEqualTo(22);
+        assertThat(index.nextUnseen(unseen + 1)).isEqualTo(-1);
+    }
+}
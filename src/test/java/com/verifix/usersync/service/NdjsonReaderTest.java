@@ -0,0 +1,69 @@
+package com.verifix.usersync.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NdjsonReaderTest {
+    private static final String CONTENT = "{\"a\":1}\r\n\n" + "x".repeat(100_000) + "\n{\"b\":2}";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resumesAPlainFileAtTheOffset() throws IOException {
+        Path file = Files.writeString(dir.resolve("dump.ndjson"), CONTENT);
+
+        long line;
+        long offset;
+        try (NdjsonReader reader = NdjsonReader.open(file, 0, 0)) {
+            assertThat(text(reader.next())).isEqualTo("{\"a\":1}");
+            assertThat(reader.next()).isEmpty();
+            line = reader.line();
+            offset = reader.offset();
+        }
+
+        try (NdjsonReader reader = NdjsonReader.open(file, line, offset)) {
+            assertThat(reader.compressed()).isFalse();
+            assertThat(rest(reader)).containsExactly("x".repeat(100_000), "{\"b\":2}");
+            assertThat(reader.line()).isEqualTo(4);
+            assertThat(reader.offset()).isEqualTo(Files.size(file));
+        }
+    }
+
+    @Test
+    void resumesAGzipFileAfterTheLines() throws IOException {
+        Path file = dir.resolve("dump.ndjson.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (NdjsonReader reader = NdjsonReader.open(file, 2, 0)) {
+            assertThat(reader.compressed()).isTrue();
+            assertThat(rest(reader)).containsExactly("x".repeat(100_000), "{\"b\":2}");
+            assertThat(reader.line()).isEqualTo(4);
+        }
+    }
+
+    private static List<String> rest(NdjsonReader reader) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (byte[] line = reader.next(); line != null; line = reader.next()) {
+            lines.add(text(line));
+        }
+        return lines;
+    }
+
+    private static String text(byte[] line) {
+        return new String(line, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,115 @@
+package com.verifix.usersync.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.client.AuthorizedClientServiceOAuth2AuthorizedClientManager;
+import org.springframework.security.oauth2.client.InMemoryOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OAuth2TokenServiceTest {
+    private static final ClientRegistration REGISTRATION = ClientRegistration.withRegistrationId("keycloak")
+            .authorizationGrantType(AuthorizationGrantType.CLIENT_CREDENTIALS)
+            .clientId("user-sync")
+            .tokenUri("http://keycloak/token")
+            .build();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger issued = new AtomicInteger();
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile Duration lifetime = Duration.ofMinutes(5);
+    private volatile boolean blocking;
+    private OAuth2TokenService tokenService;
+
+    @AfterEach
+    void shutdown() {
+        tokenService.shutdown();
+    }
+
+    @Test
+    void concurrentCallersShareOneRefresh() throws Exception {
+        tokenService = tokenService();
+        blocking = true;
+
+        List<CompletableFuture<String>> callers = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 8; i++) {
+                callers.add(CompletableFuture.supplyAsync(tokenService::getAccessToken, executor));
+            }
+            assertThat(entered.await(10, TimeUnit.SECONDS)).isTrue();
+            // Let the other callers queue up behind the refresh in flight
+            Thread.sleep(100);
+            release.countDown();
+        }
+
+        assertThat(callers).allSatisfy(caller -> assertThat(caller.join()).isEqualTo("token-1"));
+        assertThat(issued).hasValue(1);
+
+        // A token rejected twice is only replaced once
+        assertThat(tokenService.refreshAccessToken("token-1")).isEqualTo("token-2");
+        assertThat(tokenService.refreshAccessToken("token-1")).isEqualTo("token-2");
+        assertThat(issued).hasValue(2);
+        assertThat(meterRegistry.get("keycloak.token.refresh").tag("result", "success").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    void renewsTheTokenInTheBackgroundBeforeItExpires() throws Exception {
+        tokenService = tokenService();
+        // Renewal is scheduled a minute before expiry, so one second from now
+        lifetime = Duration.ofSeconds(61);
+
+        assertThat(tokenService.getAccessToken()).isEqualTo("token-1");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!tokenService.getAccessToken().equals("token-2") && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(tokenService.getAccessToken()).isEqualTo("token-2");
+        assertThat(issued).hasValue(2);
+    }
+
+    private OAuth2TokenService tokenService() {
+        InMemoryOAuth2AuthorizedClientService clientService =
+                new InMemoryOAuth2AuthorizedClientService(new InMemoryClientRegistrationRepository(REGISTRATION));
+        AuthorizedClientServiceOAuth2AuthorizedClientManager manager = new AuthorizedClientServiceOAuth2AuthorizedClientManager(
+                new InMemoryClientRegistrationRepository(REGISTRATION), clientService);
+        manager.setAuthorizedClientProvider(context -> new OAuth2AuthorizedClient(
+                REGISTRATION, context.getPrincipal().getName(), issue()));
+        return new OAuth2TokenService("default", "keycloak", manager, clientService, meterRegistry);
+    }
+
+    /**
+     * The token endpoint: numbered tokens, optionally held until the test releases them
+     */
+    private OAuth2AccessToken issue() {
+        if (blocking) {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int number = issued.incrementAndGet();
+        Instant now = Instant.now();
+        return new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + number, now, now.plus(lifetime));
+    }
+}
@@ -0,0 +1,83 @@
+package com.verifix.usersync.service;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OrderedAcknowledgerTest {
+    private static final TopicPartition P0 = new TopicPartition("user-changes", 0);
+    private static final TopicPartition P1 = new TopicPartition("user-changes", 1);
+
+    @Test
+    void drainWaitsForTheRevokedPartitionsOnly() {
+        OrderedAcknowledger acknowledger = new OrderedAcknowledger();
+        List<String> acknowledged = new ArrayList<>();
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> kept = new CompletableFuture<>();
+        acknowledger.add(first, () -> acknowledged.add("first"), Map.of(P0, 0L, P1, 0L));
+        acknowledger.add(kept, () -> acknowledged.add("kept"), Map.of(P1, 5L));
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            executor.schedule(() -> first.complete(null), 50, TimeUnit.MILLISECONDS);
+            assertThat(acknowledger.drain(List.of(P0), Duration.ofSeconds(5))).isZero();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(acknowledged).containsExactly("first");
+        kept.complete(null);
+        assertThat(acknowledged).containsExactly("first", "kept");
+    }
+
+    @Test
+    void batchesThatMissTheTimeoutAreNeverAcknowledged() {
+        OrderedAcknowledger acknowledger = new OrderedAcknowledger();
+        List<String> acknowledged = new ArrayList<>();
+        CompletableFuture<Void> slow = new CompletableFuture<>();
+        acknowledger.add(slow, () -> acknowledged.add("slow"), Map.of(P0, 0L));
+
+        assertThat(acknowledger.drain(List.of(P0), Duration.ofMillis(10))).isEqualTo(1);
+        // Lost partitions go through revocation afterwards, which finds nothing left to wait for
+        assertThat(acknowledger.drain(List.of(P0), Duration.ofSeconds(5))).isZero();
+
+        slow.complete(null);
+        assertThat(acknowledged).isEmpty();
+        assertThat(acknowledger.size()).isZero();
+    }
+
+    @Test
+    void failedBatchesAndEverythingAfterThemAreReadAgain() {
+        OrderedAcknowledger acknowledger = new OrderedAcknowledger();
+        List<String> acknowledged = new ArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        CompletableFuture<Void> later = new CompletableFuture<>();
+        acknowledger.add(done, () -> acknowledged.add("done"), Map.of(P0, 0L));
+        acknowledger.add(failed, () -> acknowledged.add("failed"), Map.of(P0, 10L));
+        acknowledger.add(later, () -> acknowledged.add("later"), Map.of(P0, 20L, P1, 5L));
+
+        later.complete(null);
+        failed.completeExceptionally(new IllegalStateException("Broker unavailable"));
+        done.complete(null);
+        // Polled before the consumer moved back
+        acknowledger.add(CompletableFuture.completedFuture(null), () -> acknowledged.add("polled"), Map.of(P1, 3L));
+
+        assertThat(acknowledged).containsExactly("done");
+        assertThat(acknowledger.takeRewind()).isEqualTo(Map.of(P0, 10L, P1, 3L));
+        assertThat(acknowledger.takeRewind()).isEmpty();
+
+        acknowledger.add(CompletableFuture.completedFuture(null), () -> acknowledged.add("again"), Map.of(P0, 10L));
+        assertThat(acknowledged).containsExactly("done", "again");
+    }
+}
@@ -0,0 +1,219 @@
+package com.verifix.usersync.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.mapper.LoginNormalizer;
+import com.verifix.usersync.mapper.MessageMapper;
+import com.verifix.usersync.model.EventSource;
+import com.verifix.usersync.model.ReconciliationReport;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import com.verifix.usersync.model.keycloak.KeycloakUser;
+import io.github.resilience4j.ratelimiter.RateLimiterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.mock.MockConsumerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReconciliationServiceTest {
+    private static final String TOPIC = "user-changes";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ApplicationProperties properties = TestProperties.bind(Map.of(
+            "app.reconciliation.rate", "1000",
+            "app.reconciliation.page-size", "2",
+            "app.reconciliation.delete-orphans", "true"));
+    private final KeycloakMapper keycloakMapper = new KeycloakMapper(new ObjectMapper(), new LoginNormalizer());
+    private final KeycloakIdCache idCache = new KeycloakIdCache(properties,
+            new IdMappingChangelog(null, null, meterRegistry, properties, "usersync"), meterRegistry);
+    private final UserFingerprintStore fingerprintStore = new UserFingerprintStore(keycloakMapper, properties, meterRegistry);
+    private final SourcePositionStore positionStore = new SourcePositionStore(properties, meterRegistry);
+    // Records on the topic so far; each poll hands out those at or after the consumer's position
+    private final List<ConsumerRecord<String, byte[]>> published = new ArrayList<>();
+    // Published once the orphan pass asks for the end of the topic
+    private final List<ConsumerRecord<String, byte[]>> late = new ArrayList<>();
+    private final List<KeycloakUser> realm = new ArrayList<>();
+    private final List<String> changes = Collections.synchronizedList(new ArrayList<>());
+    private ReconciliationService reconciliationService;
+
+    @AfterEach
+    void shutdown() {
+        if (reconciliationService != null) {
+            reconciliationService.shutdown();
+        }
+        fingerprintStore.shutdown();
+    }
+
+    @Test
+    void bringsKeycloakInLineWithTheLatestRecordOfEachUser() throws InterruptedException {
+        UserData unchanged = user(1L, "User 1");
+        publish("c", unchanged, 10);
+        realm.add(keycloakUser("kc-1", unchanged));
+
+        UserData updated = user(2L, "User 2");
+        publish("c", updated, 11);
+        realm.add(keycloakUser("kc-2", user(2L, "Old Name")));
+
+        UserData deleted = user(3L, "User 3");
+        publish("c", deleted, 12);
+        publish("d", deleted, 13);
+        realm.add(keycloakUser("kc-3", deleted));
+
+        UserData created = user(4L, "User 4");
+        publish("c", created, 14);
+
+        // The live path already applied a newer change of user 5 than the one on the topic
+        UserData superseded = user(5L, "User 5");
+        publish("c", superseded, 15);
+        realm.add(keycloakUser("kc-5", user(5L, "Old Name")));
+        positionStore.record(5L, List.of(new UserChangeEvent(DebeziumOperation.UPDATE, superseded,
+                new EventSource("5", new byte[0], TOPIC, 0, 100, 0), 20)));
+
+        realm.add(keycloakUser("kc-6", user(6L, "Orphan")));
+
+        // Created while the run compared; its record shows up only in the orphan pass
+        UserData appeared = user(7L, "User 7");
+        realm.add(keycloakUser("kc-7", appeared));
+        late.add(record("c", appeared, 16, published.size()));
+
+        ReconciliationReport report = reconcile();
+
+        assertThat(report.error()).isNull();
+        assertThat(changes).containsExactlyInAnyOrder("save 2", "delete 3 kc-3", "save 4", "delete 6 kc-6");
+        // User 7 is in the topic by the time its page of orphans comes up, so it is left to the live path
+        assertThat(changes).noneMatch(change -> change.startsWith("delete 7"));
+        assertThat(report.keycloakUsers()).isEqualTo(6);
+        assertThat(report.sourceUsers()).isEqualTo(4);
+        assertThat(report.unchanged()).isEqualTo(1);
+        assertThat(report.updated()).isEqualTo(1);
+        assertThat(report.created()).isEqualTo(1);
+        assertThat(report.superseded()).isEqualTo(1);
+        assertThat(report.orphans()).isEqualTo(1);
+        assertThat(report.deleted()).isEqualTo(2);
+        assertThat(report.failed()).isZero();
+    }
+
+    private ReconciliationReport reconcile() throws InterruptedException {
+        reconciliationService = new ReconciliationService(new RealmService(), new KeycloakRouter(properties), keycloakMapper,
+                idCache, new MessageMapper(properties, new ObjectMapper()), new RecordingUserSyncService(), fingerprintStore,
+                positionStore, new UserEventDispatcher(properties, meterRegistry),
+                new ConsumptionGate(new KafkaListenerEndpointRegistry(), meterRegistry),
+                new MockConsumerFactory<>(this::consumer), RateLimiterRegistry.ofDefaults(), meterRegistry, properties, "usersync");
+        assertThat(reconciliationService.start()).isTrue();
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        ReconciliationReport report = reconciliationService.lastReport();
+        while (report == null || report.finishedAt() == null) {
+            assertThat(System.nanoTime() - deadline).as("reconciliation finished in time").isNegative();
+            Thread.sleep(10);
+            report = reconciliationService.lastReport();
+        }
+        return report;
+    }
+
+    private MockConsumer<String, byte[]> consumer() {
+        MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST) {
+            private int endOffsetCalls;
+
+            @Override
+            public synchronized Map<TopicPartition, Long> endOffsets(Collection<TopicPartition> partitions) {
+                // The first call marks the end the run compares up to, later ones come from the orphan pass
+                if (++endOffsetCalls > 1) {
+                    published.addAll(late);
+                    late.clear();
+                }
+                updateEndOffsets(Map.of(PARTITION, (long) published.size()));
+                return super.endOffsets(partitions);
+            }
+
+            @Override
+            public synchronized ConsumerRecords<String, byte[]> poll(Duration timeout) {
+                long position = position(PARTITION);
+                published.stream().filter(record -> record.offset() >= position).forEach(this::addRecord);
+                return super.poll(timeout);
+            }
+        };
+        consumer.updatePartitions(TOPIC, List.of(new PartitionInfo(TOPIC, 0, null, null, null)));
+        consumer.updateBeginningOffsets(Map.of(PARTITION, 0L));
+        return consumer;
+    }
+
+    private void publish(String operation, UserData userData, long scn) {
+        published.add(record(operation, userData, scn, published.size()));
+    }
+
+    private static ConsumerRecord<String, byte[]> record(String operation, UserData userData, long scn, long offset) {
+        String row = """
+                {"COMPANY_ID":%d,"USER_ID":%d,"NAME":"%s","LOGIN":"%s","STATE":"%s"}""".formatted(
+                userData.companyId(), userData.userId(), userData.name(), userData.login(), userData.state());
+        String envelope = """
+                {"payload":{"op":"%s","before":%s,"after":%s,"source":{"connector":"oracle","scn":"%d"}}}""".formatted(
+                operation, "d".equals(operation) ? row : "null", "d".equals(operation) ? "null" : row, scn);
+        return new ConsumerRecord<>(TOPIC, 0, offset, userData.userId().toString(), envelope.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private KeycloakUser keycloakUser(String keycloakId, UserData userData) {
+        return keycloakMapper.mapToKeycloakUser(userData).withId(keycloakId);
+    }
+
+    private static UserData user(Long userId, String name) {
+        return new UserData(1L, userId, name, "user" + userId, null, null, "A");
+    }
+
+    /**
+     * Lists the users of {@link #realm} page by page
+     */
+    private final class RealmService extends KeycloakService {
+        RealmService() {
+            super(null, null, null, properties);
+        }
+
+        @Override
+        public List<KeycloakUser> listUsers(String target, int first, int max) {
+            return List.copyOf(realm.subList(Math.min(first, realm.size()), Math.min(first + max, realm.size())));
+        }
+    }
+
+    /**
+     * Records the changes reconciliation submits; a delete also records the Keycloak ID it was handed
+     */
+    private final class RecordingUserSyncService extends UserSyncService {
+        RecordingUserSyncService() {
+            super(null, null, null, null, new SyncMetrics(meterRegistry));
+        }
+
+        @Override
+        public CompletableFuture<Void> handleUserSave(UserData userData) {
+            changes.add("save " + userData.userId());
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> handleUserDelete(String target, UserData userData) {
+            changes.add("delete " + userData.userId() + " " + idCache.get(userData.userId()));
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.verifix.usersync.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.mapper.LoginNormalizer;
+import com.verifix.usersync.model.UserData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.jsonPath;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+class SnapshotImportServiceTest {
+    private static final String IMPORT_URL = "http://keycloak/admin/realms/test/partialImport";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ApplicationProperties properties = TestProperties.bind(Map.of("app.snapshot.enabled", "true"));
+    private final KeycloakMapper keycloakMapper = new KeycloakMapper(new ObjectMapper(), new LoginNormalizer());
+    private final IdMappingChangelog changelog = new IdMappingChangelog(null, null, meterRegistry, properties, "usersync");
+    private final KeycloakIdCache idCache = new KeycloakIdCache(properties, changelog, meterRegistry);
+    private final UserFingerprintStore fingerprintStore = new UserFingerprintStore(keycloakMapper, properties, meterRegistry);
+    private final RestTemplate restTemplate = new RestTemplate();
+    private final MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+    private final KeycloakService keycloakService = new KeycloakService(
+            new KeycloakTargets(List.of(new KeycloakTarget(KeycloakRouter.DEFAULT_TARGET, "http://keycloak", "test", restTemplate, null, null))),
+            keycloakMapper, idCache, properties);
+    private final SnapshotImportService importService = new SnapshotImportService(
+            keycloakService, new KeycloakRouter(properties), fingerprintStore, properties);
+
+    @AfterEach
+    void shutdown() {
+        keycloakService.shutdown();
+        fingerprintStore.shutdown();
+    }
+
+    @Test
+    void handsBackSkippedUsersAndRecordsOnlyImportedOnes() {
+        UserData added = user(1L, "added");
+        UserData overwritten = user(2L, "overwritten");
+        UserData skipped = user(3L, "skipped");
+        server.expect(requestTo(IMPORT_URL))
+                .andExpect(jsonPath("$.ifResourceExists").value("SKIP"))
+                .andExpect(jsonPath("$.users.length()").value(3))
+                .andRespond(withSuccess("""
+                        {"added":1,"skipped":1,"overwritten":1,"results":[
+                        {"action":"ADDED","resourceType":"USER","resourceName":"added","id":"kc-1"},
+                        {"action":"OVERWRITTEN","resourceType":"USER","resourceName":"overwritten","id":"kc-2"},
+                        {"action":"SKIPPED","resourceType":"USER","resourceName":"skipped","id":"kc-3"}]}""",
+                        MediaType.APPLICATION_JSON));
+
+        List<UserData> notImported = importService.importChunk(List.of(added, overwritten, skipped)).join();
+
+        server.verify();
+        assertThat(notImported).containsExactly(skipped);
+        assertThat(idCache.get(1L)).isEqualTo("kc-1");
+        assertThat(idCache.get(2L)).isEqualTo("kc-2");
+        assertThat(idCache.get(3L)).isNull();
+        assertThat(isRecorded(added)).isTrue();
+        assertThat(isRecorded(overwritten)).isTrue();
+        assertThat(isRecorded(skipped)).isFalse();
+    }
+
+    @Test
+    void handsBackTheWholeChunkWhenTheImportFails() {
+        List<UserData> users = List.of(user(1L, "first"), user(2L, "second"));
+        server.expect(requestTo(IMPORT_URL)).andRespond(withServerError());
+
+        List<UserData> notImported = importService.importChunk(users).join();
+
+        server.verify();
+        assertThat(notImported).containsExactlyElementsOf(users);
+        assertThat(idCache.get(1L)).isNull();
+        assertThat(isRecorded(users.get(0))).isFalse();
+        assertThat(isRecorded(users.get(1))).isFalse();
+    }
+
+    @Test
+    void leavesUnchangedUsersOutOfTheImport() {
+        UserData unchanged = user(1L, "unchanged");
+        UserData changed = user(2L, "changed");
+        fingerprintStore.record(1L, fingerprintStore.fingerprint(unchanged));
+        server.expect(requestTo(IMPORT_URL))
+                .andExpect(jsonPath("$.users.length()").value(1))
+                .andExpect(jsonPath("$.users[0].username").value("changed"))
+                .andRespond(withSuccess("""
+                        {"added":1,"skipped":0,"overwritten":0,"results":[
+                        {"action":"ADDED","resourceType":"USER","resourceName":"changed","id":"kc-2"}]}""",
+                        MediaType.APPLICATION_JSON));
+
+        List<UserData> notImported = importService.importChunk(List.of(unchanged, changed)).join();
+
+        server.verify();
+        assertThat(notImported).isEmpty();
+        assertThat(isRecorded(changed)).isTrue();
+    }
+
+    @Test
+    void returnsAUserWhoseUsernameIsTakenWithinTheChunk() {
+        UserData first = user(1L, "Ivan.Petrov");
+        UserData second = user(2L, "ivan.petrov");
+        server.expect(requestTo(IMPORT_URL))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(jsonPath("$.users.length()").value(1))
+                .andExpect(jsonPath("$.users[0].attributes.userId[0]").value("1"))
+                .andRespond(withSuccess("""
+                        {"added":1,"skipped":0,"overwritten":0,"results":[
+                        {"action":"ADDED","resourceType":"USER","resourceName":"ivan.petrov","id":"kc-1"}]}""",
+                        MediaType.APPLICATION_JSON));
+
+        List<UserData> notImported = importService.importChunk(List.of(first, second)).join();
+
+        server.verify();
+        assertThat(notImported).containsExactly(second);
+        assertThat(idCache.get(1L)).isEqualTo("kc-1");
+        assertThat(idCache.get(2L)).isNull();
+        assertThat(isRecorded(first)).isTrue();
+        assertThat(isRecorded(second)).isFalse();
+    }
+
+    private boolean isRecorded(UserData userData) {
+        return fingerprintStore.isUnchanged(userData.userId(), fingerprintStore.fingerprint(userData), "snapshot");
+    }
+
+    private static UserData user(Long userId, String login) {
+        return new UserData(1L, userId, "User " + userId, login, null, null, "A");
+    }
+}
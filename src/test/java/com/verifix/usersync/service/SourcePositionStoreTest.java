@@ -0,0 +1,92 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.EventSource;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SourcePositionStoreTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void dropsChangesAtOrBelowTheAppliedPosition() {
+        SourcePositionStore store = new SourcePositionStore(properties(1000), meterRegistry);
+        store.record(1L, List.of(event(1L, 500, 10), event(1L, 400, 9)));
+
+        assertThat(store.check(event(1L, 500, 10), null)).isEqualTo(SourcePositionStore.Verdict.DUPLICATE);
+        assertThat(store.check(event(1L, 300, 12), null)).isEqualTo(SourcePositionStore.Verdict.OUT_OF_ORDER);
+        // Same SCN, later record: the next change of the same transaction
+        assertThat(store.check(event(1L, 500, 11), null)).isEqualTo(SourcePositionStore.Verdict.APPLY);
+        assertThat(store.check(event(2L, 100, 1), null)).isEqualTo(SourcePositionStore.Verdict.APPLY);
+        // A newer change earlier in the same batch wins over the store
+        assertThat(store.check(event(2L, 100, 1), event(2L, 200, 2))).isEqualTo(SourcePositionStore.Verdict.OUT_OF_ORDER);
+
+        assertThat(meterRegistry.get("usersync.events.dropped").tag("reason", "duplicate").counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("usersync.events.dropped").tag("reason", "out_of_order").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void tellsReconciliationWhetherTheLivePathMovedPastARecord() {
+        SourcePositionStore store = new SourcePositionStore(properties(1000), meterRegistry);
+        store.record(1L, List.of(event(1L, 500, 10)));
+
+        assertThat(store.isSuperseded(1L, 400, 9)).isTrue();
+        assertThat(store.isSuperseded(1L, 500, 9)).isTrue();
+        // The applied change itself and anything newer still stand
+        assertThat(store.isSuperseded(1L, 500, 10)).isFalse();
+        assertThat(store.isSuperseded(1L, 600, 12)).isFalse();
+        assertThat(store.isSuperseded(2L, 100, 1)).isFalse();
+        assertThat(meterRegistry.find("usersync.events.dropped").counters()).allSatisfy(counter -> assertThat(counter.count()).isZero());
+    }
+
+    @Test
+    void staysWithinItsBoundEvictingTheOldestChanges() {
+        SourcePositionStore store = new SourcePositionStore(properties(64), meterRegistry);
+        for (long userId = 0; userId < 10_000; userId++) {
+            store.record(userId, List.of(event(userId, 1_000 + userId, userId)));
+        }
+
+        assertThat(store.size()).isLessThanOrEqualTo(64);
+        assertThat(store.check(event(9_999L, 1_000 + 9_999, 9_999), null)).isEqualTo(SourcePositionStore.Verdict.DUPLICATE);
+        // Forgotten users are applied as before
+        assertThat(store.check(event(0L, 1_000, 0), null)).isEqualTo(SourcePositionStore.Verdict.APPLY);
+    }
+
+    @Test
+    void appliesChangesAgainOnceTheMarksAreReset() {
+        SourcePositionStore store = new SourcePositionStore(properties(1000), meterRegistry);
+        store.record(1L, List.of(event(1L, 500, 10)));
+        store.record(2L, List.of(event(2L, 500, 11)));
+        store.record(3L, List.of(event(3L, 500, 12)));
+
+        // The log started over, so new changes sit below the old marks
+        assertThat(store.reset(1L)).isEqualTo(1);
+        assertThat(store.reset(1L)).isZero();
+        assertThat(store.check(event(1L, 10, 0), null)).isEqualTo(SourcePositionStore.Verdict.APPLY);
+        assertThat(store.check(event(2L, 10, 0), null)).isEqualTo(SourcePositionStore.Verdict.OUT_OF_ORDER);
+
+        assertThat(store.reset(null)).isEqualTo(2);
+        assertThat(store.size()).isZero();
+        assertThat(store.check(event(2L, 10, 0), null)).isEqualTo(SourcePositionStore.Verdict.APPLY);
+        store.record(3L, List.of(event(3L, 10, 0)));
+        assertThat(store.check(event(3L, 10, 0), null)).isEqualTo(SourcePositionStore.Verdict.DUPLICATE);
+    }
+
+    private static UserChangeEvent event(Long userId, long position, long offset) {
+        UserData userData = new UserData(100L, userId, "User " + userId, "user" + userId, null, null, "A");
+        return new UserChangeEvent(DebeziumOperation.UPDATE, userData, new EventSource(userId.toString(), null, "user-changes", 0, offset, 0), position);
+    }
+
+    private static ApplicationProperties properties(int maxSize) {
+        return TestProperties.bind(Map.of("app.positions.max-size", String.valueOf(maxSize)));
+    }
+}
@@ -0,0 +1,65 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.model.EventSource;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserChangeGroup;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class UserChangeCoalescerTest {
+    private final UserChangeCoalescer coalescer = new UserChangeCoalescer();
+    private long offset;
+
+    @Test
+    void collapsesSavesToLastState() {
+        List<UserChangeGroup> groups = coalescer.coalesce(List.of(
+                event(DebeziumOperation.CREATE, 1L, "first"),
+                event(DebeziumOperation.UPDATE, 2L, "other"),
+                event(DebeziumOperation.UPDATE, 1L, "second"),
+                event(DebeziumOperation.UPDATE, 1L, "third")));
+
+        assertThat(groups).extracting(UserChangeGroup::userId).containsExactly(1L, 2L);
+        assertThat(groups.getFirst().events()).hasSize(3);
+        assertThat(groups.getFirst().collapsed())
+                .extracting(e -> e.userData().login())
+                .containsExactly("third");
+    }
+
+    @Test
+    void deleteWinsOverEarlierSaves() {
+        List<UserChangeGroup> groups = coalescer.coalesce(List.of(
+                event(DebeziumOperation.CREATE, 1L, "first"),
+                event(DebeziumOperation.UPDATE, 1L, "second"),
+                event(DebeziumOperation.DELETE, 1L, "second")));
+
+        assertThat(groups.getFirst().collapsed())
+                .extracting(UserChangeEvent::operation)
+                .containsExactly(DebeziumOperation.DELETE);
+    }
+
+    @Test
+    void keepsSaveAfterDelete() {
+        List<UserChangeGroup> groups = coalescer.coalesce(List.of(
+                event(DebeziumOperation.UPDATE, 1L, "first"),
+                event(DebeziumOperation.DELETE, 1L, "first"),
+                event(DebeziumOperation.CREATE, 1L, "second"),
+                event(DebeziumOperation.UPDATE, 1L, "third")));
+
+        assertThat(groups.getFirst().collapsed())
+                .extracting(UserChangeEvent::operation, e -> e.userData().login())
+                .containsExactly(
+                        tuple(DebeziumOperation.DELETE, "first"),
+                        tuple(DebeziumOperation.UPDATE, "third"));
+    }
+
+    private UserChangeEvent event(DebeziumOperation operation, Long userId, String login) {
+        UserData userData = new UserData(10L, userId, "Test User", login, null, null, "A");
+        return new UserChangeEvent(operation, userData, new EventSource(userId.toString(), null, "user-changes", 0, offset++, 0));
+    }
+}
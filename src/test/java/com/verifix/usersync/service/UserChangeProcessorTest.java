@@ -0,0 +1,195 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.model.EventSource;
+import com.verifix.usersync.model.UserChangeEvent;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.debezium.DebeziumOperation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.mock.MockProducerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserChangeProcessorTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SyncMetrics metrics = new SyncMetrics(meterRegistry);
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+    // Saves that do not finish until the test completes them
+    private final Map<Long, CompletableFuture<Void>> blocked = new ConcurrentHashMap<>();
+    private final Set<Long> notImported = new HashSet<>();
+    // Sends to the retry topics wait for the test to complete or fail them
+    private final MockProducer<String, byte[]> producer = new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer()) {
+        @Override
+        public void close(Duration timeout) {
+            // The template closes the producer after each send
+        }
+    };
+    private ApplicationProperties properties;
+    private SourcePositionStore positionStore;
+
+    @Test
+    void givesLiveChangesTheirShareWhileImportsWaitForASlot() {
+        UserChangeProcessor processor = processor(Map.of(
+                "app.dispatcher.max-in-flight", "1",
+                "app.dispatcher.live-share", "0.5"));
+        CompletableFuture<Void> blocker = block(1L);
+
+        CompletableFuture<Void> done = processor.process(List.of(
+                event(DebeziumOperation.CREATE, 1L, 101),
+                event(DebeziumOperation.READ, 11L, 11), event(DebeziumOperation.READ, 12L, 12),
+                event(DebeziumOperation.READ, 13L, 13), event(DebeziumOperation.READ, 14L, 14),
+                event(DebeziumOperation.READ, 15L, 15), event(DebeziumOperation.READ, 16L, 16),
+                event(DebeziumOperation.CREATE, 2L, 102),
+                event(DebeziumOperation.CREATE, 3L, 103),
+                event(DebeziumOperation.CREATE, 4L, 104)));
+
+        // The imports queue for the one slot like any other backfill work
+        assertThat(started).containsExactly("save 1");
+
+        blocker.complete(null);
+        done.join();
+
+        assertThat(started).containsExactly("save 1",
+                "save 2", "import [11, 12]",
+                "save 3", "import [13, 14]",
+                "save 4", "import [15, 16]");
+        assertThat(count("read", "processed")).isEqualTo(6);
+        assertThat(count("create", "processed")).isEqualTo(4);
+    }
+
+    @Test
+    void savesUsersTheImportDidNotConfirmOneAtATime() {
+        UserChangeProcessor processor = processor(Map.of());
+        notImported.add(12L);
+        CompletableFuture<Void> blocker = block(13L);
+        CompletableFuture<Void> earlier = processor.process(List.of(event(DebeziumOperation.CREATE, 13L, 10)));
+
+        CompletableFuture<Void> done = processor.process(List.of(
+                event(DebeziumOperation.READ, 11L, 11),
+                event(DebeziumOperation.READ, 12L, 12),
+                event(DebeziumOperation.READ, 13L, 13)));
+        // User 13 still has a create running, so its read waits for it instead of joining the import
+        assertThat(done).isNotDone();
+
+        blocker.complete(null);
+        CompletableFuture.allOf(earlier, done).join();
+
+        assertThat(started).containsExactly("save 13", "import [11, 12]", "save 12", "save 13");
+        assertThat(count("read", "processed")).isEqualTo(3);
+        assertThat(positionStore.isSuperseded(11L, 10, 0)).isTrue();
+        assertThat(positionStore.isSuperseded(12L, 11, 0)).isTrue();
+        assertThat(positionStore.isSuperseded(13L, 12, 0)).isTrue();
+    }
+
+    @Test
+    void dropsChangesAtOrBelowTheAppliedPosition() {
+        UserChangeProcessor processor = processor(Map.of());
+        processor.process(List.of(event(DebeziumOperation.UPDATE, 1L, 200))).join();
+
+        processor.process(List.of(
+                // Replayed and older than what user 1 already has
+                event(DebeziumOperation.UPDATE, 1L, 200),
+                event(DebeziumOperation.READ, 1L, 100),
+                // The snapshot row of user 2 is older than its update earlier in the batch
+                event(DebeziumOperation.UPDATE, 2L, 300),
+                event(DebeziumOperation.READ, 2L, 250))).join();
+
+        assertThat(started).containsExactly("save 1", "save 2");
+        assertThat(count("update", "skipped")).isEqualTo(1);
+        assertThat(count("read", "skipped")).isEqualTo(2);
+        assertThat(count("update", "processed")).isEqualTo(2);
+    }
+
+    @Test
+    void failsTheBatchWhenAFailedChangeCannotBeSentOn() {
+        UserChangeProcessor processor = processor(Map.of("app.dispatcher.max-attempts", "1"));
+        block(1L).completeExceptionally(new IllegalStateException("Keycloak responded 500"));
+
+        CompletableFuture<Void> done = processor.process(List.of(event(DebeziumOperation.UPDATE, 1L, 100)));
+        // Waits for the change to be handed to the first retry tier
+        assertThat(done).isNotDone();
+
+        assertThat(producer.errorNext(new KafkaException("Broker unavailable"))).isTrue();
+        assertThat(done).isCompletedExceptionally();
+        assertThat(count("update", "failed")).isEqualTo(1);
+    }
+
+    private UserChangeProcessor processor(Map<String, String> values) {
+        Map<String, String> merged = new HashMap<>(values);
+        merged.put("app.snapshot.enabled", "true");
+        merged.put("app.snapshot.chunk-size", "2");
+        properties = TestProperties.bind(merged);
+        positionStore = new SourcePositionStore(properties, meterRegistry);
+
+        SnapshotImportService snapshotImportService = new RecordingImportService();
+        UserChangeApplier applier = new UserChangeApplier(snapshotImportService, new RecordingUserSyncService(), positionStore, metrics, properties);
+        FailedRecordPublisher failedRecordPublisher = new FailedRecordPublisher(
+                new KafkaTemplate<>(new MockProducerFactory<>(() -> producer)), properties, meterRegistry);
+        return new UserChangeProcessor(new UserChangeCoalescer(), new UserEventDispatcher(properties, meterRegistry),
+                new KeycloakRouter(properties), snapshotImportService, applier, positionStore, failedRecordPublisher, metrics);
+    }
+
+    private CompletableFuture<Void> block(Long userId) {
+        CompletableFuture<Void> blocker = new CompletableFuture<>();
+        blocked.put(userId, blocker);
+        return blocker;
+    }
+
+    private double count(String operation, String outcome) {
+        return meterRegistry.get("usersync.events").tags("operation", operation, "outcome", outcome).counter().count();
+    }
+
+    private static UserChangeEvent event(DebeziumOperation operation, Long userId, long position) {
+        UserData userData = new UserData(1L, userId, "User " + userId, "user" + userId, null, null, "A");
+        return new UserChangeEvent(operation, userData, new EventSource(userId.toString(), new byte[0], "user-changes", 0, position, 0), position);
+    }
+
+    /**
+     * Imports every user but those in {@link #notImported}
+     */
+    private final class RecordingImportService extends SnapshotImportService {
+        RecordingImportService() {
+            super(null, null, null, properties);
+        }
+
+        @Override
+        public CompletableFuture<List<UserData>> importChunk(List<UserData> users) {
+            started.add("import " + users.stream().map(UserData::userId).toList());
+            return CompletableFuture.completedFuture(users.stream().filter(user -> notImported.contains(user.userId())).toList());
+        }
+    }
+
+    /**
+     * Records the saves it starts; a blocked user's first save finishes when the test says so
+     */
+    private final class RecordingUserSyncService extends UserSyncService {
+        RecordingUserSyncService() {
+            super(null, null, null, null, metrics);
+        }
+
+        @Override
+        public CompletableFuture<Void> handleUserSave(UserData userData) {
+            started.add("save " + userData.userId());
+            CompletableFuture<Void> blocker = blocked.remove(userData.userId());
+            return blocker != null ? blocker : CompletableFuture.completedFuture(null);
+        }
+    }
+}
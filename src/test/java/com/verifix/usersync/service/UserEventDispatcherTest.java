@@ -0,0 +1,62 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.model.Lane;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserEventDispatcherTest {
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+    private final UserEventDispatcher dispatcher = new UserEventDispatcher(TestProperties.bind(Map.of(
+            "app.dispatcher.max-in-flight", "1",
+            "app.dispatcher.live-share", "0.8")), new SimpleMeterRegistry());
+
+    @Test
+    void givesLiveChangesTheirShareOfSlots() {
+        CompletableFuture<Void> blocker = new CompletableFuture<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(dispatcher.dispatch(0L, Lane.LIVE, () -> blocker));
+        for (long i = 1; i <= 10; i++) {
+            futures.add(dispatcher.dispatch(100 + i, Lane.BACKFILL, task("backfill")));
+            futures.add(dispatcher.dispatch(200 + i, Lane.LIVE, task("live")));
+        }
+        assertThat(dispatcher.backlog(Lane.BACKFILL)).isEqualTo(10);
+        assertThat(dispatcher.backlog(Lane.LIVE)).isEqualTo(11);
+
+        blocker.complete(null);
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+        assertThat(started.subList(0, 10)).filteredOn("live"::equals).hasSize(8);
+        assertThat(started).hasSize(20);
+        assertThat(dispatcher.backlog()).isZero();
+    }
+
+    @Test
+    void keepsUserOrderAcrossLanes() {
+        CompletableFuture<Void> blocker = new CompletableFuture<>();
+        CompletableFuture<Void> first = dispatcher.dispatch(1L, Lane.BACKFILL, () -> blocker.thenRun(() -> started.add("read")));
+        CompletableFuture<Void> second = dispatcher.dispatch(1L, Lane.LIVE, task("update"));
+        CompletableFuture<Void> other = dispatcher.dispatch(2L, Lane.LIVE, task("other"));
+
+        blocker.complete(null);
+        CompletableFuture.allOf(first, second, other).join();
+
+        assertThat(started).containsSubsequence("read", "update");
+    }
+
+    private Supplier<CompletableFuture<Void>> task(String name) {
+        return () -> {
+            started.add(name);
+            return CompletableFuture.completedFuture(null);
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package com.verifix.usersync.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.KeycloakMapper;
+import com.verifix.usersync.mapper.LoginNormalizer;
+import com.verifix.usersync.model.UserData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserFingerprintStoreTest {
+    private static final UserData USER = new UserData(100L, 1L, "John Smith", "john", "secret", "john@example.com", "A");
+
+    private final KeycloakMapper keycloakMapper = new KeycloakMapper(new ObjectMapper(), new LoginNormalizer());
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void suppressesOnlyUnchangedRepresentation() {
+        UserFingerprintStore store = store(null);
+        long fingerprint = store.fingerprint(USER);
+
+        assertThat(store.isUnchanged(1L, fingerprint, "save")).isFalse();
+        store.record(1L, fingerprint);
+
+        assertThat(store.isUnchanged(1L, fingerprint, "save")).isTrue();
+        UserData renamed = new UserData(100L, 1L, "John Smyth", "john", "secret", "john@example.com", "A");
+        assertThat(store.isUnchanged(1L, store.fingerprint(renamed), "save")).isFalse();
+        assertThat(meterRegistry.counter("usersync.writes.suppressed", "path", "save").count()).isEqualTo(1);
+
+        store.invalidate(1L);
+        assertThat(store.isUnchanged(1L, fingerprint, "save")).isFalse();
+    }
+
+    @Test
+    void restoresFingerprintsFromFile() throws Exception {
+        Path file = dir.resolve("fingerprints.bin");
+        UserFingerprintStore store = store(file);
+        long fingerprint = store.fingerprint(USER);
+        store.record(1L, fingerprint);
+        store.flush();
+        store.shutdown();
+
+        UserFingerprintStore restored = store(file);
+        assertThat(restored.isUnchanged(1L, fingerprint, "save")).isTrue();
+        restored.shutdown();
+    }
+
+    private UserFingerprintStore store(Path file) {
+        ApplicationProperties properties = TestProperties.bind(file == null
+                ? Map.of()
+                : Map.of("app.fingerprints.file", file.toString()));
+        return new UserFingerprintStore(keycloakMapper, properties, meterRegistry);
+    }
+}
@@ -0,0 +1,109 @@
+package com.verifix.usersync.service;
+
+import com.verifix.usersync.TestProperties;
+import com.verifix.usersync.config.ApplicationProperties;
+import com.verifix.usersync.mapper.LoginNormalizer;
+import com.verifix.usersync.model.UserData;
+import com.verifix.usersync.model.keycloak.KeycloakUser;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserResolverTest {
+    private static final UserData USER = new UserData(1L, 42L, "Ivan Petrov", "Ivan.Petrov", null, null, "A");
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void looksUpByNormalizedUsernameAndCachesTheId() {
+        ApplicationProperties properties = properties("USERNAME");
+        LookupRecorder keycloak = new LookupRecorder(properties, Map.of("username:ivan.petrov", "kc-1"), Map.of("kc-1", 42L));
+        UserResolver resolver = resolver(keycloak, properties);
+
+        assertThat(resolver.resolve("default", USER)).isEqualTo("kc-1");
+        assertThat(resolver.resolve("default", USER)).isEqualTo("kc-1");
+
+        assertThat(keycloak.lookups).containsExactly("username:ivan.petrov");
+        assertThat(meterRegistry.get("usersync.lookup").tags("strategy", "username", "result", "found").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void fallsBackToTheUserIdAttribute() {
+        ApplicationProperties properties = properties("ID");
+        LookupRecorder keycloak = new LookupRecorder(properties, Map.of("userId:42", "kc-old"), Map.of());
+        UserResolver resolver = resolver(keycloak, properties);
+
+        assertThat(resolver.resolve("default", USER)).isEqualTo("kc-old");
+
+        assertThat(keycloak.lookups).containsExactly("id:" + UserResolver.keycloakId(42L), "userId:42");
+        assertThat(meterRegistry.get("usersync.lookup").tags("strategy", "id", "result", "missing").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("usersync.lookup").tags("strategy", "attribute", "result", "found").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void passesOverAUsernameHeldBySomeoneElse() {
+        ApplicationProperties properties = properties("USERNAME");
+        // The login was freed by user 7 and taken by user 42; Keycloak still has user 7 under it
+        LookupRecorder keycloak = new LookupRecorder(properties,
+                Map.of("username:ivan.petrov", "kc-7", "userId:42", "kc-42"), Map.of("kc-7", 7L));
+        UserResolver resolver = resolver(keycloak, properties);
+
+        assertThat(resolver.resolve("default", USER)).isEqualTo("kc-42");
+
+        assertThat(keycloak.lookups).containsExactly("username:ivan.petrov", "userId:42");
+        assertThat(meterRegistry.get("usersync.lookup").tags("strategy", "username", "result", "missing").timer().count()).isEqualTo(1);
+    }
+
+    private UserResolver resolver(KeycloakService keycloak, ApplicationProperties properties) {
+        IdMappingChangelog changelog = new IdMappingChangelog(null, null, meterRegistry, properties, "usersync");
+        KeycloakIdCache idCache = new KeycloakIdCache(properties, changelog, meterRegistry);
+        return new UserResolver(keycloak, idCache, new LoginNormalizer(), properties, meterRegistry);
+    }
+
+    private static ApplicationProperties properties(String strategy) {
+        return TestProperties.bind(Map.of("app.keycloak.lookup.strategy", strategy));
+    }
+
+    /**
+     * Answers lookups from a map keyed like the recorded calls
+     */
+    private static final class LookupRecorder extends KeycloakService {
+        private final Map<String, String> ids;
+        private final Map<String, Long> userIds;
+        private final List<String> lookups = new ArrayList<>();
+
+        LookupRecorder(ApplicationProperties properties, Map<String, String> ids, Map<String, Long> userIds) {
+            super(null, null, null, properties);
+            this.ids = ids;
+            this.userIds = userIds;
+        }
+
+        @Override
+        public KeycloakUser findUserByUsername(String target, String username) {
+            String id = lookup("username:" + username);
+            return id == null ? null : new KeycloakUser(id, username, true, null, null, null, null,
+                    Map.of("userId", List.of(userIds.get(id).toString())));
+        }
+
+        @Override
+        public String findIdById(String target, String keycloakId) {
+            return lookup("id:" + keycloakId);
+        }
+
+        @Override
+        public String findIdByAttribute(String target, Long userId) {
+            return lookup("userId:" + userId);
+        }
+
+        private String lookup(String key) {
+            lookups.add(key);
+            return ids.get(key);
+        }
+    }
+}